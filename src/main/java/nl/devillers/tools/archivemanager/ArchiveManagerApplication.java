@@ -1,20 +1,28 @@
 package nl.devillers.tools.archivemanager;
 
 import lombok.AllArgsConstructor;
+import lombok.SneakyThrows;
 import lombok.extern.slf4j.Slf4j;
+import nl.devillers.tools.archivemanager.model.Archive;
+import nl.devillers.tools.archivemanager.model.CachedResults;
+import nl.devillers.tools.archivemanager.model.CompactIndex;
 import nl.devillers.tools.archivemanager.model.Config;
+import nl.devillers.tools.archivemanager.model.Detection;
+import nl.devillers.tools.archivemanager.model.Estimate;
 import nl.devillers.tools.archivemanager.model.FileSummary;
+import nl.devillers.tools.archivemanager.model.MissingFiles;
+import nl.devillers.tools.archivemanager.model.Mode;
 import org.springframework.boot.CommandLineRunner;
 import org.springframework.boot.SpringApplication;
 import org.springframework.boot.autoconfigure.SpringBootApplication;
 
 import java.io.IOException;
-import java.nio.file.Files;
 import java.nio.file.Path;
 import java.nio.file.Paths;
-import java.nio.file.StandardOpenOption;
 import java.time.Instant;
 import java.util.*;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
 import java.util.stream.Collectors;
 
 @SpringBootApplication
@@ -26,54 +34,219 @@ public class ArchiveManagerApplication implements CommandLineRunner {
 	private Indexer indexer;
 	private Mappers mappers;
 	private Filters filters;
+	private Verifier verifier;
+	private MasterIndexer masterIndexer;
+	private IndexScheduler scheduler;
+	private Metrics metrics;
+	private QueryServer queryServer;
+	private Watcher watcher;
+	private Backfiller backfiller;
+	private PartitionedDetector detector;
+	private Estimator estimator;
+	private ResultCache resultCache;
 
 	@Override
 	public void run(String... args) throws Exception {
-		// Create/read all indexes
-		Map<Long, List<FileSummary>> sources = config.getSources()
-				.stream()
-				.map(indexer::readIndex)
-				.reduce(new HashMap<>(), mappers::accumulator);
-		long sourcesFilesCount = sources.values()
+		if(config.getMode() == Mode.SERVE) {
+			queryServer.start();
+			return;
+		}
+		if(config.getMode() == Mode.WATCH) {
+			List<Archive> watched = config.getSources().stream().filter(Archive::getWatch).collect(Collectors.toList());
+			watched.add(config.getTarget());
+			watcher.start(watched, queryServer::update);
+			queryServer.start();
+			Runtime.getRuntime().addShutdownHook(new Thread(watcher::stop));
+			return;
+		}
+		if(config.getMode() == Mode.ESTIMATE) {
+			List<Estimate> estimates = metrics.phase("estimate", () -> estimator.estimate());
+			estimator.write(Paths.get(String.format("estimate-%s.json", Instant.now().toEpochMilli())), estimates);
+			metrics.write(Paths.get(String.format("run-summary-%s.json", Instant.now().toEpochMilli())));
+			return;
+		}
+
+		// Create/read all indexes, the target along with the sources so every device is busy
+		metrics.phase("index", () -> scheduler.prepare(archives()));
+
+		// Calculate missing files and duplicates, within a memory budget if one is configured, or reuse what did not change
+		Path missingOutput =  Paths.get(String.format("missing-%s.%s", Instant.now().toEpochMilli(), config.getReportFormat().getExtension()));
+		Path duplicatesOutput =  Paths.get(String.format("duplicates-%s.%s", Instant.now().toEpochMilli(), config.getReportFormat().getExtension()));
+		CachedResults results = config.getOutOfCore().getMemoryBudget() != null ? null
+				: metrics.phase("load cached results", () -> resultCache.load());
+		List<FileSummary> missing = results == null
+				? metrics.phase("partitioned detection", () -> detectPartitioned(missingOutput, duplicatesOutput))
+				: report(detect(results), missingOutput, duplicatesOutput);
+
+		// Copy missing files into the target
+		if(config.getMode() == Mode.BACKFILL) {
+			List<FileSummary> copied = metrics.phase("backfill", () -> backfiller.backfill(missing));
+			log.info("Added {} copied files to the index of {}", copied.size(), config.getTarget().getRoot());
+		}
+
+		// Cache content hashes computed during verification, keeping the master index current if it was
+		if(config.getVerifyContent()) {
+			metrics.phase("persist content hashes", () -> {
+				boolean masterCurrent = masterIndexer.isCurrent();
+				Map<String, String> stamps = resultCache.stamps();
+				Map<String, String> contentHashes = verifier.persist(archives());
+				if(masterCurrent) masterIndexer.saveContentHashes(contentHashes);
+				if(results != null) resultCache.restamp(results, stamps);
+			});
+		}
+
+		// Backfilling changed the target, so its results are outdated already
+		if(results != null && config.getMode() != Mode.BACKFILL) {
+			resultCache.save(results);
+		}
+
+		metrics.write(Paths.get(String.format("run-summary-%s.json", Instant.now().toEpochMilli())));
+	}
+
+	/**
+	 * Reports the missing files and duplicates of a detection, returning the missing files.
+	 */
+	private List<FileSummary> report(Detection detection, Path missingOutput, Path duplicatesOutput) throws IOException {
+		List<FileSummary> missing = detection.getMissing();
+		MissingFiles summary = mappers.summarize(missing, config.getSources());
+		summary.getPerArchive().forEach((x, y) -> log.info("Missing {} files / {} bytes from {}", y.getCount(), y.getSum(), x));
+		log.info("Missing {} of {} files / {} bytes", missing.size(), detection.getSourceFiles(), summary.getBytes());
+		persistFiles(missingOutput, missing);
+
+		// Report duplicated directories as a whole, followed by the duplicate files outside of them
+		List<List<FileSummary>> duplicates = metrics.phase("duplicate directories", () -> {
+			List<List<FileSummary>> directories = mappers.directoryDuplicates(detection.getDuplicates(), detection.getDirectoryFiles());
+			List<List<FileSummary>> files = mappers.uncovered(detection.getDuplicates(), directories);
+			log.info("Found {} duplicate directories, covering {} of {} duplicates", directories.size(),
+					detection.getDuplicates().size() - files.size(), detection.getDuplicates().size());
+			List<List<FileSummary>> result = mappers.rankByReclaimable(directories);
+			result.addAll(mappers.rankByReclaimable(files));
+			return result;
+		});
+		log.info("Reporting {} groups of duplicates, {} bytes reclaimable", duplicates.size(), duplicates.stream().mapToLong(ReportWriter::reclaimable).sum());
+		persistGroups(duplicatesOutput, duplicates);
+		return missing;
+	}
+
+	/**
+	 * Detects missing files and duplicates partition by partition, writing the results of each partition to the reports
+	 * right away instead of collecting them first. Duplicates are therefore ranked within their partition and not
+	 * rolled up into duplicate directories. Missing files are only kept when backfilling, which needs all of them.
+	 */
+	@SneakyThrows
+	private List<FileSummary> detectPartitioned(Path missingOutput, Path duplicatesOutput) {
+		List<FileSummary> kept = new ArrayList<>();
+		Map<Path, LongSummaryStatistics> perArchive = new TreeMap<>();
+		AtomicInteger groups = new AtomicInteger();
+		AtomicLong reclaimable = new AtomicLong();
+		try (ReportWriter missingWriter = ReportWriter.open(missingOutput, config.getReportFormat(), archives());
+			 ReportWriter duplicatesWriter = ReportWriter.open(duplicatesOutput, config.getReportFormat(), archives())) {
+			long sourceFiles = detector.detect(new PartitionedDetector.Sink() {
+				@Override
+				public void missing(List<FileSummary> files) throws IOException {
+					for (FileSummary file : files) {
+						missingWriter.file(file);
+					}
+					mappers.summarize(files, config.getSources()).getPerArchive()
+							.forEach((x, y) -> perArchive.computeIfAbsent(x, z -> new LongSummaryStatistics()).combine(y));
+					if(config.getMode() == Mode.BACKFILL) kept.addAll(files);
+				}
+
+				@Override
+				public void duplicates(List<List<FileSummary>> duplicates) throws IOException {
+					for (List<FileSummary> group : mappers.rankByReclaimable(duplicates)) {
+						duplicatesWriter.group(groups.incrementAndGet(), group);
+						reclaimable.addAndGet(ReportWriter.reclaimable(group));
+					}
+				}
+			});
+			perArchive.forEach((x, y) -> log.info("Missing {} files / {} bytes from {}", y.getCount(), y.getSum(), x));
+			log.info("Missing {} of {} files / {} bytes", perArchive.values().stream().mapToLong(LongSummaryStatistics::getCount).sum(),
+					sourceFiles, perArchive.values().stream().mapToLong(LongSummaryStatistics::getSum).sum());
+			log.info("Reporting {} groups of duplicates, {} bytes reclaimable", groups, reclaimable);
+		}
+		return kept;
+	}
+
+	/**
+	 * Loads the sources without cached results and the target completely and joins them in memory. The results are
+	 * added to the cached results, which are returned as a whole.
+	 */
+	private Detection detect(CachedResults results) {
+		List<Archive> stale = resultCache.stale(results);
+		if(stale.isEmpty() && results.getDuplicates() != null) {
+			log.info("No index or filter changed, reusing cached results");
+			return resultCache.detection(results);
+		}
+
+		boolean exifEnabled = config.getExifFilter().getEnabled();
+		Map<Long, List<FileSummary>> loadedSources = metrics.phase("load sources", () -> stale.size() == config.getSources().size()
+				? masterIndexer.mergeMasterIndex()
+				: masterIndexer.mergeMasterIndex(stale, null, exifEnabled));
+		long sourcesFilesCount = loadedSources.values()
 				.stream()
 				.flatMap(Collection::stream)
 				.count();
-		log.info("Built master index containing {} entries and {} files", sources.size(), sourcesFilesCount);
+		log.info("Built master index of {} sources containing {} entries and {} files", stale.size(), loadedSources.size(), sourcesFilesCount);
 
-		Map<Long, List<FileSummary>> target = indexer.readIndex(config.getTarget());
+		CompactIndex loadedTarget = metrics.phase("load target", () -> indexer.loadCompactIndex(config.getTarget()));
 
-		// Apply filters
-		filters.applyFilters(sources);
-		filters.applyFilters(target);
-		if(config.getExifFilter().getEnabled()) {
-			filters.applyExifFilter(sources);
-		}
+		// Apply filters, which leaves the loaded indexes as they are
+		Map<Long, List<FileSummary>> sources = metrics.phase("filter sources", () -> filters.filter(loadedSources));
+		CompactIndex target = metrics.phase("filter target", () -> filters.applyFilters(loadedTarget));
+		Map<FileSummary, FileSummary> originals = metrics.phase("align fingerprints", () -> indexer.align(sources, stale,
+				config.getTarget().getFingerprint(), x -> target.from(x) < target.to(x)));
 
 		// Calculate missing files
-		List<FileSummary> missing = mappers.rightWithoutLeft(target, sources);
-		log.info("Missing {} of {} files", missing.size(), sourcesFilesCount);
-		Path missingOutput =  Paths.get(String.format("missing-%s.txt", Instant.now().toEpochMilli()));
-		persistPaths(missingOutput, missing);
-
-		// Detect duplicates
-		List<List<FileSummary>> duplicates = mappers.duplicates(target);
-		log.info("Found {} duplicates", duplicates.size());
-		Path duplicatesOutput =  Paths.get(String.format("duplicates-%s.txt", Instant.now().toEpochMilli()));
-		persistNestedPaths(duplicatesOutput, duplicates);
+		List<FileSummary> missing = metrics.phase("missing", () -> {
+			List<FileSummary> result = mappers.rightWithoutLeft(target, sources);
+			if(config.getVerifyContent()) {
+				List<FileSummary> falseMatches = verifier.falseMatches(target, sources);
+				log.info("Found {} files that only matched on fingerprint", falseMatches.size());
+				result.addAll(falseMatches);
+			}
+			// Report files with the fingerprint of their own index, which is also what the backfill verifies copies with
+			result.replaceAll(x -> originals.getOrDefault(x, x));
+			return result;
+		});
+		resultCache.put(results, stale, loadedSources, missing);
+
+		// Detect duplicates, which only depend on the target
+		if(results.getDuplicates() == null) {
+			results.setDuplicates(metrics.phase("duplicates", () -> {
+				List<List<FileSummary>> result = mappers.duplicates(target);
+				return config.getVerifyContent() ? verifier.verifyDuplicates(result) : result;
+			}));
+			Map<Path, Integer> directoryFiles = new HashMap<>();
+			// Count files the filters left out too, so a directory holding any of them is never reported as a copy
+			for (int i = 0; i < loadedTarget.count(); i++) {
+				directoryFiles.merge(Paths.get(loadedTarget.path(i)).getParent(), 1, Integer::sum);
+			}
+			results.setDirectoryFiles(directoryFiles);
+		}
+		return resultCache.detection(results);
 	}
 
-	private void persistPaths(Path outputFile, List<FileSummary> files) throws IOException {
-		List<String> paths = files.stream().map(FileSummary::getPath).collect(Collectors.toList());
-		Files.write(outputFile, paths, StandardOpenOption.CREATE_NEW);
+	private void persistFiles(Path outputFile, List<FileSummary> files) throws IOException {
+		try (ReportWriter writer = ReportWriter.open(outputFile, config.getReportFormat(), archives())) {
+			for (FileSummary file : files) {
+				writer.file(file);
+			}
+		}
+	}
+
+	private void persistGroups(Path outputFile, List<List<FileSummary>> groups) throws IOException {
+		try (ReportWriter writer = ReportWriter.open(outputFile, config.getReportFormat(), archives())) {
+			for (int i = 0; i < groups.size(); i++) {
+				writer.group(i + 1, groups.get(i));
+			}
+		}
 	}
 
-	private void persistNestedPaths(Path outputFile, List<List<FileSummary>> files) throws IOException {
-		List<String> lines = files.stream()
-				.map(x -> ">".concat(x.stream()
-						.map(FileSummary::getPath)
-						.collect(Collectors.joining(System.lineSeparator().concat(" ")))))
-				.collect(Collectors.toList());
-		Files.write(outputFile, lines, StandardOpenOption.CREATE_NEW);
+	private List<Archive> archives() {
+		List<Archive> archives = new ArrayList<>(config.getSources());
+		archives.add(config.getTarget());
+		return archives;
 	}
 
 	public static void main(String[] args) {
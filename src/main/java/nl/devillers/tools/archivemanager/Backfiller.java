@@ -0,0 +1,289 @@
+package nl.devillers.tools.archivemanager;
+
+import lombok.NonNull;
+import lombok.RequiredArgsConstructor;
+import lombok.SneakyThrows;
+import lombok.extern.slf4j.Slf4j;
+import nl.devillers.tools.archivemanager.model.Archive;
+import nl.devillers.tools.archivemanager.model.Config;
+import nl.devillers.tools.archivemanager.model.FileSummary;
+import nl.devillers.tools.archivemanager.model.FingerprintStrategy;
+import org.springframework.stereotype.Component;
+
+import java.io.IOException;
+import java.io.Writer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.*;
+import java.nio.file.attribute.FileTime;
+import java.time.Instant;
+import java.time.ZoneId;
+import java.time.ZonedDateTime;
+import java.util.*;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.function.Function;
+import java.util.stream.Collectors;
+
+/**
+ * Copies missing files into the target. Files are transferred channel to channel, so the operating system can copy
+ * them without passing the content through the heap, and each copy is fingerprinted and compared with the index of
+ * the source before it is moved in place. Source devices are copied from in parallel, a few files at a time each.
+ * Every copied file is recorded in a journal, which lets an interrupted backfill skip what was already copied, and the
+ * copies are added to the index of the target directly instead of indexing the target again.
+ */
+@Component
+@RequiredArgsConstructor
+@Slf4j
+public class Backfiller {
+
+    private static final String PART_SUFFIX = ".part";
+
+    @NonNull Config config;
+    @NonNull Indexer indexer;
+
+    private final Set<Path> reserved = new HashSet<>();
+
+    /**
+     * Copies the given files into the target and returns the entries added to its index. The index of the target must
+     * have been prepared already.
+     */
+    @SneakyThrows
+    public List<FileSummary> backfill(List<FileSummary> missing) {
+        Archive target = config.getTarget();
+        Path journal = journal();
+        Map<String, FileSummary> copied = readJournal(journal);
+        List<FileSummary> pending = missing.stream()
+                .filter(x -> !copied.containsKey(x.getPath()))
+                .filter(x -> !ZipIndexer.isVirtual(x.getPath()))
+                .sorted(Comparator.comparing(FileSummary::getPath))
+                .collect(Collectors.toList());
+        if(copied.size() > 0) log.info("Resuming backfill, {} files were copied before", copied.size());
+        log.info("Copying {} files into {}", pending.size(), target.getRoot());
+
+        Map<Integer, List<FileSummary>> perDevice = pending.stream()
+                .collect(Collectors.groupingBy(devices(), LinkedHashMap::new, Collectors.toList()));
+        AtomicInteger count = new AtomicInteger();
+        List<ExecutorService> executors = new ArrayList<>();
+        try (Writer writer = Files.newBufferedWriter(journal, StandardCharsets.UTF_8, StandardOpenOption.CREATE, StandardOpenOption.APPEND)) {
+            for (List<FileSummary> files : perDevice.values()) {
+                ExecutorService executor = Executors.newFixedThreadPool(config.getBackfill().getParallelism());
+                executors.add(executor);
+                for (FileSummary file : files) {
+                    executor.execute(() -> {
+                        FileSummary copy = copy(file);
+                        if(copy == null) return;
+                        synchronized (writer) {
+                            record(writer, file, copy);
+                            copied.put(file.getPath(), copy);
+                        }
+                        if(count.incrementAndGet() % 100 == 0) log.info("Copied {} files", count);
+                    });
+                }
+            }
+            for (ExecutorService executor : executors) {
+                executor.shutdown();
+                executor.awaitTermination(Long.MAX_VALUE, TimeUnit.NANOSECONDS);
+            }
+        }
+        log.info("Copied {} of {} files", count, pending.size());
+
+        List<FileSummary> added = updateIndex(target, copied.values());
+        Files.delete(journal);
+        return added;
+    }
+
+    /**
+     * Adds copied files to the index of the target, except those it already holds, e.g. after being refreshed.
+     */
+    private List<FileSummary> updateIndex(Archive target, Collection<FileSummary> copies) throws IOException {
+        Map<Long, List<FileSummary>> index = indexer.loadIndex(target);
+        Set<String> indexed = index.values()
+                .stream()
+                .flatMap(Collection::stream)
+                .map(FileSummary::getPath)
+                .collect(Collectors.toSet());
+        List<FileSummary> added = copies.stream()
+                .filter(x -> !indexed.contains(x.getPath()))
+                .collect(Collectors.toList());
+        if(added.isEmpty()) return added;
+        added.forEach(x -> index.computeIfAbsent(x.getSize(), y -> new ArrayList<>()).add(x));
+        Indexer.save(target, index);
+        return added;
+    }
+
+    /**
+     * Copies a single file, returning its entry in the target, or null if it could not be copied or does not match
+     * its fingerprint anymore.
+     */
+    private FileSummary copy(FileSummary file) {
+        Path source = Paths.get(file.getPath());
+        Path destination = null;
+        Path part = null;
+        try {
+            destination = reserve(destination(file), file);
+            if(Files.exists(destination)) {
+                // Copied before, e.g. by hand or by a backfill interrupted before recording it
+                log.info("Keeping existing copy {}", destination);
+                return summarize(file, destination);
+            }
+            part = destination.resolveSibling(destination.getFileName() + PART_SUFFIX);
+            Files.createDirectories(destination.getParent());
+            try (FileChannel in = FileChannel.open(source, StandardOpenOption.READ);
+                 FileChannel out = FileChannel.open(part, StandardOpenOption.CREATE, StandardOpenOption.TRUNCATE_EXISTING, StandardOpenOption.WRITE)) {
+                long size = in.size();
+                long position = 0;
+                while(position < size) {
+                    position += in.transferTo(position, size - position, out);
+                }
+            }
+            if(file.getModified() != null) Files.setLastModifiedTime(part, FileTime.fromMillis(file.getModified()));
+            if(Files.size(part) != file.getSize() || !Fingerprinter.fingerprint(part, strategyOf(file)).equals(Optional.of(file.getFingerprint()))) {
+                log.warn("Copy of {} does not match its fingerprint, it may have changed since it was indexed", source);
+                Files.delete(part);
+                return null;
+            }
+            Files.move(part, destination, StandardCopyOption.ATOMIC_MOVE);
+            return summarize(file, destination);
+        } catch (IOException e) {
+            log.warn(String.format("Failed to copy file: %s", source), e);
+            try {
+                if(part != null) Files.deleteIfExists(part);
+            } catch (IOException ignored) {
+                // A leftover part is overwritten by the next attempt
+            }
+            return null;
+        } finally {
+            release(destination);
+        }
+    }
+
+    /**
+     * Entry of a copy in the index of the target, fingerprinted again if the target uses another strategy.
+     */
+    private FileSummary summarize(FileSummary file, Path destination) throws IOException {
+        FingerprintStrategy strategy = config.getTarget().getFingerprint();
+        String fingerprint = strategy == strategyOf(file) ? file.getFingerprint()
+                : Fingerprinter.fingerprint(destination, strategy).orElseThrow(() -> new IOException("Failed to fingerprint copy"));
+        FileSummary copy = new FileSummary(destination.toString(), file.getSize(), fingerprint,
+                Files.getLastModifiedTime(destination).toMillis());
+        copy.setContentHash(file.getContentHash());
+        copy.setExif(file.getExif());
+        return copy;
+    }
+
+    /**
+     * Location of a file in the target according to the configured layout.
+     */
+    Path destination(FileSummary file) {
+        Path path = Paths.get(file.getPath());
+        Path root = sourceOf(file)
+                .map(Archive::getRoot)
+                .orElse(path.getRoot() != null ? path.getRoot() : Paths.get(""));
+        Long time = file.getExif() != null && file.getExif().getCaptured() != null ? file.getExif().getCaptured() : file.getModified();
+        ZonedDateTime date = Instant.ofEpochMilli(time == null ? 0 : time).atZone(ZoneId.systemDefault());
+        String archive = root.getFileName() != null ? root.getFileName().toString() : root.toString().replaceAll("[^A-Za-z0-9]", "");
+        String relative = config.getBackfill().getLayout()
+                .replace("{archive}", archive)
+                .replace("{path}", root.relativize(path).toString())
+                .replace("{name}", path.getFileName().toString())
+                .replace("{year}", String.format("%04d", date.getYear()))
+                .replace("{month}", String.format("%02d", date.getMonthValue()));
+        return config.getTarget().getRoot().resolve(relative);
+    }
+
+    /**
+     * Claims a destination, renaming it to e.g. {@code IMG_0001 (2).jpg} if another file already has the same name.
+     * A file already there with the same size and fingerprint is claimed as is, so it is not copied twice.
+     */
+    private synchronized Path reserve(Path destination, FileSummary file) {
+        String name = destination.getFileName().toString();
+        int dot = name.lastIndexOf('.');
+        String base = dot > 0 ? name.substring(0, dot) : name;
+        String extension = dot > 0 ? name.substring(dot) : "";
+        Path candidate = destination;
+        for (int i = 2; reserved.contains(candidate) || (Files.exists(candidate) && !sameContent(candidate, file)); i++) {
+            candidate = destination.resolveSibling(base + " (" + i + ")" + extension);
+        }
+        reserved.add(candidate);
+        return candidate;
+    }
+
+    private synchronized void release(Path destination) {
+        if(destination != null) reserved.remove(destination);
+    }
+
+    /**
+     * The source archive a file belongs to, which is the one with the deepest root if archives are nested.
+     */
+    private Optional<Archive> sourceOf(FileSummary file) {
+        Path path = Paths.get(file.getPath());
+        return config.getSources().stream()
+                .filter(x -> path.startsWith(x.getRoot()))
+                .max(Comparator.comparingInt(x -> x.getRoot().getNameCount()));
+    }
+
+    private FingerprintStrategy strategyOf(FileSummary file) {
+        return sourceOf(file).map(Archive::getFingerprint).orElse(FingerprintStrategy.HEAD_TAIL);
+    }
+
+    private boolean sameContent(Path existing, FileSummary file) {
+        try {
+            return Files.size(existing) == file.getSize()
+                    && Fingerprinter.fingerprint(existing, strategyOf(file)).equals(Optional.of(file.getFingerprint()));
+        } catch (IOException e) {
+            return false;
+        }
+    }
+
+    /**
+     * Assigns files to the device their source archive lives on.
+     */
+    private Function<FileSummary, Integer> devices() {
+        List<List<Archive>> devices = new ArrayList<>(IndexScheduler.devices(config.getSources()));
+        return file -> {
+            for (int i = 0; i < devices.size(); i++) {
+                if(devices.get(i).stream().anyMatch(x -> x.contains(file.getPath()))) return i;
+            }
+            return -1;
+        };
+    }
+
+    private Path journal() {
+        Path journal = config.getBackfill().getJournal();
+        if(journal != null) return journal;
+        Path index = config.getTarget().getIndex();
+        return index.resolveSibling(index.getFileName() + ".backfill");
+    }
+
+    /**
+     * Reads the entries of all files copied by an earlier, interrupted backfill, keyed by the path of their source.
+     * Each line holds the source, destination, size, modification time and fingerprint separated by tabs; an
+     * incomplete last line is ignored.
+     */
+    private static Map<String, FileSummary> readJournal(Path journal) throws IOException {
+        Map<String, FileSummary> copied = new HashMap<>();
+        if(!Files.exists(journal)) return copied;
+        String content = new String(Files.readAllBytes(journal), StandardCharsets.UTF_8);
+        int start = 0;
+        for (int end = content.indexOf('\n'); end >= 0; start = end + 1, end = content.indexOf('\n', start)) {
+            String[] fields = content.substring(start, end).split("\t");
+            if(fields.length != 5) continue;
+            copied.put(fields[0], new FileSummary(fields[1], Long.parseLong(fields[2]), fields[4], Long.parseLong(fields[3])));
+        }
+        return copied;
+    }
+
+    private static void record(Writer writer, FileSummary file, FileSummary copy) {
+        try {
+            writer.write(String.join("\t", file.getPath(), copy.getPath(), copy.getSize().toString(),
+                    copy.getModified().toString(), copy.getFingerprint()));
+            writer.write('\n');
+            writer.flush();
+        } catch (IOException e) {
+            log.warn(String.format("Failed to record copy in journal: %s", copy.getPath()), e);
+        }
+    }
+}
@@ -0,0 +1,91 @@
+package nl.devillers.tools.archivemanager;
+
+import nl.devillers.tools.archivemanager.model.FileSummary;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.RecursiveAction;
+import java.util.function.Function;
+import java.util.function.Predicate;
+import java.util.stream.Collectors;
+
+/**
+ * Processes the size buckets of an index on the fork-join pool. Work is split by the number of files in the buckets
+ * rather than by the number of buckets, as indexes of photos or music have a few sizes shared by thousands of files and
+ * many sizes held by a single file. Buckets too big for a single task are left to the function to process in parallel,
+ * e.g. with {@link #filter}.
+ */
+final class Buckets {
+
+    /**
+     * Number of files below which a range of buckets is processed by a single task.
+     */
+    static final int SPLIT_WEIGHT = 8192;
+
+    private Buckets() {
+    }
+
+    /**
+     * Applies a function to every bucket, returning the results in the order of the buckets.
+     */
+    @SuppressWarnings("unchecked")
+    static <R> List<R> map(List<List<FileSummary>> buckets, Function<List<FileSummary>, R> function) {
+        // Cumulative weight of the buckets before each bucket, counting every bucket as at least one file
+        long[] weights = new long[buckets.size() + 1];
+        for (int i = 0; i < buckets.size(); i++) {
+            weights[i + 1] = weights[i] + buckets.get(i).size() + 1;
+        }
+        Object[] results = new Object[buckets.size()];
+        ForkJoinPool.commonPool().invoke(new Task<>(buckets, weights, function, results, 0, buckets.size()));
+        return (List<R>)Arrays.asList(results);
+    }
+
+    /**
+     * Keeps the files of a bucket matching the predicate, in a new list. Buckets bigger than {@link #SPLIT_WEIGHT} are
+     * filtered in parallel as well.
+     */
+    static List<FileSummary> filter(List<FileSummary> bucket, Predicate<FileSummary> predicate) {
+        if(bucket.size() > SPLIT_WEIGHT) return bucket.parallelStream().filter(predicate).collect(Collectors.toList());
+        List<FileSummary> result = new ArrayList<>();
+        for (FileSummary file : bucket) {
+            if(predicate.test(file)) result.add(file);
+        }
+        return result;
+    }
+
+    private static class Task<R> extends RecursiveAction {
+        private final List<List<FileSummary>> buckets;
+        private final long[] weights;
+        private final Function<List<FileSummary>, R> function;
+        private final Object[] results;
+        private final int from;
+        private final int to;
+
+        Task(List<List<FileSummary>> buckets, long[] weights, Function<List<FileSummary>, R> function, Object[] results, int from, int to) {
+            this.buckets = buckets;
+            this.weights = weights;
+            this.function = function;
+            this.results = results;
+            this.from = from;
+            this.to = to;
+        }
+
+        @Override
+        protected void compute() {
+            if(to - from <= 1 || weights[to] - weights[from] <= SPLIT_WEIGHT) {
+                for (int i = from; i < to; i++) {
+                    results[i] = function.apply(buckets.get(i));
+                }
+                return;
+            }
+            // Split where half of the weight lies, so both halves hold about as many files
+            int middle = Arrays.binarySearch(weights, from + 1, to, (weights[from] + weights[to]) / 2);
+            if(middle < 0) middle = -middle - 1;
+            middle = Math.max(from + 1, Math.min(to - 1, middle));
+            invokeAll(new Task<>(buckets, weights, function, results, from, middle),
+                    new Task<>(buckets, weights, function, results, middle, to));
+        }
+    }
+}
@@ -0,0 +1,232 @@
+package nl.devillers.tools.archivemanager;
+
+import com.fasterxml.jackson.databind.ObjectMapper;
+import com.fasterxml.jackson.databind.SerializationFeature;
+import lombok.Getter;
+import lombok.NonNull;
+import lombok.RequiredArgsConstructor;
+import lombok.SneakyThrows;
+import lombok.extern.slf4j.Slf4j;
+import nl.devillers.tools.archivemanager.model.*;
+import org.springframework.stereotype.Component;
+
+import java.io.IOException;
+import java.nio.file.*;
+import java.nio.file.attribute.BasicFileAttributes;
+import java.util.*;
+import java.util.concurrent.ForkJoinPool;
+import java.util.stream.Collectors;
+
+/**
+ * Estimates how much of a source is missing from the target without indexing it. The source is only listed, which
+ * reads directories but no file content, and files are then drawn at random and probed against the index of the
+ * target one batch at a time. A file whose size does not occur in the target is missing without reading it, any other
+ * file is fingerprinted. Sampling stops as soon as the confidence intervals are narrow enough, so a drive that is
+ * almost completely backed up or hardly at all is judged after a few hundred files.
+ */
+@Component
+@RequiredArgsConstructor
+@Slf4j
+public class Estimator {
+
+    /**
+     * Normal quantile of a two-sided 95% confidence interval.
+     */
+    static final double Z = 1.96;
+
+    private static final ObjectMapper mapper = new ObjectMapper().enable(SerializationFeature.INDENT_OUTPUT);
+
+    @NonNull Config config;
+    @NonNull Indexer indexer;
+    @NonNull Filters filters;
+
+    /**
+     * Estimates every source against the target, preparing only the index of the target.
+     */
+    public List<Estimate> estimate() {
+        Archive target = config.getTarget();
+        indexer.prepare(target);
+        CompactIndex index = filters.applyFilters(indexer.loadCompactIndex(target));
+        return config.getSources().stream()
+                .map(x -> estimate(x, index, target.getFingerprint()))
+                .collect(Collectors.toList());
+    }
+
+    @SneakyThrows
+    Estimate estimate(Archive source, CompactIndex target, FingerprintStrategy strategy) {
+        Estimation settings = config.getEstimation();
+        List<FileSummary> files = list(source);
+        Sample sample = new Sample(files.size(), files.stream().mapToLong(FileSummary::getSize).sum());
+        log.info("Sampling {} files / {} bytes of {}", sample.getFiles(), sample.getBytes(), source.getRoot());
+        Random random = settings.getSeed() != null ? new Random(settings.getSeed()) : new Random();
+        long deadline = System.nanoTime() + settings.getMaxDuration().toNanos();
+        ForkJoinPool pool = new ForkJoinPool(source.getParallelism());
+        try {
+            int drawn = 0;
+            while(drawn < files.size() && !sample.converged(settings) && System.nanoTime() < deadline) {
+                // Draw the next batch without replacement, shuffling only as far as needed
+                int batchSize = Math.min(source.getParallelism(), files.size() - drawn);
+                for (int i = drawn; i < drawn + batchSize; i++) {
+                    Collections.swap(files, i, i + random.nextInt(files.size() - i));
+                }
+                List<FileSummary> batch = files.subList(drawn, drawn + batchSize);
+                drawn += batchSize;
+                List<Optional<Boolean>> missing = pool.submit(() -> batch.parallelStream()
+                        .map(x -> missing(x, target, strategy))
+                        .collect(Collectors.toList())).get();
+                for (int i = 0; i < batch.size(); i++) {
+                    long size = batch.get(i).getSize();
+                    if(missing.get(i).isPresent()) sample.add(size, missing.get(i).get());
+                    else sample.skip(size);
+                }
+            }
+        } finally {
+            pool.shutdown();
+        }
+        Estimate estimate = sample.estimate(source.getRoot().toString(), settings);
+        log.info("Estimated {} of {} files missing from {} ({} - {}), {} bytes ({} - {}), {} sampled{}",
+                String.format("%.1f%%", estimate.getMissingFraction() * 100), estimate.getFiles(), estimate.getArchive(),
+                String.format("%.1f%%", estimate.getMissingFractionLow() * 100), String.format("%.1f%%", estimate.getMissingFractionHigh() * 100),
+                estimate.getMissingBytes(), estimate.getMissingBytesLow(), estimate.getMissingBytesHigh(), estimate.getSampled(),
+                estimate.isConverged() ? "" : ", not converged");
+        return estimate;
+    }
+
+    /**
+     * Whether a file is missing from the target, or empty if it cannot be read.
+     */
+    private static Optional<Boolean> missing(FileSummary file, CompactIndex target, FingerprintStrategy strategy) {
+        if(target.from(file.getSize()) >= target.to(file.getSize())) return Optional.of(true);
+        return Fingerprinter.fingerprint(Paths.get(file.getPath()), strategy)
+                .map(x -> !target.contains(file.getSize(), x));
+    }
+
+    /**
+     * Lists the files of an archive that pass the filters, without fingerprinting them.
+     */
+    private List<FileSummary> list(Archive archive) throws IOException {
+        List<FileSummary> files = new ArrayList<>();
+        Files.walkFileTree(archive.getRoot(), new SimpleFileVisitor<Path>() {
+            @Override
+            public FileVisitResult preVisitDirectory(Path dir, BasicFileAttributes attrs) {
+                String path = dir.toString();
+                if(archive.getExcludes().stream().anyMatch(x -> x.matcher(path).find())) return FileVisitResult.SKIP_SUBTREE;
+                return FileVisitResult.CONTINUE;
+            }
+
+            @Override
+            public FileVisitResult visitFile(Path file, BasicFileAttributes attrs) {
+                if(!attrs.isRegularFile()) return FileVisitResult.CONTINUE;
+                FileSummary summary = new FileSummary(file.toString(), attrs.size(), null);
+                if(filters.test(summary)) files.add(summary);
+                return FileVisitResult.CONTINUE;
+            }
+
+            @Override
+            public FileVisitResult visitFileFailed(Path file, IOException exc) {
+                log.warn(String.format("Failed to list file: %s", file), exc);
+                return FileVisitResult.CONTINUE;
+            }
+        });
+        return files;
+    }
+
+    /**
+     * Writes the estimates as JSON.
+     */
+    @SneakyThrows
+    public void write(Path output, List<Estimate> estimates) {
+        Files.write(output, mapper.writeValueAsBytes(estimates));
+        log.info("Wrote estimates to {}", output);
+    }
+
+    /**
+     * Running totals of a sample drawn without replacement from a population of files. The missing fraction gets a
+     * Wilson score interval, which stays meaningful when few or no missing files were drawn, and the missing bytes a
+     * normal interval around the expansion estimator. Both are narrowed by the finite population correction, so they
+     * close once every file was drawn.
+     */
+    static class Sample {
+        @Getter
+        private long files;
+        @Getter
+        private long bytes;
+        private long sampled;
+        private long missing;
+        private double missingBytes;
+        private double missingBytesSquared;
+
+        Sample(long files, long bytes) {
+            this.files = files;
+            this.bytes = bytes;
+        }
+
+        void add(long size, boolean isMissing) {
+            sampled++;
+            if(!isMissing) return;
+            missing++;
+            missingBytes += size;
+            missingBytesSquared += (double)size * size;
+        }
+
+        /**
+         * Removes a file that could not be read from the population.
+         */
+        void skip(long size) {
+            files--;
+            bytes -= size;
+        }
+
+        double fraction() {
+            return sampled == 0 ? 0 : (double)missing / sampled;
+        }
+
+        double[] fractionInterval() {
+            if(sampled == 0) return new double[] {0, 1};
+            double p = fraction();
+            double n = sampled;
+            double z2 = Z * Z;
+            double center = (p + z2 / (2 * n)) / (1 + z2 / n);
+            double half = Z * Math.sqrt(correction() * (p * (1 - p) / n + z2 / (4 * n * n))) / (1 + z2 / n);
+            if(sampled >= files) return new double[] {p, p};
+            return new double[] {Math.max(0, center - half), Math.min(1, center + half)};
+        }
+
+        double missingBytes() {
+            return sampled == 0 ? 0 : files * missingBytes / sampled;
+        }
+
+        double[] missingBytesInterval() {
+            if(sampled < 2) return new double[] {0, bytes};
+            double mean = missingBytes / sampled;
+            double variance = Math.max(0, (missingBytesSquared - sampled * mean * mean) / (sampled - 1));
+            double half = Z * files * Math.sqrt(correction() * variance / sampled);
+            double estimate = missingBytes();
+            return new double[] {Math.max(0, estimate - half), Math.min(bytes, estimate + half)};
+        }
+
+        boolean converged(Estimation settings) {
+            if(sampled < Math.min(settings.getMinSamples(), files)) return false;
+            double[] fraction = fractionInterval();
+            double[] missingBytes = missingBytesInterval();
+            double estimate = missingBytes();
+            return Math.max(fraction() - fraction[0], fraction[1] - fraction()) <= settings.getTolerance()
+                    && Math.max(estimate - missingBytes[0], missingBytes[1] - estimate) <= settings.getTolerance() * bytes;
+        }
+
+        Estimate estimate(String archive, Estimation settings) {
+            double[] fraction = fractionInterval();
+            double[] missingBytes = missingBytesInterval();
+            return new Estimate(archive, files, bytes, sampled, missing, fraction(), fraction[0], fraction[1],
+                    Math.round(missingBytes()), Math.round(missingBytes[0]), Math.round(missingBytes[1]),
+                    converged(settings) || sampled >= files);
+        }
+
+        /**
+         * Finite population correction, the share of the population not sampled yet.
+         */
+        private double correction() {
+            return files <= 1 ? 0 : Math.max(0, (double)(files - sampled) / (files - 1));
+        }
+    }
+}
@@ -0,0 +1,89 @@
+package nl.devillers.tools.archivemanager;
+
+import com.drew.imaging.FileType;
+import com.drew.imaging.ImageMetadataReader;
+import com.drew.metadata.Metadata;
+import com.drew.metadata.exif.ExifIFD0Directory;
+import com.drew.metadata.exif.ExifSubIFDDirectory;
+import lombok.extern.slf4j.Slf4j;
+import nl.devillers.tools.archivemanager.model.ExifSummary;
+import org.springframework.stereotype.Component;
+
+import java.io.InputStream;
+import java.nio.file.Path;
+import java.util.*;
+import java.util.stream.Collectors;
+
+@Component
+@Slf4j
+public class ExifExtractor {
+
+    /**
+     * Image formats that may carry EXIF data. Other formats known to metadata-extractor, like PDF or MP3, are skipped so
+     * indexing does not parse files that will never match an EXIF filter.
+     */
+    private static final Set<String> SUPPORTED_EXTENSIONS = EnumSet.of(FileType.Jpeg, FileType.Tiff, FileType.Png,
+                    FileType.WebP, FileType.Heif, FileType.Psd, FileType.Arw, FileType.Crw, FileType.Cr2, FileType.Nef,
+                    FileType.Orf, FileType.Raf, FileType.Rw2)
+            .stream()
+            .map(FileType::getAllExtensions)
+            .filter(Objects::nonNull)
+            .flatMap(Arrays::stream)
+            .map(x -> x.toLowerCase(Locale.ROOT))
+            .collect(Collectors.toSet());
+
+    public static Set<String> getSupportedExtensions() {
+        return SUPPORTED_EXTENSIONS;
+    }
+
+    public static boolean isSupported(String path) {
+        return SUPPORTED_EXTENSIONS.contains(extension(path));
+    }
+
+    /**
+     * Lower case extension of a path without the dot, or an empty string if it has none.
+     */
+    public static String extension(String path) {
+        int dot = path.lastIndexOf('.');
+        int separator = Math.max(path.lastIndexOf('/'), path.lastIndexOf('\\'));
+        return dot > separator ? path.substring(dot + 1).toLowerCase(Locale.ROOT) : "";
+    }
+
+    /**
+     * Reads camera make, model and capture date from an image. Files that cannot be parsed produce an empty summary,
+     * so they are not read again.
+     */
+    public static ExifSummary extract(Path path) {
+        try {
+            return summarize(ImageMetadataReader.readMetadata(path.toFile()));
+        } catch (Exception e) {
+            log.debug(String.format("Error reading EXIF data: %s", path), e);
+            return new ExifSummary();
+        }
+    }
+
+    /**
+     * Same as {@link #extract(Path)} for an image that is not a file of its own, e.g. an entry of a zip file.
+     */
+    public static ExifSummary extract(InputStream in, String name) {
+        try {
+            return summarize(ImageMetadataReader.readMetadata(in));
+        } catch (Exception e) {
+            log.debug(String.format("Error reading EXIF data: %s", name), e);
+            return new ExifSummary();
+        }
+    }
+
+    private static ExifSummary summarize(Metadata metadata) {
+        ExifSummary summary = new ExifSummary();
+        ExifIFD0Directory directory = metadata.getFirstDirectoryOfType(ExifIFD0Directory.class);
+        if(directory != null) {
+            summary.setMake(directory.getString(ExifIFD0Directory.TAG_MAKE));
+            summary.setModel(directory.getString(ExifIFD0Directory.TAG_MODEL));
+        }
+        ExifSubIFDDirectory subDirectory = metadata.getFirstDirectoryOfType(ExifSubIFDDirectory.class);
+        Date captured = subDirectory == null ? null : subDirectory.getDateOriginal();
+        if(captured != null) summary.setCaptured(captured.getTime());
+        return summary;
+    }
+}
@@ -0,0 +1,70 @@
+package nl.devillers.tools.archivemanager;
+
+import java.util.*;
+import java.util.regex.Matcher;
+import java.util.regex.Pattern;
+import java.util.stream.Collectors;
+
+/**
+ * Compiled form of the configured regex filters. Rules that only look at the file extension, like
+ * {@code (?i)\\.+\.(jpg|jpeg|jpe)$}, are answered with a set lookup. All other rules are merged into a single pattern,
+ * so each path is scanned once instead of once per rule. A path passes if it matches any rule.
+ */
+public class FilterPlan {
+
+    /**
+     * Recognizes extension rules: an optional case insensitive flag, an optional {@code \\.+} (a backslash followed by
+     * at least one character) or {@code .*} prefix and a literal dot followed by one or more alternative extensions.
+     */
+    private static final Pattern EXTENSION_RULE = Pattern.compile("^(\\(\\?i\\))?(\\\\\\\\\\.\\+|\\.\\*)?\\\\\\.(?:\\(([A-Za-z0-9]+(?:\\|[A-Za-z0-9]+)*)\\)|([A-Za-z0-9]+))\\$$");
+
+    private final List<ExtensionRule> extensionRules = new ArrayList<>();
+    private final Pattern merged;
+
+    public FilterPlan(List<Pattern> filters) {
+        List<String> remaining = new ArrayList<>();
+        for (Pattern filter : filters) {
+            Matcher matcher = EXTENSION_RULE.matcher(filter.pattern());
+            if(matcher.matches() && filter.flags() == 0) {
+                extensionRules.add(new ExtensionRule(matcher.group(1) != null, "\\\\.+".equals(matcher.group(2)), extensions(matcher)));
+            } else {
+                remaining.add(String.format("(?:%s)", filter.pattern()));
+            }
+        }
+        merged = remaining.isEmpty() ? null : Pattern.compile(String.join("|", remaining));
+    }
+
+    private static String[] extensions(Matcher matcher) {
+        return matcher.group(3) != null ? matcher.group(3).split("\\|") : new String[] {matcher.group(4)};
+    }
+
+    public boolean test(String path) {
+        for (ExtensionRule rule : extensionRules) {
+            if(rule.test(path)) return true;
+        }
+        return merged != null && merged.matcher(path).find();
+    }
+
+    private static class ExtensionRule {
+        private final boolean ignoreCase;
+        private final boolean afterBackslash;
+        private final Set<String> extensions;
+
+        ExtensionRule(boolean ignoreCase, boolean afterBackslash, String[] extensions) {
+            this.ignoreCase = ignoreCase;
+            this.afterBackslash = afterBackslash;
+            this.extensions = Arrays.stream(extensions)
+                    .map(x -> ignoreCase ? x.toLowerCase(Locale.ROOT) : x)
+                    .collect(Collectors.toSet());
+        }
+
+        boolean test(String path) {
+            int dot = path.lastIndexOf('.');
+            if(dot < 0) return false;
+            String extension = path.substring(dot + 1);
+            if(!extensions.contains(ignoreCase ? extension.toLowerCase(Locale.ROOT) : extension)) return false;
+            // A backslash followed by at least one character has to precede the dot, which holds for any Windows path
+            return !afterBackslash || (path.indexOf('\\') >= 0 && path.indexOf('\\') < dot - 1);
+        }
+    }
+}
@@ -1,74 +1,99 @@
 package nl.devillers.tools.archivemanager;
 
-import com.drew.imaging.FileType;
-import com.drew.imaging.ImageMetadataReader;
-import com.drew.metadata.Metadata;
-import com.drew.metadata.exif.ExifIFD0Directory;
-import lombok.AllArgsConstructor;
+import lombok.Getter;
 import lombok.NonNull;
 import lombok.extern.slf4j.Slf4j;
+import nl.devillers.tools.archivemanager.model.CompactIndex;
 import nl.devillers.tools.archivemanager.model.Config;
 import nl.devillers.tools.archivemanager.model.FileSummary;
 import org.springframework.stereotype.Component;
-import org.springframework.util.StringUtils;
 
-import java.io.File;
-import java.util.Arrays;
-import java.util.EnumSet;
-import java.util.List;
-import java.util.Map;
+import java.util.*;
+import java.util.function.Predicate;
 import java.util.stream.Collectors;
+import java.util.stream.IntStream;
 
 @Component
-@AllArgsConstructor
 @Slf4j
 public class Filters {
 
     @NonNull Config config;
 
-    public void applyFilters(Map<Long, List<FileSummary>> index) {
-        if(config.getIgnoreEmptyFiles()) {
-            index.values().forEach(x -> x.removeIf(y -> y.getSize() == 0));
-        }
-        index.values().forEach(x -> x.removeIf(y -> !regexFilter(y)));
+    @Getter
+    private final FilterPlan plan;
+
+    private final Set<String> exifExtensions;
+
+    public Filters(@NonNull Config config) {
+        this.config = config;
+        this.plan = new FilterPlan(config.getRegexFilters());
+        this.exifExtensions = configuredExifExtensions();
     }
 
-    private Boolean regexFilter(FileSummary file) {
-        return config.getRegexFilters().stream().anyMatch(x -> x.matcher(file.getPath()).find());
+    /**
+     * Keeps files that are not empty (if configured), match a regex filter and, if the EXIF filter is enabled, pass it
+     * too, all in a single pass over the size buckets in parallel. Returns a new index holding only the buckets that
+     * keep any files; the given index is left untouched, so it can be filtered again for another report.
+     */
+    public Map<Long, List<FileSummary>> filter(Map<Long, List<FileSummary>> index) {
+        Predicate<FileSummary> predicate = predicate();
+        List<Long> sizes = new ArrayList<>(index.keySet());
+        List<List<FileSummary>> filtered = Buckets.map(sizes.stream().map(index::get).collect(Collectors.toList()),
+                x -> Buckets.filter(x, predicate));
+        Map<Long, List<FileSummary>> result = new HashMap<>();
+        for (int i = 0; i < sizes.size(); i++) {
+            if(!filtered.get(i).isEmpty()) result.put(sizes.get(i), filtered.get(i));
+        }
+        return result;
     }
 
-    public void applyExifFilter(Map<Long, List<FileSummary>> index) {
+    /**
+     * Whether a single file passes all filters applied by {@link #filter(Map)}, including the EXIF filter if enabled.
+     */
+    public Predicate<FileSummary> predicate() {
+        boolean exif = config.getExifFilter() != null && Boolean.TRUE.equals(config.getExifFilter().getEnabled());
+        return exif ? x -> test(x) && exifFilter(x) : this::test;
+    }
 
-        index.values().forEach(x -> x.removeIf(y -> !exifFilter(y)));
+    /**
+     * Whether a single file passes the filters applied by {@link #filter(Map)}, apart from the EXIF filter.
+     */
+    public boolean test(FileSummary file) {
+        return !(Boolean.TRUE.equals(config.getIgnoreEmptyFiles()) && file.getSize() == 0) && plan.test(file.getPath());
     }
 
-    private Boolean exifFilter(FileSummary file) {
-        if(isExifSupportedFileType(file)) {
-            try {
-                Metadata metadata = ImageMetadataReader.readMetadata(new File(file.getPath()));
-                ExifIFD0Directory directory = metadata.getFirstDirectoryOfType(ExifIFD0Directory.class);
-                return directory != null && (directory.containsTag(ExifIFD0Directory.TAG_MAKE) || directory.containsTag(ExifIFD0Directory.TAG_MODEL));
-                //return metadata.containsDirectoryOfType(ExifIFD0Directory.class) || metadata.containsDirectoryOfType(ExifSubIFDDirectory.class);
-            } catch (Exception e) {
-                //log.warn("Error reading EXIF data", e);
-            }
-        }
-        return false;
+    /**
+     * Same as {@link #filter(Map)} without the EXIF filter, evaluating the filters of all entries in parallel before
+     * copying those that pass into a new index.
+     */
+    public CompactIndex applyFilters(CompactIndex index) {
+        boolean ignoreEmptyFiles = Boolean.TRUE.equals(config.getIgnoreEmptyFiles());
+        boolean[] keep = new boolean[index.count()];
+        IntStream.range(0, index.count())
+                .parallel()
+                .forEach(x -> keep[x] = !(ignoreEmptyFiles && index.size(x) == 0) && plan.test(index.path(x)));
+        return index.filter(x -> keep[x]);
     }
 
-    private Boolean isExifSupportedFileType(FileSummary file) {
-        return getConfiguredExifExtensions().stream().anyMatch(x -> StringUtils.endsWithIgnoreCase(file.getPath(), ".".concat(x)));
+    /**
+     * Whether a file is an image taken by a camera, based on the EXIF data captured while indexing. Indexes created
+     * before that need {@link Indexer#backfillExif} first, otherwise their images are filtered out.
+     */
+    public boolean exifFilter(FileSummary file) {
+        return exifExtensions.contains(ExifExtractor.extension(file.getPath()))
+                && file.getExif() != null
+                && file.getExif().hasCamera();
     }
 
-    private List<String> getConfiguredExifExtensions() {
+    private Set<String> configuredExifExtensions() {
+        if(config.getExifFilter() == null || config.getExifFilter().getExtensions() == null) return Collections.emptySet();
         Boolean allExtensions = config.getExifFilter().getExtensions().stream().anyMatch(x -> "*".equals(x));
         if(allExtensions) {
-            return EnumSet.allOf(FileType.class)
-                    .stream()
-                    .map(FileType::getAllExtensions)
-                    .flatMap(Arrays::stream)
-                    .collect(Collectors.toList());
+            return ExifExtractor.getSupportedExtensions();
         }
-        return config.getExifFilter().getExtensions();
+        return config.getExifFilter().getExtensions()
+                .stream()
+                .map(x -> x.toLowerCase(Locale.ROOT))
+                .collect(Collectors.toSet());
     }
 }
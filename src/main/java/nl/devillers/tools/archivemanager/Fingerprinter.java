@@ -1,39 +1,289 @@
 package nl.devillers.tools.archivemanager;
 
 import lombok.extern.slf4j.Slf4j;
+import nl.devillers.tools.archivemanager.model.FingerprintStrategy;
+import org.apache.commons.codec.binary.Hex;
 import org.apache.commons.codec.digest.DigestUtils;
 import org.springframework.stereotype.Component;
 
-import java.io.File;
+import java.io.EOFException;
 import java.io.IOException;
-import java.io.RandomAccessFile;
-import java.nio.file.Files;
+import java.io.InputStream;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
 import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.security.MessageDigest;
 import java.util.Optional;
+import java.util.concurrent.atomic.LongAdder;
 
 @Component
 @Slf4j
 public class Fingerprinter {
     private static final int CHUNK_SIZE = 1024;
+    private static final int SAMPLES = 16;
+    private static final long PRIME_SEED = 0x9E3779B97F4A7C15L;
+    private static final int CONTENT_BUFFER_SIZE = 64 * 1024;
+
+    /**
+     * Buffers and digests are reused by every file fingerprinted on the same thread, so hashing lots of small files
+     * does not allocate anything beyond the resulting digest.
+     */
+    private static final ThreadLocal<Engine> engines = ThreadLocal.withInitial(Engine::new);
+
+    private static final LongAdder bytesRead = new LongAdder();
 
     public static Optional<String> fingerprint(Path path) {
-        File file = path.toFile();
-        byte[] content;
-        try {
-            if(file.length() > CHUNK_SIZE * 2) {
-                content = new byte[2 * CHUNK_SIZE];
-                RandomAccessFile raf = new RandomAccessFile(file, "r");
-                raf.read(content, 0, CHUNK_SIZE);
-                raf.seek(file.length() - CHUNK_SIZE);
-                raf.read(content, CHUNK_SIZE, CHUNK_SIZE);
-                raf.close();
-            } else {
-                content = Files.readAllBytes(path);
-            }
+        return fingerprint(path, FingerprintStrategy.HEAD_TAIL);
+    }
+
+    public static Optional<String> fingerprint(Path path, FingerprintStrategy strategy) {
+        return digest(path, strategy).map(Hex::encodeHexString);
+    }
+
+    /**
+     * Computes the binary SHA-1 digest of the first and last {@link #CHUNK_SIZE} bytes of a file, or of the entire file
+     * if it is no larger than two chunks.
+     */
+    public static Optional<byte[]> digest(Path path) {
+        return digest(path, FingerprintStrategy.HEAD_TAIL);
+    }
+
+    public static Optional<byte[]> digest(Path path, FingerprintStrategy strategy) {
+        try (FileChannel channel = FileChannel.open(path, StandardOpenOption.READ)) {
+            return Optional.of(engines.get().fingerprint(channel, strategy));
         } catch (IOException e) {
             log.warn(String.format("Failed to fingerprint file: %s", path), e);
             return Optional.empty();
         }
-        return Optional.of(DigestUtils.sha1Hex(content));
+    }
+
+    /**
+     * Computes the same digest as {@link #digest(Path)} from a stream of the given length, e.g. a compressed entry of a
+     * zip file. The part between the first and last chunk is skipped, which is cheap for streams that support seeking.
+     */
+    public static byte[] digest(InputStream in, long size) throws IOException {
+        return digest(in, size, FingerprintStrategy.HEAD_TAIL);
+    }
+
+    public static byte[] digest(InputStream in, long size, FingerprintStrategy strategy) throws IOException {
+        return engines.get().fingerprint(in, size, strategy);
+    }
+
+    /**
+     * Whether the fingerprint of a file of the given size covers its entire content, in which case it equals the
+     * {@link #contentHash(Path)} of that file.
+     */
+    public static boolean coversContent(long size) {
+        return coversContent(size, FingerprintStrategy.HEAD_TAIL);
+    }
+
+    public static boolean coversContent(long size, FingerprintStrategy strategy) {
+        switch (strategy) {
+            case FULL:
+                return true;
+            case SAMPLED:
+                return size <= CHUNK_SIZE * SAMPLES;
+            case FAST:
+                return false;
+            default:
+                return size <= CHUNK_SIZE * 2;
+        }
+    }
+
+    /**
+     * Hashes the full content of a file. Much more expensive than {@link #fingerprint(Path)} for large files, so only
+     * used to verify files that cannot be told apart by size and fingerprint.
+     */
+    public static Optional<String> contentHash(Path path) {
+        try (FileChannel channel = FileChannel.open(path, StandardOpenOption.READ)) {
+            return Optional.of(Hex.encodeHexString(engines.get().contentHash(channel)));
+        } catch (IOException e) {
+            log.warn(String.format("Failed to hash file: %s", path), e);
+            return Optional.empty();
+        }
+    }
+
+    public static byte[] contentHash(InputStream in) throws IOException {
+        return engines.get().contentHash(in);
+    }
+
+    /**
+     * Total number of bytes read by all fingerprints and content hashes so far.
+     */
+    public static long getBytesRead() {
+        return bytesRead.sum();
+    }
+
+    /**
+     * Number of bytes read by fingerprints and content hashes computed on the calling thread. Reading it before and
+     * after a fingerprint tells how many bytes that fingerprint read, without any contention between threads.
+     */
+    public static long getThreadBytesRead() {
+        return engines.get().bytesRead;
+    }
+
+    private static class Engine {
+        private final MessageDigest digest = DigestUtils.getSha1Digest();
+        private final ByteBuffer chunks = ByteBuffer.allocateDirect(CHUNK_SIZE * 2);
+        private final ByteBuffer content = ByteBuffer.allocateDirect(CONTENT_BUFFER_SIZE);
+        private final byte[] window = new byte[CONTENT_BUFFER_SIZE];
+        private long bytesRead;
+
+        byte[] fingerprint(FileChannel channel, FingerprintStrategy strategy) throws IOException {
+            long size = channel.size();
+            if(strategy == FingerprintStrategy.FULL || (strategy == FingerprintStrategy.SAMPLED && coversContent(size, strategy))) {
+                return contentHash(channel);
+            }
+            if(strategy == FingerprintStrategy.SAMPLED) {
+                digest.reset();
+                content.clear();
+                for (int i = 0; i < SAMPLES; i++) {
+                    readFully(channel, content, sample(size, i), CHUNK_SIZE);
+                }
+                content.flip();
+                read(content.remaining());
+                digest.update(content);
+                return digest.digest();
+            }
+            chunks.clear();
+            if(size > CHUNK_SIZE * 2) {
+                readFully(channel, chunks, 0, CHUNK_SIZE);
+                readFully(channel, chunks, size - CHUNK_SIZE, CHUNK_SIZE);
+            } else {
+                readFully(channel, chunks, 0, (int)size);
+            }
+            chunks.flip();
+            int length = chunks.remaining();
+            read(length);
+            if(strategy == FingerprintStrategy.FAST) {
+                chunks.get(window, 0, length);
+                return fastHash(length);
+            }
+            digest.reset();
+            digest.update(chunks);
+            return digest.digest();
+        }
+
+        byte[] contentHash(FileChannel channel) throws IOException {
+            digest.reset();
+            content.clear();
+            while(channel.read(content) != -1) {
+                content.flip();
+                read(content.remaining());
+                digest.update(content);
+                content.clear();
+            }
+            return digest.digest();
+        }
+
+        private void read(long bytes) {
+            bytesRead += bytes;
+            Fingerprinter.bytesRead.add(bytes);
+        }
+
+        byte[] fingerprint(InputStream in, long size, FingerprintStrategy strategy) throws IOException {
+            if(strategy == FingerprintStrategy.FULL || (strategy == FingerprintStrategy.SAMPLED && coversContent(size, strategy))) {
+                return contentHash(in);
+            }
+            digest.reset();
+            if(strategy == FingerprintStrategy.SAMPLED) {
+                long position = 0;
+                for (int i = 0; i < SAMPLES; i++) {
+                    long offset = sample(size, i);
+                    skipFully(in, offset - position);
+                    readFully(in, i * CHUNK_SIZE, CHUNK_SIZE);
+                    position = offset + CHUNK_SIZE;
+                }
+                read(SAMPLES * CHUNK_SIZE);
+                digest.update(window, 0, SAMPLES * CHUNK_SIZE);
+                return digest.digest();
+            }
+            if(size > CHUNK_SIZE * 2) {
+                readFully(in, 0, CHUNK_SIZE);
+                skipFully(in, size - CHUNK_SIZE * 2);
+                readFully(in, CHUNK_SIZE, CHUNK_SIZE);
+            } else {
+                readFully(in, 0, (int)size);
+            }
+            int length = (int)Math.min(size, CHUNK_SIZE * 2);
+            read(length);
+            if(strategy == FingerprintStrategy.FAST) return fastHash(length);
+            digest.update(window, 0, length);
+            return digest.digest();
+        }
+
+        /**
+         * Offset of a sampled block. Blocks are spread evenly from the first to the last byte and never overlap, as
+         * files are only sampled when they hold more than {@link #SAMPLES} blocks.
+         */
+        private long sample(long size, int block) {
+            return (size - CHUNK_SIZE) * block / (SAMPLES - 1);
+        }
+
+        /**
+         * Two 64-bit xxHashes with different seeds over the start of the window, making a 128-bit hash. Written big
+         * endian straight into the digest, so nothing but the digest itself is allocated.
+         */
+        private byte[] fastHash(int length) {
+            byte[] hash = new byte[16];
+            putLong(hash, 0, XxHash.hash64(window, 0, length, 0));
+            putLong(hash, 8, XxHash.hash64(window, 0, length, PRIME_SEED));
+            return hash;
+        }
+
+        private static void putLong(byte[] bytes, int offset, long value) {
+            for (int i = 7; i >= 0; i--) {
+                bytes[offset + i] = (byte)value;
+                value >>>= 8;
+            }
+        }
+
+        byte[] contentHash(InputStream in) throws IOException {
+            digest.reset();
+            int read;
+            while((read = in.read(window)) != -1) {
+                read(read);
+                digest.update(window, 0, read);
+            }
+            return digest.digest();
+        }
+
+        private void readFully(InputStream in, int offset, int length) throws IOException {
+            int position = offset;
+            while(position < offset + length) {
+                int read = in.read(window, position, offset + length - position);
+                if(read == -1) throw new EOFException("Stream ended while fingerprinting");
+                position += read;
+            }
+        }
+
+        /**
+         * Skipping may not make progress on some streams, in which case the bytes are read and discarded instead.
+         */
+        private void skipFully(InputStream in, long length) throws IOException {
+            long remaining = length;
+            while(remaining > 0) {
+                long skipped = in.skip(remaining);
+                if(skipped <= 0) {
+                    if(in.read() == -1) throw new EOFException("Stream ended while fingerprinting");
+                    skipped = 1;
+                }
+                remaining -= skipped;
+            }
+        }
+
+        /**
+         * Positional reads may return fewer bytes than requested, so keep reading until the range is complete.
+         */
+        private void readFully(FileChannel channel, ByteBuffer buffer, long position, int length) throws IOException {
+            buffer.limit(buffer.position() + length);
+            long offset = position;
+            while(buffer.hasRemaining()) {
+                int read = channel.read(buffer, offset);
+                if(read == -1) throw new EOFException(String.format("File shrank while fingerprinting at %d", offset));
+                offset += read;
+            }
+        }
     }
 }
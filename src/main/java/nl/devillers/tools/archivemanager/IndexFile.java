@@ -0,0 +1,574 @@
+package nl.devillers.tools.archivemanager;
+
+import lombok.Getter;
+import nl.devillers.tools.archivemanager.model.CompactIndex;
+import nl.devillers.tools.archivemanager.model.ExifSummary;
+import nl.devillers.tools.archivemanager.model.FileSummary;
+import org.apache.commons.codec.DecoderException;
+import org.apache.commons.codec.binary.Hex;
+
+import java.io.*;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.util.*;
+import java.util.function.Consumer;
+
+/**
+ * Block structured on-disk index format. Entries are sorted by size, fingerprint and path and written in blocks of
+ * {@link #BLOCK_SIZE} entries, followed by a directory holding the offset and first size of every block:
+ *
+ * <pre>
+ * header    : magic (int) | version (int) | entry count (long) | property count (int) | (key | value)*
+ * block*    : entry*
+ * entry     : size (long) | fingerprint length (byte) | fingerprint | path length (int) | path (UTF-8) | modified (long)
+ *             | content hash length (byte) | content hash | EXIF flag (byte) [| make | model | captured (long)]
+ * string    : length (int, -1 for null) | string (UTF-8)
+ * directory : (block offset (long) | first size (long) | entry count (int))*
+ * footer    : directory offset (long) | block count (int) | magic (int)
+ * </pre>
+ *
+ * Properties hold metadata about the index as a whole, such as the source indexes a master index was built from. The
+ * writer streams entries straight to disk, and the reader only reads the directory up front, so a single size can be
+ * looked up by binary searching the directory and reading the blocks holding it, without decoding the rest of the
+ * index.
+ */
+public class IndexFile {
+
+    static final int MAGIC = 0x414D4958; // "AMIX"
+    static final int VERSION = 1;
+    static final int BLOCK_SIZE = 256;
+    static final int MAX_MERGE_WIDTH = 64;
+
+    private static final int FOOTER_LENGTH = 16;
+    private static final int DIRECTORY_ENTRY_LENGTH = 20;
+    private static final long NO_TIME = Long.MIN_VALUE;
+    private static final Comparator<FileSummary> ORDER = Comparator.comparing(FileSummary::getSize)
+            .thenComparing(FileSummary::getFingerprint)
+            .thenComparing(FileSummary::getPath);
+
+    /**
+     * Checks whether the given file starts with the magic number of this format, as opposed to a legacy FST index.
+     */
+    public static boolean isIndexFile(Path path) throws IOException {
+        try (DataInputStream in = new DataInputStream(Files.newInputStream(path))) {
+            return in.readInt() == MAGIC;
+        } catch (EOFException e) {
+            return false;
+        }
+    }
+
+    public static void write(Path path, Map<Long, List<FileSummary>> index) throws IOException {
+        write(path, index, Collections.emptyMap());
+    }
+
+    public static void write(Path path, Map<Long, List<FileSummary>> index, Map<String, String> properties) throws IOException {
+        try (Writer writer = new Writer(path, properties)) {
+            new TreeMap<>(index).values().forEach(bucket -> {
+                List<FileSummary> sorted = new ArrayList<>(bucket);
+                sorted.sort(ORDER);
+                sorted.forEach(writer::uncheckedAppend);
+            });
+        }
+    }
+
+    /**
+     * Reads a complete index sequentially, without mapping it into memory.
+     */
+    public static HashMap<Long, List<FileSummary>> read(Path path) throws IOException {
+        HashMap<Long, List<FileSummary>> index = new HashMap<>();
+        forEachEntry(path, x -> index.computeIfAbsent(x.size, y -> new ArrayList<>()).add(x.toSummary()));
+        return index;
+    }
+
+    /**
+     * Streams the entries of an index one at a time, so an index can be processed without holding it in memory.
+     */
+    public static void forEach(Path path, Consumer<FileSummary> consumer) throws IOException {
+        forEachEntry(path, x -> consumer.accept(x.toSummary()));
+    }
+
+    /**
+     * Reads a complete index sequentially into a {@link CompactIndex}, without creating intermediate objects.
+     */
+    public static CompactIndex readCompact(Path path) throws IOException {
+        CompactIndex.Builder builder = new CompactIndex.Builder();
+        forEachEntry(path, x -> builder.add(x.size, x.fingerprint, new String(x.path, StandardCharsets.UTF_8),
+                x.modified == NO_TIME ? null : x.modified, x.contentHash));
+        return builder.build();
+    }
+
+    /**
+     * Reads the properties from the header of an index, without reading any entries.
+     */
+    public static Map<String, String> readProperties(Path path) throws IOException {
+        try (DataInputStream in = new DataInputStream(new BufferedInputStream(Files.newInputStream(path)))) {
+            checkHeader(in.readInt(), in.readInt(), path);
+            in.readLong();
+            return readProperties(in);
+        }
+    }
+
+    private static Map<String, String> readProperties(DataInput in) throws IOException {
+        Map<String, String> properties = new LinkedHashMap<>();
+        int count = in.readInt();
+        for (int i = 0; i < count; i++) {
+            properties.put(readString(in), readString(in));
+        }
+        return properties;
+    }
+
+    private static void forEachEntry(Path path, Consumer<Entry> consumer) throws IOException {
+        try (DataInputStream in = new DataInputStream(new BufferedInputStream(Files.newInputStream(path), 1 << 16))) {
+            checkHeader(in.readInt(), in.readInt(), path);
+            long entryCount = in.readLong();
+            readProperties(in);
+            Entry entry = new Entry();
+            for (long i = 0; i < entryCount; i++) {
+                entry.read(in);
+                consumer.accept(entry);
+            }
+        }
+    }
+
+    /**
+     * Opens an index for lookups by size.
+     */
+    public static Reader open(Path path) throws IOException {
+        return new Reader(path);
+    }
+
+    /**
+     * Appends entries to a new index file. Entries must be appended in order of size, fingerprint and path.
+     */
+    public static class Writer implements Closeable {
+        private final Path path;
+        private final DataOutputStream out;
+        private final List<long[]> directory = new ArrayList<>();
+        private FileSummary last;
+        private long position;
+        private long entryCount;
+        private int blockCount;
+
+        public Writer(Path path) throws IOException {
+            this(path, Collections.emptyMap());
+        }
+
+        public Writer(Path path, Map<String, String> properties) throws IOException {
+            this.path = path;
+            this.out = new DataOutputStream(new BufferedOutputStream(Files.newOutputStream(path), 1 << 16));
+            out.writeInt(MAGIC);
+            out.writeInt(VERSION);
+            out.writeLong(0); // Entry count, patched on close
+            out.writeInt(properties.size());
+            position = 4 + 4 + 8 + 4;
+            for (Map.Entry<String, String> property : properties.entrySet()) {
+                position += writeString(out, property.getKey()) + writeString(out, property.getValue());
+            }
+        }
+
+        public void append(FileSummary summary) throws IOException {
+            if(last != null && ORDER.compare(last, summary) > 0) {
+                throw new IllegalArgumentException(String.format("Index entries out of order: %s", summary.getPath()));
+            }
+            if(blockCount == 0 || directory.get(directory.size() - 1)[2] == BLOCK_SIZE) {
+                directory.add(new long[] {position, summary.getSize(), 0});
+                blockCount++;
+            }
+            position += writeEntry(out, summary);
+            directory.get(directory.size() - 1)[2]++;
+            entryCount++;
+            last = summary;
+        }
+
+        private void uncheckedAppend(FileSummary summary) {
+            try {
+                append(summary);
+            } catch (IOException e) {
+                throw new UncheckedIOException(e);
+            }
+        }
+
+        @Override
+        public void close() throws IOException {
+            long directoryOffset = position;
+            for (long[] block : directory) {
+                out.writeLong(block[0]);
+                out.writeLong(block[1]);
+                out.writeInt((int)block[2]);
+            }
+            out.writeLong(directoryOffset);
+            out.writeInt(blockCount);
+            out.writeInt(MAGIC);
+            out.close();
+            try (FileChannel channel = FileChannel.open(path, StandardOpenOption.WRITE)) {
+                ByteBuffer count = ByteBuffer.allocate(8).putLong(0, entryCount);
+                channel.write(count, 8);
+            }
+        }
+    }
+
+    /**
+     * Writes an index from entries appended in any order, holding at most a fixed number of them in memory. Whenever
+     * that many entries were appended they are sorted and spilled to a run next to the index. Closing the writer
+     * merges the runs into the index, at most {@link #MAX_MERGE_WIDTH} at a time so the number of open files stays
+     * bounded, merging groups of runs into larger runs first if there are more.
+     */
+    public static class SortingWriter implements Closeable {
+        private final Path path;
+        private final Map<String, String> properties;
+        private final int runSize;
+        private final List<FileSummary> buffer = new ArrayList<>();
+        private final List<Path> runs = new ArrayList<>();
+        @Getter
+        private long entryCount;
+
+        public SortingWriter(Path path, Map<String, String> properties, int runSize) {
+            this.path = path;
+            this.properties = properties;
+            this.runSize = runSize;
+        }
+
+        public synchronized void append(FileSummary summary) throws IOException {
+            buffer.add(summary);
+            entryCount++;
+            if(buffer.size() >= runSize) spill();
+        }
+
+        /**
+         * Writes the index, removing the runs.
+         */
+        @Override
+        public synchronized void close() throws IOException {
+            try {
+                if(runs.isEmpty()) {
+                    buffer.sort(ORDER);
+                    try (Writer writer = new Writer(path, properties)) {
+                        for (FileSummary summary : buffer) {
+                            writer.append(summary);
+                        }
+                    }
+                    return;
+                }
+                spill();
+                while(runs.size() > MAX_MERGE_WIDTH) {
+                    List<Path> group = new ArrayList<>(runs.subList(0, MAX_MERGE_WIDTH));
+                    runs.subList(0, MAX_MERGE_WIDTH).clear();
+                    runs.add(writeRun(run(), out -> merge(group, x -> writeEntry(out, x))));
+                    for (Path run : group) {
+                        Files.delete(run);
+                    }
+                }
+                try (Writer writer = new Writer(path, properties)) {
+                    merge(runs, writer::append);
+                }
+            } finally {
+                discard();
+            }
+        }
+
+        /**
+         * Drops all entries without writing the index, removing the runs.
+         */
+        public synchronized void discard() throws IOException {
+            buffer.clear();
+            for (Path run : runs) {
+                Files.deleteIfExists(run);
+            }
+            runs.clear();
+        }
+
+        private void spill() throws IOException {
+            if(buffer.isEmpty()) return;
+            buffer.sort(ORDER);
+            runs.add(writeRun(run(), out -> {
+                for (FileSummary summary : buffer) {
+                    writeEntry(out, summary);
+                }
+            }));
+            buffer.clear();
+        }
+
+        private Path run() {
+            return path.resolveSibling(path.getFileName() + ".run" + UUID.randomUUID());
+        }
+
+        private static Path writeRun(Path run, EntrySink sink) throws IOException {
+            try (DataOutputStream out = new DataOutputStream(new BufferedOutputStream(Files.newOutputStream(run), 1 << 16))) {
+                sink.write(out);
+            }
+            return run;
+        }
+
+        /**
+         * Merges sorted runs by repeatedly taking the smallest of their first entries.
+         */
+        private static void merge(List<Path> runs, EntryConsumer consumer) throws IOException {
+            List<DataInputStream> inputs = new ArrayList<>();
+            try {
+                PriorityQueue<Map.Entry<FileSummary, DataInputStream>> heads = new PriorityQueue<>(Math.max(1, runs.size()),
+                        Map.Entry.comparingByKey(ORDER));
+                for (Path run : runs) {
+                    DataInputStream in = new DataInputStream(new BufferedInputStream(Files.newInputStream(run), 1 << 16));
+                    inputs.add(in);
+                    next(in).ifPresent(x -> heads.add(new AbstractMap.SimpleEntry<>(x, in)));
+                }
+                while(!heads.isEmpty()) {
+                    Map.Entry<FileSummary, DataInputStream> head = heads.poll();
+                    consumer.accept(head.getKey());
+                    next(head.getValue()).ifPresent(x -> heads.add(new AbstractMap.SimpleEntry<>(x, head.getValue())));
+                }
+            } finally {
+                for (DataInputStream in : inputs) {
+                    in.close();
+                }
+            }
+        }
+
+        private static Optional<FileSummary> next(DataInputStream in) throws IOException {
+            in.mark(1);
+            if(in.read() == -1) return Optional.empty();
+            in.reset();
+            return Optional.of(readEntry(in));
+        }
+
+        private interface EntrySink {
+            void write(DataOutputStream out) throws IOException;
+        }
+
+        private interface EntryConsumer {
+            void accept(FileSummary summary) throws IOException;
+        }
+    }
+
+    /**
+     * Read-only view of an index file that reads blocks on demand. Blocks are read at their offset rather than mapped,
+     * so indexes of any size can be opened, and closing the reader releases the file right away instead of once the
+     * mapping is garbage collected, which on Windows would keep the index from being replaced.
+     */
+    public static class Reader implements Closeable {
+        private final Path path;
+        private final FileChannel channel;
+        @Getter
+        private final long entryCount;
+        private final int blockCount;
+        /**
+         * Offsets of all blocks, followed by the offset of the directory where the last block ends.
+         */
+        private final long[] blockOffsets;
+        private final long[] blockFirstSizes;
+        private final int[] blockEntryCounts;
+
+        Reader(Path path) throws IOException {
+            this.path = path;
+            channel = FileChannel.open(path, StandardOpenOption.READ);
+            try {
+                ByteBuffer header = read(0, 16);
+                checkHeader(header.getInt(0), header.getInt(4), path);
+                entryCount = header.getLong(8);
+                ByteBuffer footer = read(channel.size() - FOOTER_LENGTH, FOOTER_LENGTH);
+                long directoryOffset = footer.getLong(0);
+                blockCount = footer.getInt(8);
+                if(footer.getInt(12) != MAGIC || blockCount < 0
+                        || directoryOffset + (long)blockCount * DIRECTORY_ENTRY_LENGTH != channel.size() - FOOTER_LENGTH) {
+                    throw new IOException(String.format("Index file truncated: %s", path));
+                }
+                ByteBuffer directory = read(directoryOffset, blockCount * DIRECTORY_ENTRY_LENGTH);
+                blockOffsets = new long[blockCount + 1];
+                blockFirstSizes = new long[blockCount];
+                blockEntryCounts = new int[blockCount];
+                for (int i = 0; i < blockCount; i++) {
+                    blockOffsets[i] = directory.getLong();
+                    blockFirstSizes[i] = directory.getLong();
+                    blockEntryCounts[i] = directory.getInt();
+                }
+                blockOffsets[blockCount] = directoryOffset;
+            } catch (IOException | RuntimeException e) {
+                channel.close();
+                throw e;
+            }
+        }
+
+        /**
+         * Returns all entries of the given size, ordered by fingerprint.
+         */
+        public List<FileSummary> lookup(long size) throws IOException {
+            List<FileSummary> result = new ArrayList<>();
+            // Entries of this size may start in the last block that begins with a smaller size
+            int block = Arrays.binarySearch(blockFirstSizes, size);
+            if(block < 0) block = -block - 2;
+            while(block > 0 && blockFirstSizes[block] == size) block--;
+            for (block = Math.max(block, 0); block < blockCount && blockFirstSizes[block] <= size; block++) {
+                ByteBuffer entries = read(blockOffsets[block], (int)(blockOffsets[block + 1] - blockOffsets[block]));
+                Entry entry = new Entry();
+                for (int i = 0; i < blockEntryCounts[block]; i++) {
+                    entry.read(entries);
+                    if(entry.size == size) result.add(entry.toSummary());
+                    else if(entry.size > size) return result;
+                }
+            }
+            return result;
+        }
+
+        public boolean contains(long size, String fingerprint) throws IOException {
+            return lookup(size).stream().anyMatch(x -> fingerprint.equals(x.getFingerprint()));
+        }
+
+        /**
+         * Reads a range of the file. Reads at an offset do not move the position of the channel, so lookups may run
+         * concurrently.
+         */
+        private ByteBuffer read(long position, int length) throws IOException {
+            ByteBuffer buffer = ByteBuffer.allocate(length);
+            while(buffer.hasRemaining()) {
+                if(channel.read(buffer, position + buffer.position()) < 0) {
+                    throw new EOFException(String.format("Index file truncated: %s", path));
+                }
+            }
+            buffer.flip();
+            return buffer;
+        }
+
+        @Override
+        public void close() throws IOException {
+            channel.close();
+        }
+    }
+
+    /**
+     * Writes a single entry, returning the number of bytes written.
+     */
+    static int writeEntry(DataOutput out, FileSummary summary) throws IOException {
+        byte[] fingerprint = decode(summary.getFingerprint());
+        byte[] path = summary.getPath().getBytes(StandardCharsets.UTF_8);
+        out.writeLong(summary.getSize());
+        out.writeByte(fingerprint.length);
+        out.write(fingerprint);
+        out.writeInt(path.length);
+        out.write(path);
+        out.writeLong(summary.getModified() == null ? NO_TIME : summary.getModified());
+        byte[] contentHash = summary.getContentHash() == null ? new byte[0] : decode(summary.getContentHash());
+        out.writeByte(contentHash.length);
+        out.write(contentHash);
+        int length = 8 + 1 + fingerprint.length + 4 + path.length + 8 + 1 + contentHash.length;
+        ExifSummary exif = summary.getExif();
+        out.writeBoolean(exif != null);
+        length += 1;
+        if(exif != null) {
+            length += writeString(out, exif.getMake()) + writeString(out, exif.getModel()) + 8;
+            out.writeLong(exif.getCaptured() == null ? NO_TIME : exif.getCaptured());
+        }
+        return length;
+    }
+
+    /**
+     * Reads a single entry written by {@link #writeEntry}.
+     */
+    static FileSummary readEntry(DataInput in) throws IOException {
+        Entry entry = new Entry();
+        entry.read(in);
+        return entry.toSummary();
+    }
+
+    private static int writeString(DataOutput out, String value) throws IOException {
+        if(value == null) {
+            out.writeInt(-1);
+            return 4;
+        }
+        byte[] bytes = value.getBytes(StandardCharsets.UTF_8);
+        out.writeInt(bytes.length);
+        out.write(bytes);
+        return 4 + bytes.length;
+    }
+
+    private static String readString(DataInput in) throws IOException {
+        int length = in.readInt();
+        if(length == -1) return null;
+        byte[] bytes = new byte[length];
+        in.readFully(bytes);
+        return new String(bytes, StandardCharsets.UTF_8);
+    }
+
+    private static String readString(ByteBuffer in) {
+        int length = in.getInt();
+        if(length == -1) return null;
+        byte[] bytes = new byte[length];
+        in.get(bytes);
+        return new String(bytes, StandardCharsets.UTF_8);
+    }
+
+    private static void checkHeader(int magic, int version, Path path) throws IOException {
+        if(magic != MAGIC) {
+            throw new IOException(String.format("Not an index file: %s", path));
+        }
+        if(version != VERSION) {
+            throw new IOException(String.format("Unsupported index version %d: %s", version, path));
+        }
+    }
+
+    /**
+     * Reusable holder for a single decoded entry. Both decoders below must be kept in line with {@link #writeEntry}.
+     */
+    private static class Entry {
+
+        long size;
+        byte[] fingerprint;
+        byte[] path;
+        long modified;
+        byte[] contentHash;
+        ExifSummary exif;
+
+        void read(DataInput in) throws IOException {
+            size = in.readLong();
+            fingerprint = new byte[in.readUnsignedByte()];
+            in.readFully(fingerprint);
+            path = new byte[in.readInt()];
+            in.readFully(path);
+            modified = in.readLong();
+            contentHash = new byte[in.readUnsignedByte()];
+            in.readFully(contentHash);
+            exif = null;
+            if(in.readBoolean()) {
+                exif = new ExifSummary(readString(in), readString(in), nullable(in.readLong()));
+            }
+        }
+
+        void read(ByteBuffer in) {
+            size = in.getLong();
+            fingerprint = new byte[in.get() & 0xFF];
+            in.get(fingerprint);
+            path = new byte[in.getInt()];
+            in.get(path);
+            modified = in.getLong();
+            contentHash = new byte[in.get() & 0xFF];
+            in.get(contentHash);
+            exif = null;
+            if(in.get() != 0) {
+                exif = new ExifSummary(readString(in), readString(in), nullable(in.getLong()));
+            }
+        }
+
+        private static Long nullable(long value) {
+            return value == NO_TIME ? null : value;
+        }
+
+        FileSummary toSummary() {
+            FileSummary summary = new FileSummary(new String(path, StandardCharsets.UTF_8), size,
+                    Hex.encodeHexString(fingerprint), modified == NO_TIME ? null : modified);
+            if(contentHash.length > 0) summary.setContentHash(Hex.encodeHexString(contentHash));
+            summary.setExif(exif);
+            return summary;
+        }
+    }
+
+    private static byte[] decode(String fingerprint) {
+        try {
+            return Hex.decodeHex(fingerprint);
+        } catch (DecoderException e) {
+            throw new IllegalArgumentException(String.format("Fingerprint is not hexadecimal: %s", fingerprint), e);
+        }
+    }
+}
@@ -0,0 +1,185 @@
+package nl.devillers.tools.archivemanager;
+
+import lombok.Getter;
+import lombok.extern.slf4j.Slf4j;
+import nl.devillers.tools.archivemanager.model.FileSummary;
+import nl.devillers.tools.archivemanager.model.FingerprintStrategy;
+
+import java.io.*;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.TimeUnit;
+import java.util.zip.CRC32;
+
+/**
+ * Append-only journal of the files fingerprinted while indexing, so an interrupted walk of a large archive does not
+ * have to start over. Entries are collected in batches that are written with a checksum and forced to disk as a whole:
+ *
+ * <pre>
+ * header  : magic (int) | version (int) | fingerprint strategy (UTF)
+ * batch*  : payload length (int) | CRC-32 of payload (int) | payload
+ * payload : entry count (int) | entry*
+ * </pre>
+ *
+ * Entries are encoded as in {@link IndexFile}. Opening a journal replays every intact batch and cuts off a batch that
+ * was torn by a crash, so appending continues right after the last complete one. A journal whose header cannot be read
+ * or was written with another fingerprint strategy is started over, as its entries cannot be reused.
+ */
+@Slf4j
+public class IndexJournal implements Closeable {
+
+    static final int MAGIC = 0x414D494A; // "AMIJ"
+    static final int VERSION = 1;
+    static final int BATCH_SIZE = 1000;
+    static final long BATCH_INTERVAL = TimeUnit.SECONDS.toNanos(10);
+
+    private final Path path;
+    private final byte[] header;
+    private final FileChannel channel;
+    /**
+     * Entries of earlier, interrupted runs, keyed by path.
+     */
+    @Getter
+    private final Map<String, FileSummary> replayed;
+    private final ByteArrayOutputStream batch = new ByteArrayOutputStream();
+    private final DataOutputStream out = new DataOutputStream(batch);
+    private int batchCount;
+    private long lastFlush = System.nanoTime();
+
+    private IndexJournal(Path path, FingerprintStrategy strategy) throws IOException {
+        this.path = path;
+        this.header = header(strategy);
+        this.replayed = new HashMap<>();
+        this.channel = FileChannel.open(path, StandardOpenOption.CREATE, StandardOpenOption.READ, StandardOpenOption.WRITE);
+        long end = replay();
+        channel.truncate(end);
+        channel.position(end);
+    }
+
+    /**
+     * Opens the journal of an index, replaying what an earlier run with the same fingerprint strategy left behind.
+     */
+    public static IndexJournal open(Path index, FingerprintStrategy strategy) throws IOException {
+        return new IndexJournal(of(index), strategy);
+    }
+
+    static Path of(Path index) {
+        return index.resolveSibling(index.getFileName() + ".journal");
+    }
+
+    /**
+     * Adds an entry to the current batch, writing the batch once it is full or has been open for a while.
+     */
+    public synchronized void append(FileSummary summary) throws IOException {
+        IndexFile.writeEntry(out, summary);
+        batchCount++;
+        if(batchCount >= BATCH_SIZE || System.nanoTime() - lastFlush >= BATCH_INTERVAL) flush();
+    }
+
+    /**
+     * Writes the current batch and forces it to disk.
+     */
+    public synchronized void flush() throws IOException {
+        lastFlush = System.nanoTime();
+        if(batchCount == 0) return;
+        byte[] entries = batch.toByteArray();
+        ByteBuffer buffer = ByteBuffer.allocate(8 + 4 + entries.length);
+        buffer.putInt(4 + entries.length).putInt(0).putInt(batchCount).put(entries);
+        CRC32 crc = new CRC32();
+        crc.update(buffer.array(), 8, 4 + entries.length);
+        buffer.putInt(4, (int)crc.getValue());
+        buffer.flip();
+        while(buffer.hasRemaining()) channel.write(buffer);
+        channel.force(false);
+        batch.reset();
+        batchCount = 0;
+    }
+
+    /**
+     * Writes what is left of the current batch and closes the journal, keeping it on disk.
+     */
+    @Override
+    public synchronized void close() throws IOException {
+        try {
+            flush();
+        } finally {
+            channel.close();
+        }
+    }
+
+    /**
+     * Removes the journal once its entries are part of the index.
+     */
+    public void delete() throws IOException {
+        close();
+        Files.deleteIfExists(path);
+    }
+
+    /**
+     * Reads all intact batches, returning the offset right after the last one.
+     */
+    private long replay() throws IOException {
+        if(!hasHeader()) {
+            if(channel.size() > 0) log.warn("Starting over index journal with unreadable or different header: {}", path);
+            channel.write(ByteBuffer.wrap(header), 0);
+            return header.length;
+        }
+        try (DataInputStream in = new DataInputStream(new BufferedInputStream(Files.newInputStream(path), 1 << 16))) {
+            in.readFully(new byte[header.length]);
+            long end = header.length;
+            long size = channel.size();
+            while(end + 8 <= size) {
+                int length = in.readInt();
+                int checksum = in.readInt();
+                if(length < 4 || end + 8 + length > size) break;
+                byte[] payload = new byte[length];
+                in.readFully(payload);
+                CRC32 crc = new CRC32();
+                crc.update(payload);
+                if((int)crc.getValue() != checksum) break;
+                List<FileSummary> entries = decode(payload);
+                entries.forEach(x -> replayed.put(x.getPath(), x));
+                end += 8 + length;
+            }
+            if(end < size) log.warn("Discarding {} bytes of incomplete batch at the end of {}", size - end, path);
+            if(!replayed.isEmpty()) log.info("Replayed {} entries from {}", replayed.size(), path);
+            return end;
+        }
+    }
+
+    private boolean hasHeader() throws IOException {
+        if(channel.size() < header.length) return false;
+        ByteBuffer actual = ByteBuffer.allocate(header.length);
+        while(actual.hasRemaining()) {
+            if(channel.read(actual, actual.position()) < 0) return false;
+        }
+        return Arrays.equals(actual.array(), header);
+    }
+
+    private static byte[] header(FingerprintStrategy strategy) throws IOException {
+        ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+        DataOutputStream out = new DataOutputStream(bytes);
+        out.writeInt(MAGIC);
+        out.writeInt(VERSION);
+        out.writeUTF(strategy.name());
+        return bytes.toByteArray();
+    }
+
+    private static List<FileSummary> decode(byte[] payload) throws IOException {
+        DataInputStream in = new DataInputStream(new ByteArrayInputStream(payload));
+        int count = in.readInt();
+        List<FileSummary> entries = new ArrayList<>(count);
+        for (int i = 0; i < count; i++) {
+            entries.add(IndexFile.readEntry(in));
+        }
+        return entries;
+    }
+}
@@ -0,0 +1,112 @@
+package nl.devillers.tools.archivemanager;
+
+import lombok.NonNull;
+import lombok.RequiredArgsConstructor;
+import lombok.SneakyThrows;
+import lombok.extern.slf4j.Slf4j;
+import nl.devillers.tools.archivemanager.model.Archive;
+import nl.devillers.tools.archivemanager.model.Config;
+import nl.devillers.tools.archivemanager.model.Device;
+import org.springframework.stereotype.Component;
+
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.*;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.stream.Collectors;
+
+/**
+ * Prepares the indexes of many archives at once, keeping every device busy without making any of them seek back and
+ * forth. Archives are grouped by the {@link java.nio.file.FileStore} they live on and each device gets a thread of its
+ * own, so different devices are indexed in parallel. Archives sharing a device are indexed one after another in order
+ * of their root, so neighbouring directories are read consecutively and the load on a device never exceeds the
+ * parallelism of the archive being indexed, capped by the parallelism configured for the device if any.
+ */
+@Component
+@RequiredArgsConstructor
+@Slf4j
+public class IndexScheduler {
+
+    @NonNull Indexer indexer;
+    @NonNull Config config;
+
+    @SneakyThrows
+    public void prepare(List<Archive> archives) {
+        Collection<List<Archive>> devices = devices(archives);
+        if(devices.size() <= 1) {
+            devices.forEach(this::prepareDevice);
+            return;
+        }
+        log.info("Preparing {} indexes on {} devices", archives.size(), devices.size());
+        AtomicInteger threadCount = new AtomicInteger();
+        ExecutorService executor = Executors.newFixedThreadPool(devices.size(), runnable -> {
+            Thread thread = new Thread(runnable, "device-" + threadCount.incrementAndGet());
+            thread.setDaemon(true);
+            return thread;
+        });
+        try {
+            List<Future<?>> futures = devices.stream()
+                    .map(x -> executor.submit(() -> prepareDevice(x)))
+                    .collect(Collectors.toList());
+            // Wait for every device before failing, so no index is left half written by an abandoned thread
+            Throwable failure = null;
+            for (Future<?> future : futures) {
+                try {
+                    future.get();
+                } catch (ExecutionException e) {
+                    if(failure == null) failure = e.getCause();
+                }
+            }
+            if(failure != null) throw failure;
+        } finally {
+            executor.shutdown();
+        }
+    }
+
+    /**
+     * Prepares the archives of a single device one after another, each using at most the parallelism of the device.
+     */
+    private void prepareDevice(List<Archive> archives) {
+        for (Archive archive : archives) {
+            indexer.prepare(archive, parallelism(archive));
+        }
+    }
+
+    /**
+     * Parallelism of an archive, capped by the parallelism configured for the device it lives on.
+     */
+    int parallelism(Archive archive) {
+        Object device = device(archive.getRoot());
+        return config.getDevices()
+                .stream()
+                .filter(x -> x.getParallelism() != null && device.equals(device(x.getPath())))
+                .map(Device::getParallelism)
+                .min(Integer::compare)
+                .map(x -> Math.min(x, archive.getParallelism()))
+                .orElse(archive.getParallelism());
+    }
+
+    /**
+     * Groups archives by device, each group ordered by root. Archives whose device cannot be determined, e.g. because
+     * their root does not exist, are put in a group of their own.
+     */
+    static Collection<List<Archive>> devices(List<Archive> archives) {
+        return archives.stream()
+                .sorted(Comparator.comparing(Archive::getRoot))
+                .collect(Collectors.groupingBy(x -> device(x.getRoot()), LinkedHashMap::new, Collectors.toList()))
+                .values();
+    }
+
+    private static Object device(Path path) {
+        try {
+            return Files.getFileStore(path);
+        } catch (IOException e) {
+            return path;
+        }
+    }
+}
@@ -4,16 +4,25 @@ import lombok.Data;
 import lombok.SneakyThrows;
 import lombok.extern.slf4j.Slf4j;
 import nl.devillers.tools.archivemanager.model.Archive;
+import nl.devillers.tools.archivemanager.model.ArchiveMetrics;
+import nl.devillers.tools.archivemanager.model.CompactIndex;
 import nl.devillers.tools.archivemanager.model.FileSummary;
+import nl.devillers.tools.archivemanager.model.FingerprintStrategy;
 import org.nustaq.serialization.FSTConfiguration;
+import org.springframework.beans.factory.annotation.Autowired;
 import org.springframework.stereotype.Component;
 
 import java.io.IOException;
 import java.nio.file.*;
 import java.nio.file.attribute.BasicFileAttributes;
 import java.util.*;
+import java.util.concurrent.*;
 import java.util.concurrent.atomic.AtomicInteger;
 import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicReference;
+import java.util.function.LongPredicate;
+import java.util.regex.Pattern;
+import java.util.stream.Collectors;
 
 @Component
 @Slf4j
@@ -21,40 +30,359 @@ public class Indexer {
 
     private static final FSTConfiguration fst = FSTConfiguration.createDefaultConfiguration();
 
-    @SneakyThrows
+    /**
+     * Number of pending fingerprint tasks per worker thread. Once the queue is full the walking thread fingerprints
+     * files itself, which keeps directory enumeration from running too far ahead of the workers.
+     */
+    private static final int QUEUE_SIZE_PER_THREAD = 64;
+    static final String FINGERPRINT_PROPERTY = "fingerprint";
+    /**
+     * Number of entries held in memory while walking an archive before they are spilled to disk.
+     */
+    static final int RUN_SIZE = 100_000;
+
+    private final Metrics metrics;
+    private final ZipIndexer zipIndexer = new ZipIndexer(new ConcurrentHashMap<>());
+
+    public Indexer() {
+        this(new Metrics());
+    }
+
+    @Autowired
+    public Indexer(Metrics metrics) {
+        this.metrics = metrics;
+    }
+
     public Map<Long, List<FileSummary>> readIndex(Archive archive) {
-        if(!archive.isIndexed()) createIndex(archive);
-        Map<Long, List<FileSummary>> index = (HashMap<Long, List<FileSummary>>)fst.asObject(Files.readAllBytes(archive.getIndex()));
+        prepare(archive);
+        return loadIndex(archive);
+    }
+
+    /**
+     * Reads the index of an archive that was already prepared, without walking the archive again.
+     */
+    @SneakyThrows
+    public Map<Long, List<FileSummary>> loadIndex(Archive archive) {
+        Map<Long, List<FileSummary>> index = IndexFile.read(archive.getIndex());
         log.info("Read {} entries from {}", index.size(), archive.getIndex());
         return index;
     }
 
+    /**
+     * Reads the index of an archive into a {@link CompactIndex}, creating or refreshing it first if needed.
+     */
+    public CompactIndex readCompactIndex(Archive archive) {
+        prepare(archive);
+        return loadCompactIndex(archive);
+    }
+
+    /**
+     * Reads the index of an archive that was already prepared into a {@link CompactIndex}.
+     */
     @SneakyThrows
+    public CompactIndex loadCompactIndex(Archive archive) {
+        CompactIndex index = IndexFile.readCompact(archive.getIndex());
+        log.info("Read {} files from {}", index.count(), archive.getIndex());
+        return index;
+    }
+
+    /**
+     * Opens the index of an archive for lookups by size, creating or refreshing it first if needed. Unlike
+     * {@link #readIndex(Archive)} this does not decode the whole index, which makes it suitable for looking up a handful
+     * of sizes.
+     */
+    @SneakyThrows
+    public IndexFile.Reader openIndex(Archive archive) {
+        prepare(archive);
+        return IndexFile.open(archive.getIndex());
+    }
+
+    /**
+     * Makes sure the index of an archive exists, is refreshed if configured and is in the current format. An index made
+     * with another fingerprint strategy than configured is made again from scratch.
+     */
+    public void prepare(Archive archive) {
+        prepare(archive, archive.getParallelism());
+    }
+
+    /**
+     * Like {@link #prepare(Archive)}, fingerprinting at most the given number of files at once, e.g. to stay within the
+     * limit of the device the archive lives on.
+     */
+    @SneakyThrows
+    public void prepare(Archive archive, int parallelism) {
+        if(!archive.isIndexed()) {
+            createIndex(archive, parallelism);
+        } else if(strategyOf(archive.getIndex()) != archive.getFingerprint()) {
+            log.info("Fingerprint strategy of {} changed from {} to {}", archive.getRoot(), strategyOf(archive.getIndex()), archive.getFingerprint());
+            createIndex(archive, parallelism);
+        } else if(archive.getRefresh()) {
+            updateIndex(archive, parallelism);
+        } else if(!IndexFile.isIndexFile(archive.getIndex())) {
+            migrateIndex(archive);
+        }
+    }
+
+    /**
+     * Fingerprint strategy recorded in the header of an index. Legacy FST indexes and indexes written before strategies
+     * were recorded all used {@link FingerprintStrategy#HEAD_TAIL}.
+     */
+    public static FingerprintStrategy strategyOf(Path index) throws IOException {
+        if(!IndexFile.isIndexFile(index)) return FingerprintStrategy.HEAD_TAIL;
+        String strategy = IndexFile.readProperties(index).get(FINGERPRINT_PROPERTY);
+        return strategy == null ? FingerprintStrategy.HEAD_TAIL : FingerprintStrategy.valueOf(strategy);
+    }
+
+    /**
+     * Fingerprints files of archives that use another strategy again, so they can be compared with an index made with
+     * the given strategy. Only files with a size for which the predicate holds are fingerprinted, typically sizes that
+     * occur in the other index, as files of any other size cannot match anyway. Such files are replaced by copies in
+     * the index, so entries shared with e.g. the cached results keep the fingerprint of their own index. Returns the
+     * original entry of every copy, keyed by identity, to report files with the fingerprint of their own index again.
+     */
+    public Map<FileSummary, FileSummary> align(Map<Long, List<FileSummary>> index, List<Archive> archives, FingerprintStrategy strategy, LongPredicate sizes) {
+        Map<FileSummary, FileSummary> originals = Collections.synchronizedMap(new IdentityHashMap<>());
+        List<Archive> others = archives.stream().filter(x -> x.getFingerprint() != strategy).collect(Collectors.toList());
+        if(others.isEmpty()) return originals;
+        index.entrySet()
+                .parallelStream()
+                .filter(x -> sizes.test(x.getKey()))
+                .forEach(x -> x.setValue(x.getValue().stream().map(y -> {
+                    if(others.stream().noneMatch(z -> z.contains(y.getPath()))) return y;
+                    FileSummary aligned = refingerprint(y, strategy);
+                    if(aligned != y) originals.put(aligned, y);
+                    return aligned;
+                }).collect(Collectors.toList())));
+        log.info("Fingerprinted {} files of {} archives again using {}", originals.size(), others.size(), strategy);
+        return originals;
+    }
+
+    /**
+     * Copy of a file with its fingerprint replaced by one made with the given strategy. A file that cannot be read is
+     * returned as is, as its fingerprint will not match any file fingerprinted with the given strategy.
+     */
+    public static FileSummary refingerprint(FileSummary file, FingerprintStrategy strategy) {
+        Optional<String> fingerprint = ZipIndexer.isVirtual(file.getPath())
+                ? ZipIndexer.fingerprint(file.getPath(), strategy)
+                : Fingerprinter.fingerprint(Paths.get(file.getPath()), strategy);
+        if(!fingerprint.isPresent()) return file;
+        return new FileSummary(file.getPath(), file.getSize(), fingerprint.get(), file.getModified(), file.getContentHash(), file.getExif());
+    }
+
     public void createIndex(Archive archive)  {
-        log.info("Indexing {}", archive.getRoot());
-        IndexingFileVisitor visitor = new IndexingFileVisitor();
-        Files.walkFileTree(archive.getRoot(), visitor);
-        log.info("Indexed {} files / {} bytes", visitor.getFileCount(), visitor.getByteCount());
-        Files.write(archive.getIndex(), fst.asByteArray(visitor.getIndex()), StandardOpenOption.CREATE_NEW);
-        log.info("Saved {} entries to {}", visitor.getIndex().size(), archive.getRoot());
+        createIndex(archive, archive.getParallelism());
+    }
+
+    private void createIndex(Archive archive, int parallelism) {
+        log.info("Indexing {} using {} threads", archive.getRoot(), parallelism);
+        writeIndex(archive, Collections.emptyMap(), parallelism);
+    }
+
+    /**
+     * Re-walks the archive and rewrites its index. Files whose size and modification time match the existing index
+     * keep their fingerprint, new or changed files are fingerprinted again and deleted files are dropped.
+     */
+    public void updateIndex(Archive archive) {
+        updateIndex(archive, archive.getParallelism());
+    }
+
+    @SneakyThrows
+    private void updateIndex(Archive archive, int parallelism) {
+        log.info("Refreshing index of {} using {} threads", archive.getRoot(), parallelism);
+        Map<String, FileSummary> previous = new HashMap<>();
+        deserialize(archive.getIndex()).values().forEach(x -> x.forEach(y -> previous.put(y.getPath(), y)));
+        writeIndex(archive, previous, parallelism);
+    }
+
+    /**
+     * Rewrites a legacy FST index in the current {@link IndexFile} format.
+     */
+    @SneakyThrows
+    public void migrateIndex(Archive archive) {
+        log.info("Migrating FST index {}", archive.getIndex());
+        save(archive, deserialize(archive.getIndex()));
+    }
+
+    /**
+     * Stores full content hashes computed during verification in the index of an archive, so they are not computed
+     * again on the next run.
+     */
+    @SneakyThrows
+    public void saveContentHashes(Archive archive, Map<String, String> contentHashes) {
+        Map<Long, List<FileSummary>> index = deserialize(archive.getIndex());
+        index.values().forEach(x -> x.forEach(y -> {
+            String contentHash = contentHashes.get(y.getPath());
+            if(contentHash != null) y.setContentHash(contentHash);
+        }));
+        save(archive, index);
+    }
+
+    /**
+     * Extracts EXIF data for images in an index created before EXIF data was captured while indexing, and saves the
+     * index if anything was added.
+     */
+    @SneakyThrows
+    public Map<Long, List<FileSummary>> backfillExif(Archive archive, Map<Long, List<FileSummary>> index) {
+        List<FileSummary> missing = index.values()
+                .stream()
+                .flatMap(Collection::stream)
+                .filter(x -> x.getExif() == null && ExifExtractor.isSupported(x.getPath()))
+                .collect(Collectors.toList());
+        if(missing.isEmpty()) return index;
+        log.info("Extracting EXIF data of {} files in {}", missing.size(), archive.getRoot());
+        ArchiveMetrics archiveMetrics = metrics.archive(archive.getRoot());
+        ForkJoinPool pool = new ForkJoinPool(archive.getParallelism());
+        try {
+            pool.submit(() -> missing.parallelStream().forEach(x -> {
+                long start = System.nanoTime();
+                x.setExif(ExifExtractor.extract(Paths.get(x.getPath())));
+                archiveMetrics.recordExif(System.nanoTime() - start);
+            })).get();
+        } finally {
+            pool.shutdown();
+        }
+        save(archive, index);
+        return index;
+    }
+
+    /**
+     * Walks the archive and saves its index. Entries are handed to a {@link IndexFile.SortingWriter} as they are found,
+     * so only a bounded number of them is held in memory. Files fingerprinted along the way are written to a journal as
+     * well, so when indexing is interrupted the next attempt only fingerprints the files that were not reached yet. The
+     * journal is removed once its entries are part of the saved index.
+     */
+    @SneakyThrows
+    private void writeIndex(Archive archive, Map<String, FileSummary> previous, int parallelism) {
+        IndexJournal journal = IndexJournal.open(archive.getIndex(), archive.getFingerprint());
+        Map<String, FileSummary> known = previous;
+        if(!journal.getReplayed().isEmpty()) {
+            log.info("Resuming interrupted indexing of {}, {} files were fingerprinted before", archive.getRoot(), journal.getReplayed().size());
+            known = new HashMap<>(previous);
+            known.putAll(journal.getReplayed());
+        }
+        ThreadPoolExecutor executor = createExecutor(parallelism);
+        ArchiveMetrics archiveMetrics = metrics.archive(archive.getRoot());
+        Path temp = temp(archive.getIndex());
+        IndexFile.SortingWriter writer = new IndexFile.SortingWriter(temp, properties(archive), RUN_SIZE);
+        IndexingFileVisitor visitor = new IndexingFileVisitor(executor, known, archive.getExcludes(), archive.getFingerprint(), archiveMetrics,
+                archive.getIndexZips() ? zipIndexer : null, journal, writer);
+        long start = System.nanoTime();
+        boolean walked = false;
+        try {
+            Files.walkFileTree(archive.getRoot(), visitor);
+            walked = true;
+        } finally {
+            executor.shutdown();
+            executor.awaitTermination(Long.MAX_VALUE, TimeUnit.NANOSECONDS);
+            archiveMetrics.recordWalk(System.nanoTime() - start);
+            journal.close();
+            // The runs spilled so far are of no use to the next attempt, which resumes from the journal instead
+            if(!walked || visitor.getFailure().get() != null) writer.discard();
+        }
+        if(visitor.getFailure().get() != null) throw visitor.getFailure().get();
+        log.info("Indexed {} files / {} bytes ({} unchanged)", visitor.getFileCount(), visitor.getByteCount(), visitor.getReusedCount());
+        if(!previous.isEmpty() && journal.getReplayed().isEmpty() && previous.size() == visitor.getReusedCount().get()
+                && previous.size() == visitor.getFileCount().get() && IndexFile.isIndexFile(archive.getIndex())) {
+            // Leave the index file untouched, so anything derived from it does not have to be rebuilt either
+            log.info("Index of {} is unchanged", archive.getRoot());
+            writer.discard();
+        } else {
+            writer.close();
+            Files.move(temp, archive.getIndex(), StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+            log.info("Saved {} files to {}", writer.getEntryCount(), archive.getIndex());
+        }
+        journal.delete();
+    }
+
+    /**
+     * Saves the index of an archive, recording its fingerprint strategy in the header.
+     */
+    static void save(Archive archive, Map<Long, List<FileSummary>> index) throws IOException {
+        save(archive.getIndex(), index, properties(archive));
+    }
+
+    private static Map<String, String> properties(Archive archive) {
+        return Collections.singletonMap(FINGERPRINT_PROPERTY, archive.getFingerprint().name());
+    }
+
+    /**
+     * Writes an index next to its destination first and then moves it in place, so an interrupted write never leaves a
+     * truncated index behind.
+     */
+    static void save(Path path, Map<Long, List<FileSummary>> index, Map<String, String> properties) throws IOException {
+        Path temp = temp(path);
+        IndexFile.write(temp, index, properties);
+        Files.move(temp, path, StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+        log.info("Saved {} entries to {}", index.size(), path);
+    }
+
+    private static Path temp(Path path) {
+        return path.resolveSibling(path.getFileName() + ".tmp");
+    }
+
+    /**
+     * Reads an index in either the current format or the legacy FST format.
+     */
+    @SuppressWarnings("unchecked")
+    private static Map<Long, List<FileSummary>> deserialize(Path path) throws IOException {
+        if(IndexFile.isIndexFile(path)) return IndexFile.read(path);
+        return (HashMap<Long, List<FileSummary>>)fst.asObject(Files.readAllBytes(path));
+    }
+
+    private static ThreadPoolExecutor createExecutor(int parallelism) {
+        AtomicInteger threadCount = new AtomicInteger();
+        return new ThreadPoolExecutor(parallelism, parallelism, 0L, TimeUnit.MILLISECONDS,
+                new ArrayBlockingQueue<>(parallelism * QUEUE_SIZE_PER_THREAD),
+                runnable -> {
+                    Thread thread = new Thread(runnable, "indexer-" + threadCount.incrementAndGet());
+                    thread.setDaemon(true);
+                    return thread;
+                },
+                new ThreadPoolExecutor.CallerRunsPolicy());
     }
 
     @Data
     static class IndexingFileVisitor extends SimpleFileVisitor<Path> {
 
-        private final HashMap<Long, List<FileSummary>> index = new HashMap<>();
+        private final Executor executor;
+        private final Map<String, FileSummary> previous;
+        private final List<Pattern> excludes;
+        private final FingerprintStrategy strategy;
+        private final ArchiveMetrics metrics;
+        /**
+         * Indexes the entries of zip files as well if set.
+         */
+        private final ZipIndexer zipIndexer;
+        /**
+         * Receives every file fingerprinted, rather than taken from {@link #previous}.
+         */
+        private final IndexJournal journal;
+        /**
+         * Receives every file found, fingerprinted or not.
+         */
+        private final IndexFile.SortingWriter writer;
+        /**
+         * First failure to hand an entry to the writer, which fails the walk once it is done.
+         */
+        private final AtomicReference<IOException> failure = new AtomicReference<>();
         private final AtomicInteger fileCount = new AtomicInteger();
         private final AtomicLong byteCount = new AtomicLong();
+        private final AtomicInteger reusedCount = new AtomicInteger();
+
+        @Override
+        public FileVisitResult preVisitDirectory(Path dir, BasicFileAttributes attrs) throws IOException {
+            String path = dir.toString();
+            if(excludes.stream().anyMatch(x -> x.matcher(path).find())) {
+                log.info("Skipping excluded directory {}", dir);
+                return FileVisitResult.SKIP_SUBTREE;
+            }
+            return FileVisitResult.CONTINUE;
+        }
 
         @Override
         public FileVisitResult visitFile(Path file, BasicFileAttributes attrs) throws IOException {
-            Optional<String> fingerprint = Fingerprinter.fingerprint(file);
-            if(!fingerprint.isPresent()) return FileVisitResult.CONTINUE;
-            FileSummary summary = new FileSummary(file.toString(), attrs.size(), fingerprint.get());
-            List<FileSummary> bucket = index.computeIfAbsent(attrs.size(), x -> new ArrayList<>());
-            bucket.add(summary);
-            byteCount.addAndGet(attrs.size());
-            if(fileCount.incrementAndGet() % 1000 == 0) log.info("Indexed {} files", fileCount);
+            executor.execute(() -> indexFile(file, attrs));
+            if(zipIndexer != null && ZipIndexer.isZip(file.toString())) executor.execute(() -> indexZip(file));
             return FileVisitResult.CONTINUE;
         }
 
@@ -63,5 +391,84 @@ public class Indexer {
             log.warn(String.format("Failed to index file: %s", file), exc);
             return FileVisitResult.CONTINUE;
         }
+
+        private void indexFile(Path file, BasicFileAttributes attrs) {
+            FileSummary summary = summarize(file, attrs);
+            if(summary != null) add(summary);
+        }
+
+        private void indexZip(Path zip) {
+            for (FileSummary summary : zipIndexer.summarize(zip.toString(), previous, strategy, metrics)) {
+                if(previous.get(summary.getPath()) == summary) {
+                    reusedCount.incrementAndGet();
+                } else {
+                    journal(summary);
+                }
+                add(summary);
+            }
+        }
+
+        private void add(FileSummary summary) {
+            try {
+                writer.append(summary);
+            } catch (IOException e) {
+                failure.compareAndSet(null, e);
+            }
+            byteCount.addAndGet(summary.getSize());
+            if(fileCount.incrementAndGet() % 1000 == 0) log.info("Indexed {} files", fileCount);
+        }
+
+        private FileSummary summarize(Path file, BasicFileAttributes attrs) {
+            long modified = attrs.lastModifiedTime().toMillis();
+            FileSummary existing = previous.get(file.toString());
+            if(existing != null && existing.getSize() == attrs.size() && Objects.equals(existing.getModified(), modified)) {
+                reusedCount.incrementAndGet();
+                metrics.recordReused();
+                return existing;
+            }
+            FileSummary summary = Indexer.summarize(file, attrs, strategy, metrics);
+            if(summary != null) journal(summary);
+            return summary;
+        }
+
+        private void journal(FileSummary summary) {
+            if(journal == null) return;
+            try {
+                journal.append(summary);
+            } catch (IOException e) {
+                log.warn(String.format("Failed to journal file: %s", summary.getPath()), e);
+            }
+        }
+    }
+
+    /**
+     * Fingerprints a single file of an archive, e.g. one that changed after the archive was indexed. Returns null if
+     * the file cannot be read.
+     */
+    public FileSummary summarize(Archive archive, Path file, BasicFileAttributes attrs) {
+        return summarize(file, attrs, archive.getFingerprint(), metrics.archive(archive.getRoot()));
+    }
+
+    /**
+     * Lists the entries of a single zip file of an archive, reusing the previous summaries of entries that did not
+     * change. Returns an empty list if the file cannot be read as a zip file.
+     */
+    public List<FileSummary> summarizeZip(Archive archive, Path zip, Map<String, FileSummary> previous) {
+        return zipIndexer.summarize(zip.toString(), previous, archive.getFingerprint(), metrics.archive(archive.getRoot()));
+    }
+
+    private static FileSummary summarize(Path file, BasicFileAttributes attrs, FingerprintStrategy strategy, ArchiveMetrics metrics) {
+        long bytesRead = Fingerprinter.getThreadBytesRead();
+        long start = System.nanoTime();
+        Optional<String> fingerprint = Fingerprinter.fingerprint(file, strategy);
+        if(!fingerprint.isPresent()) return null;
+        metrics.recordFingerprint(System.nanoTime() - start, Fingerprinter.getThreadBytesRead() - bytesRead);
+        FileSummary summary = new FileSummary(file.toString(), attrs.size(), fingerprint.get(), attrs.lastModifiedTime().toMillis());
+        if(ExifExtractor.isSupported(summary.getPath())) {
+            start = System.nanoTime();
+            summary.setExif(ExifExtractor.extract(file));
+            metrics.recordExif(System.nanoTime() - start);
+        }
+        return summary;
     }
 }
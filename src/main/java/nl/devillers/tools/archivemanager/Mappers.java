@@ -1,50 +1,235 @@
 package nl.devillers.tools.archivemanager;
 
-import nl.devillers.tools.archivemanager.model.FileSummary;
+import nl.devillers.tools.archivemanager.model.*;
+import org.apache.commons.codec.digest.DigestUtils;
 import org.springframework.stereotype.Component;
 
+import java.nio.file.Path;
+import java.nio.file.Paths;
 import java.util.*;
 import java.util.stream.Collectors;
-import java.util.stream.Stream;
 
 @Component
 public class Mappers {
 
+    /**
+     * Appends the buckets of the next index to the accumulated index in place. Only the first occurrence of a size
+     * allocates a list, later indexes are appended to it.
+     */
     public Map<Long, List<FileSummary>> accumulator(Map<Long, List<FileSummary>> accumulate, Map<Long, List<FileSummary>> next) {
-        next.entrySet().forEach(x -> accumulate.merge(x.getKey(), x.getValue(), this::concatenate));
+        next.forEach((size, files) -> accumulate.computeIfAbsent(size, x -> new ArrayList<>(files.size())).addAll(files));
         return accumulate;
     }
 
-    private List<FileSummary> concatenate(List<FileSummary> left, List<FileSummary> right) {
-        return Stream.of(left, right)
-                .flatMap(List::stream)
+    /**
+     * Hash join on size and fingerprint: the left index is turned into a set of content keys up front, after which the
+     * size buckets of the right index are probed in parallel.
+     */
+    public List<FileSummary> rightWithoutLeft(Map<Long, List<FileSummary>> left, Map<Long, List<FileSummary>> right) {
+        Set<ContentKey> probe = left.values()
+                .stream()
+                .flatMap(Collection::stream)
+                .map(ContentKey::of)
+                .collect(Collectors.toSet());
+        return right.values()
+                .parallelStream()
+                .flatMap(x -> x.stream().filter(y -> !probe.contains(ContentKey.of(y))))
                 .collect(Collectors.toList());
     }
 
-    public List<FileSummary> rightWithoutLeft(Map<Long, List<FileSummary>> left, Map<Long, List<FileSummary>> right) {
+    /**
+     * Same as {@link #rightWithoutLeft(Map, Map)}, but uses the compact index itself as the probe side, which is
+     * already ordered for a binary search on size and fingerprint.
+     */
+    public List<FileSummary> rightWithoutLeft(CompactIndex left, Map<Long, List<FileSummary>> right) {
         return right.values()
+                .parallelStream()
+                .flatMap(x -> x.stream().filter(y -> !left.contains(y.getSize(), y.getFingerprint())))
+                .collect(Collectors.toList());
+    }
+
+    /**
+     * Totals missing files per archive they originate from. Files outside all archives are totalled under the empty path.
+     */
+    public MissingFiles summarize(List<FileSummary> missing, List<Archive> archives) {
+        Map<Path, LongSummaryStatistics> perArchive = missing.stream()
+                .collect(Collectors.groupingBy(x -> archives.stream()
+                                .filter(y -> y.contains(x.getPath()))
+                                .map(Archive::getRoot)
+                                .max(Comparator.comparingInt(Path::getNameCount))
+                                .orElse(Paths.get("")),
+                        TreeMap::new,
+                        Collectors.summarizingLong(FileSummary::getSize)));
+        return new MissingFiles(missing, perArchive);
+    }
+
+    /**
+     * Groups files with the same size and fingerprint. Buckets are processed in parallel, split by their number of
+     * files, and each bucket is sorted by fingerprint into a copy so duplicates become consecutive runs, leaving the
+     * index itself untouched.
+     */
+    public List<List<FileSummary>> duplicates(Map<Long, List<FileSummary>> index) {
+        List<List<FileSummary>> buckets = index.values()
+                .stream()
+                .filter(x -> x.size() > 1)
+                .collect(Collectors.toList());
+        return Buckets.map(buckets, Mappers::duplicates)
                 .stream()
                 .flatMap(Collection::stream)
-                .filter(x -> !left.containsKey(x.getSize()) || left.get(x.getSize()).stream().noneMatch(y -> x.getFingerprint().equals(y.getFingerprint())))
                 .collect(Collectors.toList());
     }
 
-    public List<List<FileSummary>> duplicates(Map<Long, List<FileSummary>> index) {
-        return index.entrySet()
+    private static List<List<FileSummary>> duplicates(List<FileSummary> bucket) {
+        FileSummary[] sorted = bucket.toArray(new FileSummary[0]);
+        Comparator<FileSummary> byFingerprint = Comparator.comparing(FileSummary::getFingerprint);
+        if(sorted.length > Buckets.SPLIT_WEIGHT) Arrays.parallelSort(sorted, byFingerprint);
+        else Arrays.sort(sorted, byFingerprint);
+        List<List<FileSummary>> result = new ArrayList<>();
+        int start = 0;
+        for (int i = 1; i <= sorted.length; i++) {
+            if(i == sorted.length || !sorted[i].getFingerprint().equals(sorted[start].getFingerprint())) {
+                if(i - start > 1) result.add(new ArrayList<>(Arrays.asList(sorted).subList(start, i)));
+                start = i;
+            }
+        }
+        return result;
+    }
+
+    /**
+     * Entries of a compact index are ordered by size and fingerprint, so duplicates are simply consecutive runs of
+     * entries with the same content.
+     */
+    public List<List<FileSummary>> duplicates(CompactIndex index) {
+        List<List<FileSummary>> result = new ArrayList<>();
+        int start = 0;
+        for (int i = 1; i <= index.count(); i++) {
+            if(i == index.count() || !index.sameContent(start, i)) {
+                if(i - start > 1) {
+                    List<FileSummary> group = new ArrayList<>(i - start);
+                    for (int j = start; j < i; j++) group.add(index.summary(j));
+                    result.add(group);
+                }
+                start = i;
+            }
+        }
+        return result;
+    }
+
+    /**
+     * Orders groups of duplicates by the bytes freed by removing all but one file of the group, largest first.
+     */
+    public List<List<FileSummary>> rankByReclaimable(List<List<FileSummary>> duplicates) {
+        duplicates.sort(Comparator.comparingLong(ReportWriter::reclaimable).reversed());
+        return duplicates;
+    }
+
+    /**
+     * Finds directories whose entire subtree is duplicated, so a folder copied several times is reported once instead
+     * of as a group per file. Every directory gets a Merkle hash over the names of its files and subdirectories along
+     * with their content, where the content of a file is the group of duplicates it belongs to and that of a
+     * subdirectory its own hash. Only directories of which every file is duplicated can have a copy, so no other
+     * directory is hashed, which is why the number of files per directory is all that is needed of the index.
+     * Directories with the same hash form a group, reported as entries with the size of the subtree and its hash as
+     * fingerprint. A group is left out if its directories are all equally named children of copies of the same
+     * directory, as the group of their parents covers it.
+     *
+     * @param duplicates Groups of duplicate files
+     * @param directoryFiles Number of indexed files per directory, before filtering, so a directory that also holds
+     *                       files the filters left out is never reported as a copy
+     */
+    public List<List<FileSummary>> directoryDuplicates(List<List<FileSummary>> duplicates, Map<Path, Integer> directoryFiles) {
+        Map<Path, List<String>> entries = new HashMap<>();
+        Map<Path, Long> sizes = new HashMap<>();
+        for (int i = 0; i < duplicates.size(); i++) {
+            for (FileSummary file : duplicates.get(i)) {
+                Path path = Paths.get(file.getPath());
+                entries.computeIfAbsent(path.getParent(), x -> new ArrayList<>()).add("F\0" + path.getFileName() + "\0" + i);
+                sizes.merge(path.getParent(), file.getSize(), Long::sum);
+            }
+        }
+        Map<Path, Set<Path>> children = new HashMap<>();
+        for (Path directory : directoryFiles.keySet()) {
+            for (Path child = directory; child.getParent() != null; child = child.getParent()) {
+                if(!children.computeIfAbsent(child.getParent(), x -> new HashSet<>()).add(child)) break;
+            }
+        }
+
+        // Hash bottom-up, so the subdirectories of a directory are hashed before it
+        List<Path> directories = new ArrayList<>(children.keySet());
+        directoryFiles.keySet().stream().filter(x -> !children.containsKey(x)).forEach(directories::add);
+        directories.sort(Comparator.comparingInt(Path::getNameCount).reversed());
+        Map<Path, String> hashes = new HashMap<>();
+        for (Path directory : directories) {
+            List<String> content = new ArrayList<>(entries.getOrDefault(directory, Collections.emptyList()));
+            if(content.size() != directoryFiles.getOrDefault(directory, 0)) continue;
+            long size = sizes.getOrDefault(directory, 0L);
+            boolean complete = true;
+            for (Path child : children.getOrDefault(directory, Collections.emptySet())) {
+                String hash = hashes.get(child);
+                if(hash == null) {
+                    complete = false;
+                    break;
+                }
+                content.add("D\0" + child.getFileName() + "\0" + hash);
+                size += sizes.get(child);
+            }
+            if(!complete || content.isEmpty()) continue;
+            Collections.sort(content);
+            hashes.put(directory, DigestUtils.sha1Hex(String.join("\n", content)));
+            sizes.put(directory, size);
+        }
+
+        Map<String, List<Path>> groups = hashes.entrySet()
+                .stream()
+                .collect(Collectors.groupingBy(Map.Entry::getValue, Collectors.mapping(Map.Entry::getKey, Collectors.toList())));
+        return groups.entrySet()
                 .stream()
                 .filter(x -> x.getValue().size() > 1)
-                .flatMap(x -> duplicates(x.getValue()).entrySet().stream())
-                .filter(x -> x.getValue().size() > 1)
-                .map(x -> x.getValue())
+                .filter(x -> !coveredByParents(x.getValue(), hashes))
+                .map(x -> x.getValue()
+                        .stream()
+                        .sorted()
+                        .map(y -> new FileSummary(y.toString(), sizes.get(y), x.getKey()))
+                        .collect(Collectors.toList()))
+                .collect(Collectors.toList());
+    }
+
+    private static boolean coveredByParents(List<Path> directories, Map<Path, String> hashes) {
+        Path first = directories.get(0);
+        String parentHash = first.getParent() == null ? null : hashes.get(first.getParent());
+        return parentHash != null && directories.stream().allMatch(x -> x.getFileName().equals(first.getFileName())
+                && x.getParent() != null && parentHash.equals(hashes.get(x.getParent())));
+    }
+
+    /**
+     * Groups of duplicate files that are not entirely contained in a single group of duplicate directories, i.e. the
+     * duplicates that remain to be reported file by file.
+     */
+    public List<List<FileSummary>> uncovered(List<List<FileSummary>> duplicates, List<List<FileSummary>> directoryDuplicates) {
+        Map<Path, Integer> groupOf = new HashMap<>();
+        for (int i = 0; i < directoryDuplicates.size(); i++) {
+            for (FileSummary directory : directoryDuplicates.get(i)) {
+                groupOf.put(Paths.get(directory.getPath()), i);
+            }
+        }
+        return duplicates.stream()
+                .filter(x -> !covered(x, groupOf))
                 .collect(Collectors.toList());
     }
 
-    private Map<String, List<FileSummary>> duplicates(List<FileSummary> summaries) {
-        Map<String, List<FileSummary>> fingerprintedIndex = new HashMap<>();
-        for (FileSummary summary : summaries) {
-            List<FileSummary> bucket = fingerprintedIndex.computeIfAbsent(summary.getFingerprint(), x -> new ArrayList<>());
-            bucket.add(summary);
+    private static boolean covered(List<FileSummary> group, Map<Path, Integer> groupOf) {
+        if(groupOf.isEmpty()) return false;
+        Set<Integer> common = null;
+        for (FileSummary file : group) {
+            Set<Integer> covering = new HashSet<>();
+            for (Path directory = Paths.get(file.getPath()).getParent(); directory != null; directory = directory.getParent()) {
+                Integer index = groupOf.get(directory);
+                if(index != null) covering.add(index);
+            }
+            if(common == null) common = covering;
+            else common.retainAll(covering);
+            if(common.isEmpty()) return false;
         }
-        return fingerprintedIndex;
+        return common != null;
     }
 }
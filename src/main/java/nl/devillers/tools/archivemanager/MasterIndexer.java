@@ -0,0 +1,131 @@
+package nl.devillers.tools.archivemanager;
+
+import lombok.AllArgsConstructor;
+import lombok.NonNull;
+import lombok.SneakyThrows;
+import lombok.extern.slf4j.Slf4j;
+import nl.devillers.tools.archivemanager.model.Archive;
+import nl.devillers.tools.archivemanager.model.Config;
+import nl.devillers.tools.archivemanager.model.FileSummary;
+import org.apache.commons.codec.digest.DigestUtils;
+import org.springframework.stereotype.Component;
+
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.*;
+import java.util.stream.Collectors;
+
+/**
+ * Builds the master index, which merges the indexes of all sources. Sources are prepared device by device through the
+ * {@link IndexScheduler}, then loaded in parallel and the merged result is saved along with a stamp of the source
+ * indexes it was built from, so later runs only merge again when one of the sources was re-indexed.
+ */
+@Component
+@AllArgsConstructor
+@Slf4j
+public class MasterIndexer {
+
+    static final String SOURCES_PROPERTY = "sources";
+
+    @NonNull Config config;
+    @NonNull Indexer indexer;
+    @NonNull IndexScheduler scheduler;
+    @NonNull Mappers mappers;
+
+    public Map<Long, List<FileSummary>> readMasterIndex() {
+        return readMasterIndex(config.getSources(), config.getMaster(), config.getExifFilter().getEnabled());
+    }
+
+    public Map<Long, List<FileSummary>> readMasterIndex(List<Archive> sources, Path master, boolean exif) {
+        scheduler.prepare(sources);
+        return mergeMasterIndex(sources, master, exif);
+    }
+
+    public Map<Long, List<FileSummary>> mergeMasterIndex() {
+        return mergeMasterIndex(config.getSources(), config.getMaster(), config.getExifFilter().getEnabled());
+    }
+
+    /**
+     * Builds the master index from sources that were already prepared, e.g. together with the target.
+     */
+    @SneakyThrows
+    public Map<Long, List<FileSummary>> mergeMasterIndex(List<Archive> sources, Path master, boolean exif) {
+        if(isCurrent(sources, master)) {
+            Map<Long, List<FileSummary>> index = IndexFile.read(master);
+            if(!exif || !lacksExif(index)) {
+                log.info("Read {} entries from master index {}", index.size(), master);
+                return index;
+            }
+        }
+
+        // Indexes are loaded in parallel, but merged one by one so the merge never needs a lock
+        List<Map<Long, List<FileSummary>>> indexes = sources.parallelStream()
+                .map(x -> exif ? indexer.backfillExif(x, indexer.loadIndex(x)) : indexer.loadIndex(x))
+                .collect(Collectors.toList());
+        Map<Long, List<FileSummary>> index = new HashMap<>(indexes.stream().mapToInt(Map::size).max().orElse(0));
+        indexes.forEach(x -> mappers.accumulator(index, x));
+        if(master != null) {
+            // Stamp after loading, as backfilling EXIF data may have rewritten some of the source indexes
+            Indexer.save(master, index, Collections.singletonMap(SOURCES_PROPERTY, stamp(sources)));
+        }
+        return index;
+    }
+
+    public boolean isCurrent() {
+        return isCurrent(config.getSources(), config.getMaster());
+    }
+
+    /**
+     * Whether the master index was built from the current indexes of the given sources.
+     */
+    @SneakyThrows
+    public boolean isCurrent(List<Archive> sources, Path master) {
+        return master != null && Files.exists(master) && IndexFile.isIndexFile(master)
+                && stamp(sources).equals(IndexFile.readProperties(master).get(SOURCES_PROPERTY));
+    }
+
+    public void saveContentHashes(Map<String, String> contentHashes) {
+        saveContentHashes(config.getSources(), config.getMaster(), contentHashes);
+    }
+
+    /**
+     * Adds content hashes that were just written to the indexes of the sources to the master index as well, and
+     * stamps it again, so rewriting the source indexes does not cause a next run to merge all sources again. Should
+     * only be called if the master index was current before the source indexes were rewritten.
+     */
+    @SneakyThrows
+    public void saveContentHashes(List<Archive> sources, Path master, Map<String, String> contentHashes) {
+        Map<Long, List<FileSummary>> index = IndexFile.read(master);
+        long added = index.values()
+                .stream()
+                .flatMap(Collection::stream)
+                .filter(x -> contentHashes.containsKey(x.getPath()))
+                .peek(x -> x.setContentHash(contentHashes.get(x.getPath())))
+                .count();
+        if(added == 0) return;
+        Indexer.save(master, index, Collections.singletonMap(SOURCES_PROPERTY, stamp(sources)));
+        log.info("Saved {} content hashes to master index {}", added, master);
+    }
+
+    /**
+     * Digest of the location, length and modification time of every source index.
+     */
+    private static String stamp(List<Archive> sources) throws IOException {
+        StringBuilder builder = new StringBuilder();
+        for (Archive source : sources) {
+            Path index = source.getIndex().toAbsolutePath();
+            builder.append(index).append('|')
+                    .append(Files.size(index)).append('|')
+                    .append(Files.getLastModifiedTime(index).toMillis()).append('\n');
+        }
+        return DigestUtils.sha1Hex(builder.toString());
+    }
+
+    private static boolean lacksExif(Map<Long, List<FileSummary>> index) {
+        return index.values()
+                .stream()
+                .flatMap(Collection::stream)
+                .anyMatch(x -> x.getExif() == null && ExifExtractor.isSupported(x.getPath()));
+    }
+}
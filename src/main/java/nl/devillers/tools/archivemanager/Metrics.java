@@ -0,0 +1,127 @@
+package nl.devillers.tools.archivemanager;
+
+import com.fasterxml.jackson.databind.ObjectMapper;
+import com.fasterxml.jackson.databind.SerializationFeature;
+import lombok.SneakyThrows;
+import lombok.extern.slf4j.Slf4j;
+import nl.devillers.tools.archivemanager.model.ArchiveMetrics;
+import nl.devillers.tools.archivemanager.model.PhaseMetrics;
+import org.springframework.jmx.export.annotation.ManagedAttribute;
+import org.springframework.jmx.export.annotation.ManagedResource;
+import org.springframework.stereotype.Component;
+
+import java.lang.management.ManagementFactory;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.time.Instant;
+import java.util.*;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.TimeUnit;
+import java.util.function.Supplier;
+
+/**
+ * Collects timings and throughput of a run: wall time and heap per phase, and per archive the files and bytes
+ * fingerprinted, fingerprint latencies and EXIF extraction costs. Exposed over JMX while running and written as a
+ * JSON summary when the run completes.
+ */
+@Component
+@ManagedResource(objectName = "nl.devillers.tools.archivemanager:name=Metrics")
+@Slf4j
+public class Metrics {
+
+    private static final ObjectMapper mapper = new ObjectMapper().enable(SerializationFeature.INDENT_OUTPUT);
+
+    private final Instant started = Instant.now();
+    private final List<PhaseMetrics> phases = new CopyOnWriteArrayList<>();
+    private final Map<String, ArchiveMetrics> archives = new ConcurrentHashMap<>();
+    private volatile String currentPhase;
+
+    /**
+     * Runs a phase of the run, recording how long it took.
+     */
+    public <T> T phase(String name, Supplier<T> phase) {
+        currentPhase = name;
+        long start = System.nanoTime();
+        try {
+            return phase.get();
+        } finally {
+            long millis = TimeUnit.NANOSECONDS.toMillis(System.nanoTime() - start);
+            phases.add(new PhaseMetrics(name, millis, getHeapUsedBytes()));
+            currentPhase = null;
+            log.info("Completed {} in {} ms", name, millis);
+        }
+    }
+
+    public void phase(String name, Runnable phase) {
+        phase(name, () -> {
+            phase.run();
+            return null;
+        });
+    }
+
+    public ArchiveMetrics archive(Path root) {
+        return archives.computeIfAbsent(root.toString(), ArchiveMetrics::new);
+    }
+
+    @ManagedAttribute(description = "Phase currently running")
+    public String getCurrentPhase() {
+        return currentPhase;
+    }
+
+    @ManagedAttribute(description = "Wall time in milliseconds of every completed phase")
+    public Map<String, Long> getPhaseMillis() {
+        Map<String, Long> millis = new LinkedHashMap<>();
+        phases.forEach(x -> millis.merge(x.getName(), x.getMillis(), Long::sum));
+        return millis;
+    }
+
+    @ManagedAttribute(description = "Files fingerprinted per archive")
+    public Map<String, Long> getFilesFingerprinted() {
+        Map<String, Long> files = new TreeMap<>();
+        archives.forEach((x, y) -> files.put(x, y.getFilesFingerprinted()));
+        return files;
+    }
+
+    @ManagedAttribute(description = "Files visited per second while indexing, per archive")
+    public Map<String, Double> getFilesPerSecond() {
+        Map<String, Double> rates = new TreeMap<>();
+        archives.forEach((x, y) -> rates.put(x, y.getFilesPerSecond()));
+        return rates;
+    }
+
+    @ManagedAttribute(description = "Bytes read by fingerprints and content hashes")
+    public long getBytesRead() {
+        return Fingerprinter.getBytesRead();
+    }
+
+    @ManagedAttribute(description = "Heap in use")
+    public long getHeapUsedBytes() {
+        return ManagementFactory.getMemoryMXBean().getHeapMemoryUsage().getUsed();
+    }
+
+    @ManagedAttribute(description = "Summary of the run so far as JSON")
+    @SneakyThrows
+    public String getSummary() {
+        return mapper.writeValueAsString(summary());
+    }
+
+    /**
+     * Writes the summary of the run as JSON.
+     */
+    @SneakyThrows
+    public void write(Path output) {
+        Files.write(output, mapper.writeValueAsBytes(summary()));
+        log.info("Wrote run summary to {}", output);
+    }
+
+    private Map<String, Object> summary() {
+        Map<String, Object> summary = new LinkedHashMap<>();
+        summary.put("started", started.toString());
+        summary.put("millis", System.currentTimeMillis() - started.toEpochMilli());
+        summary.put("bytesRead", getBytesRead());
+        summary.put("phases", phases);
+        summary.put("archives", new TreeMap<>(archives).values());
+        return summary;
+    }
+}
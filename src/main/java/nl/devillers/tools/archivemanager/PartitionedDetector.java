@@ -0,0 +1,326 @@
+package nl.devillers.tools.archivemanager;
+
+import lombok.NonNull;
+import lombok.RequiredArgsConstructor;
+import lombok.SneakyThrows;
+import lombok.extern.slf4j.Slf4j;
+import nl.devillers.tools.archivemanager.model.*;
+import org.springframework.stereotype.Component;
+
+import java.io.*;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.util.*;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.function.IntFunction;
+import java.util.stream.Collectors;
+import java.util.stream.IntStream;
+import java.util.stream.LongStream;
+import java.util.stream.Stream;
+
+/**
+ * Detects missing files and duplicates without holding all indexes in memory at once. The filtered entries of the
+ * sources and the target are spilled to disk, partitioned by a prefix of their fingerprint. Files with the same
+ * content always end up in the same partition, so each partition can be joined on its own, and several partitions are
+ * processed in parallel. The number of partitions is chosen so that the partitions being processed at the same time
+ * fit within the configured memory budget. The results of each partition are handed to a {@link Sink} as soon as it is
+ * joined, so they are never collected for all partitions together.
+ */
+@Component
+@RequiredArgsConstructor
+@Slf4j
+public class PartitionedDetector {
+
+    /**
+     * Heap taken by an entry relative to its encoded size in an index file, as a conservative estimate.
+     */
+    static final int HEAP_PER_INDEX_BYTE = 6;
+    static final int MAX_PARTITIONS = 4096;
+    /**
+     * Number of spill files written at the same time. With more partitions than this, entries are spilled to groups of
+     * partitions first, and each group is split into its partitions in a second pass.
+     */
+    static final int MAX_OPEN_SPILLS = 64;
+
+    private static final int BUFFER_SIZE = 16 * 1024;
+
+    @NonNull Config config;
+    @NonNull Indexer indexer;
+    @NonNull Filters filters;
+    @NonNull Mappers mappers;
+    @NonNull Verifier verifier;
+
+    /**
+     * Receives the results of one partition at a time, never concurrently. Duplicates are not ranked yet.
+     */
+    public interface Sink {
+        void missing(List<FileSummary> files) throws IOException;
+
+        void duplicates(List<List<FileSummary>> groups) throws IOException;
+    }
+
+    /**
+     * Spills and joins the prepared indexes of all sources and the target, handing the results of every partition to
+     * the sink. Returns the number of files in all sources, before filtering.
+     */
+    @SneakyThrows
+    public long detect(Sink sink) {
+        List<Archive> sources = config.getSources();
+        Archive target = config.getTarget();
+        int parallelism = Runtime.getRuntime().availableProcessors();
+        List<Path> indexes = sources.stream().map(Archive::getIndex).collect(Collectors.toList());
+        indexes.add(target.getIndex());
+        int partitions = partitions(indexes, config.getOutOfCore().getMemoryBudget().toBytes(), parallelism);
+
+        Path parent = config.getOutOfCore().getSpillDirectory() != null ? config.getOutOfCore().getSpillDirectory()
+                : Paths.get(System.getProperty("java.io.tmpdir"));
+        Path directory = Files.createTempDirectory(Files.createDirectories(parent), "archive-manager-");
+        Map<Archive, IndexFile.Reader> aligned = new LinkedHashMap<>();
+        try {
+            log.info("Spilling indexes to {} partitions in {}", partitions, directory);
+            boolean exif = Boolean.TRUE.equals(config.getExifFilter().getEnabled());
+            AtomicLong sourceFiles = new AtomicLong();
+            long[] targetSizes = targetSizes(sources, target);
+            try (Spill spill = new Spill(directory, "source", partitions)) {
+                for (Archive source : sources) {
+                    if(exif) backfillExif(source);
+                    // Fingerprints of sources using another strategy than the target are only comparable once aligned
+                    boolean align = source.getFingerprint() != target.getFingerprint();
+                    if(align) aligned.put(source, IndexFile.open(source.getIndex()));
+                    IndexFile.forEach(source.getIndex(), x -> {
+                        sourceFiles.incrementAndGet();
+                        if(!filters.test(x) || (exif && !filters.exifFilter(x))) return;
+                        spill.add(align && contains(targetSizes, x.getSize()) ? Indexer.refingerprint(x, target.getFingerprint()) : x);
+                    });
+                }
+            }
+            try (Spill spill = new Spill(directory, "target", partitions)) {
+                IndexFile.forEach(target.getIndex(), x -> {
+                    if(filters.test(x)) spill.add(x);
+                });
+            }
+
+            ForkJoinPool pool = new ForkJoinPool(parallelism);
+            try {
+                pool.submit(() -> IntStream.range(0, partitions)
+                        .parallel()
+                        .forEach(x -> detect(directory, x, aligned, targetSizes, sink))).get();
+                return sourceFiles.get();
+            } finally {
+                pool.shutdown();
+            }
+        } finally {
+            for (IndexFile.Reader reader : aligned.values()) {
+                reader.close();
+            }
+            delete(directory);
+        }
+    }
+
+    /**
+     * Joins a single partition the way a report joins complete indexes, and hands the results to the sink.
+     */
+    @SneakyThrows
+    private void detect(Path directory, int partition, Map<Archive, IndexFile.Reader> aligned, long[] targetSizes, Sink sink) {
+        Map<Long, List<FileSummary>> sources = read(Spill.path(directory, "source", partition));
+        CompactIndex target = CompactIndex.of(read(Spill.path(directory, "target", partition)));
+        List<FileSummary> missing = mappers.rightWithoutLeft(target, sources);
+        List<List<FileSummary>> duplicates = mappers.duplicates(target);
+        if(config.getVerifyContent()) {
+            missing.addAll(verifier.falseMatches(target, sources));
+            duplicates = verifier.verifyDuplicates(duplicates);
+        }
+        unalign(missing, aligned, targetSizes);
+        synchronized (sink) {
+            sink.missing(missing);
+            sink.duplicates(duplicates);
+        }
+    }
+
+    /**
+     * Number of partitions needed so that one partition per thread fits within the memory budget.
+     */
+    static int partitions(List<Path> indexes, long memoryBudget, int parallelism) throws IOException {
+        long bytes = 0;
+        for (Path index : indexes) {
+            bytes += Files.size(index);
+        }
+        long needed = bytes * HEAP_PER_INDEX_BYTE * parallelism;
+        long partitions = (needed + memoryBudget - 1) / Math.max(1, memoryBudget);
+        return (int)Math.max(1, Math.min(MAX_PARTITIONS, partitions));
+    }
+
+    /**
+     * Partition of a fingerprint, taken from its first eight hexadecimal digits.
+     */
+    static int partition(String fingerprint, int partitions) {
+        return (int)(Long.parseLong(fingerprint.substring(0, Math.min(8, fingerprint.length())), 16) % partitions);
+    }
+
+    /**
+     * Distinct sizes of all files in the target in ascending order, only collected if some source uses another
+     * fingerprint strategy. The index is ordered by size already, so this takes a single pass and no set.
+     */
+    private static long[] targetSizes(List<Archive> sources, Archive target) throws IOException {
+        if(sources.stream().allMatch(x -> x.getFingerprint() == target.getFingerprint())) return new long[0];
+        LongStream.Builder sizes = LongStream.builder();
+        long[] last = {-1};
+        IndexFile.forEach(target.getIndex(), x -> {
+            if(x.getSize() != last[0]) sizes.add(x.getSize());
+            last[0] = x.getSize();
+        });
+        return sizes.build().toArray();
+    }
+
+    private static boolean contains(long[] sizes, long size) {
+        return Arrays.binarySearch(sizes, size) >= 0;
+    }
+
+    /**
+     * Replaces missing files that were aligned to the strategy of the target by their entries in the index of their
+     * source, so they are reported with the fingerprint of their own index, which the backfill verifies copies with.
+     */
+    private static void unalign(List<FileSummary> missing, Map<Archive, IndexFile.Reader> aligned, long[] targetSizes) throws IOException {
+        for (Map.Entry<Archive, IndexFile.Reader> source : aligned.entrySet()) {
+            for (ListIterator<FileSummary> files = missing.listIterator(); files.hasNext(); ) {
+                FileSummary file = files.next();
+                if(!contains(targetSizes, file.getSize()) || !source.getKey().contains(file.getPath())) continue;
+                source.getValue().lookup(file.getSize())
+                        .stream()
+                        .filter(x -> x.getPath().equals(file.getPath()))
+                        .findFirst()
+                        .ifPresent(files::set);
+            }
+        }
+    }
+
+    /**
+     * Extracts EXIF data missing from a source, which only loads that single source into memory.
+     */
+    private void backfillExif(Archive source) throws IOException {
+        AtomicLong lacking = new AtomicLong();
+        IndexFile.forEach(source.getIndex(), x -> {
+            if(x.getExif() == null && ExifExtractor.isSupported(x.getPath())) lacking.incrementAndGet();
+        });
+        if(lacking.get() > 0) indexer.backfillExif(source, indexer.loadIndex(source));
+    }
+
+    @SneakyThrows
+    private static Map<Long, List<FileSummary>> read(Path spill) {
+        Map<Long, List<FileSummary>> index = new HashMap<>();
+        if(!Files.exists(spill)) return index;
+        try (DataInputStream in = new DataInputStream(new BufferedInputStream(Files.newInputStream(spill), BUFFER_SIZE))) {
+            int count = in.readInt();
+            for (int i = 0; i < count; i++) {
+                FileSummary summary = IndexFile.readEntry(in);
+                index.computeIfAbsent(summary.getSize(), x -> new ArrayList<>()).add(summary);
+            }
+        }
+        return index;
+    }
+
+    private static void delete(Path directory) throws IOException {
+        try (Stream<Path> paths = Files.walk(directory)) {
+            for (Path path : paths.sorted(Comparator.reverseOrder()).collect(Collectors.toList())) {
+                Files.deleteIfExists(path);
+            }
+        }
+    }
+
+    /**
+     * Set of spill files, one per partition, each holding an entry count followed by entries encoded as in
+     * {@link IndexFile}. Files are only created for partitions that receive entries. At most {@link #MAX_OPEN_SPILLS}
+     * files are open at the same time: with more partitions, entries are written to files holding a group of
+     * consecutive partitions each, which are split into their partitions on close, one group at a time.
+     */
+    private static class Spill implements Closeable {
+        private final Path directory;
+        private final String name;
+        private final int partitions;
+        private final int groupSize;
+        private final Outputs outputs;
+
+        Spill(Path directory, String name, int partitions) {
+            this.directory = directory;
+            this.name = name;
+            this.partitions = partitions;
+            this.groupSize = (partitions + MAX_OPEN_SPILLS - 1) / MAX_OPEN_SPILLS;
+            this.outputs = groupSize == 1
+                    ? new Outputs(x -> path(directory, name, x), partitions)
+                    : new Outputs(x -> directory.resolve(name + "-group-" + x + ".spill"), (partitions + groupSize - 1) / groupSize);
+        }
+
+        static Path path(Path directory, String name, int partition) {
+            return directory.resolve(name + "-" + partition + ".spill");
+        }
+
+        void add(FileSummary summary) {
+            outputs.add(partition(summary.getFingerprint(), partitions) / groupSize, summary);
+        }
+
+        @Override
+        public void close() throws IOException {
+            outputs.close();
+            if(groupSize == 1) return;
+            for (int group = 0; group * groupSize < partitions; group++) {
+                Path path = outputs.path(group);
+                if(!Files.exists(path)) continue;
+                int first = group * groupSize;
+                try (Outputs split = new Outputs(x -> path(directory, name, first + x), Math.min(groupSize, partitions - first));
+                     DataInputStream in = new DataInputStream(new BufferedInputStream(Files.newInputStream(path), BUFFER_SIZE))) {
+                    int count = in.readInt();
+                    for (int i = 0; i < count; i++) {
+                        FileSummary summary = IndexFile.readEntry(in);
+                        split.add(partition(summary.getFingerprint(), partitions) - first, summary);
+                    }
+                }
+                Files.delete(path);
+            }
+        }
+    }
+
+    /**
+     * Spill files written at the same time, each starting with an entry count that is patched on close.
+     */
+    private static class Outputs implements Closeable {
+        private final IntFunction<Path> paths;
+        private final DataOutputStream[] outputs;
+        private final int[] counts;
+
+        Outputs(IntFunction<Path> paths, int count) {
+            this.paths = paths;
+            this.outputs = new DataOutputStream[count];
+            this.counts = new int[count];
+        }
+
+        Path path(int index) {
+            return paths.apply(index);
+        }
+
+        void add(int index, FileSummary summary) {
+            try {
+                if(outputs[index] == null) {
+                    outputs[index] = new DataOutputStream(new BufferedOutputStream(Files.newOutputStream(path(index)), BUFFER_SIZE));
+                    outputs[index].writeInt(0); // Entry count, patched on close
+                }
+                IndexFile.writeEntry(outputs[index], summary);
+                counts[index]++;
+            } catch (IOException e) {
+                throw new UncheckedIOException(e);
+            }
+        }
+
+        @Override
+        public void close() throws IOException {
+            for (int i = 0; i < outputs.length; i++) {
+                if(outputs[i] == null) continue;
+                outputs[i].close();
+                try (RandomAccessFile file = new RandomAccessFile(path(i).toFile(), "rw")) {
+                    file.writeInt(counts[i]);
+                }
+            }
+        }
+    }
+}
@@ -0,0 +1,257 @@
+package nl.devillers.tools.archivemanager;
+
+import com.fasterxml.jackson.databind.ObjectMapper;
+import com.sun.net.httpserver.HttpExchange;
+import com.sun.net.httpserver.HttpServer;
+import lombok.NonNull;
+import lombok.RequiredArgsConstructor;
+import lombok.SneakyThrows;
+import lombok.extern.slf4j.Slf4j;
+import nl.devillers.tools.archivemanager.model.Archive;
+import nl.devillers.tools.archivemanager.model.Config;
+import nl.devillers.tools.archivemanager.model.FileSummary;
+import nl.devillers.tools.archivemanager.model.FingerprintStrategy;
+import org.springframework.stereotype.Component;
+
+import java.io.IOException;
+import java.io.OutputStream;
+import java.io.UnsupportedEncodingException;
+import java.net.InetSocketAddress;
+import java.net.URLDecoder;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.util.*;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.Executors;
+import java.util.function.Function;
+import java.util.regex.Pattern;
+import java.util.stream.Collectors;
+
+/**
+ * Keeps the indexes of all archives in memory and answers queries over HTTP, so questions about the archive do not
+ * require loading every index again. All endpoints take query parameters and answer with JSON:
+ * <ul>
+ *     <li>{@code /where-else?path=...} other copies of a file, in any archive</li>
+ *     <li>{@code /files?extension=jpg}, {@code /files?directory=...} or {@code /files?regex=...&limit=100}</li>
+ *     <li>{@code /missing?archive=...} files of a source missing from the target, or from {@code &from=...}</li>
+ *     <li>{@code /duplicates?archive=...} duplicates within an archive, the target by default</li>
+ *     <li>{@code /reload} reads all indexes again</li>
+ * </ul>
+ */
+@Component
+@RequiredArgsConstructor
+@Slf4j
+public class QueryServer {
+
+    private static final ObjectMapper mapper = new ObjectMapper();
+    private static final int DEFAULT_LIMIT = 1000;
+
+    @NonNull Config config;
+    @NonNull Indexer indexer;
+    @NonNull IndexScheduler scheduler;
+    @NonNull Filters filters;
+    @NonNull Watcher watcher;
+
+    private volatile SearchIndex index;
+    private volatile Map<Path, List<FileSummary>> perArchive;
+    private volatile Map<Path, List<FileSummary>> aligned;
+    /**
+     * Sizes of the files in the target, for which files of archives using another strategy are aligned.
+     */
+    private volatile Set<Long> targetSizes = Collections.emptySet();
+    /**
+     * Files fingerprinted again using the strategy of the target, keyed by path, size and modification time, so a file
+     * is only fingerprinted again after it changed. Entries of files that are gone are dropped on reload.
+     */
+    private final Map<String, FileSummary> realigned = new ConcurrentHashMap<>();
+    private HttpServer server;
+
+    /**
+     * Loads all indexes and starts answering queries. The server runs on non-daemon threads, which keeps the
+     * application running after the command line runner returns.
+     */
+    @SneakyThrows
+    public void start() {
+        reload();
+        server = HttpServer.create(new InetSocketAddress(config.getServer().getHost(), config.getServer().getPort()), 0);
+        server.setExecutor(Executors.newFixedThreadPool(Runtime.getRuntime().availableProcessors()));
+        server.createContext("/where-else", x -> respond(x, y -> index.whereElse(required(y, "path"))));
+        server.createContext("/files", x -> respond(x, this::files));
+        server.createContext("/missing", x -> respond(x, this::missing));
+        server.createContext("/duplicates", x -> respond(x, y -> index.duplicates(archive(y, "archive", config.getTarget()))));
+        server.createContext("/reload", x -> respond(x, y -> reload()));
+        server.start();
+        log.info("Answering queries on http://{}:{}", config.getServer().getHost(), getPort());
+    }
+
+    public int getPort() {
+        return server.getAddress().getPort();
+    }
+
+    public void stop() {
+        if(server != null) server.stop(0);
+    }
+
+    /**
+     * Reads the indexes of all archives and replaces the search index once it is complete, so queries running in the
+     * meantime are answered from the previous one. Indexes are prepared device by device by the {@link IndexScheduler}.
+     * Archives that are being watched are taken from the watcher, which already holds their current files. Archives
+     * using another fingerprint strategy than the target are aligned to it, see {@link #align}.
+     */
+    public synchronized Map<String, Object> reload() {
+        List<Archive> archives = new ArrayList<>(config.getSources());
+        archives.add(config.getTarget());
+        scheduler.prepare(archives.stream().filter(x -> !watcher.isWatching(x.getRoot())).collect(Collectors.toList()));
+        perArchive = archives.parallelStream()
+                .collect(Collectors.toMap(Archive::getRoot, this::load, (x, y) -> x, LinkedHashMap::new));
+        targetSizes = targetSizes(perArchive);
+        Set<String> current = perArchive.values()
+                .stream()
+                .flatMap(Collection::stream)
+                .map(QueryServer::key)
+                .collect(Collectors.toSet());
+        realigned.keySet().retainAll(current);
+        aligned = align(perArchive, perArchive.keySet());
+        index = new SearchIndex(aligned);
+        log.info("Loaded {} files from {} archives", index.count(), perArchive.size());
+        Map<String, Object> result = new LinkedHashMap<>();
+        result.put("archives", perArchive.size());
+        result.put("files", index.count());
+        return result;
+    }
+
+    /**
+     * Replaces the files of a single archive, e.g. after the watcher applied changes to it. A change of the target
+     * that changes the sizes the other archives are aligned for makes them all be aligned again, which only
+     * fingerprints files of sizes that are new to the target.
+     */
+    public synchronized void update(Path root, List<FileSummary> files) {
+        if(perArchive == null) return;
+        Map<Path, List<FileSummary>> updated = new LinkedHashMap<>(perArchive);
+        updated.put(root, files);
+        perArchive = updated;
+        Set<Long> sizes = targetSizes(updated);
+        boolean sizesChanged = !sizes.equals(targetSizes);
+        targetSizes = sizes;
+        Map<Path, List<FileSummary>> updatedAligned = new LinkedHashMap<>(aligned);
+        updatedAligned.putAll(align(updated, sizesChanged ? updated.keySet() : Collections.singleton(root)));
+        aligned = updatedAligned;
+        index = new SearchIndex(updatedAligned);
+    }
+
+    /**
+     * Makes the files of the given archives comparable by content with those of the target. Files of archives using
+     * another fingerprint strategy are fingerprinted again using the strategy of the target, like {@link Indexer#align}
+     * does for reports, but only if their size occurs in the target. They are copied first, so the files held by the
+     * watcher keep the fingerprints of their own index, and the copies are kept until the file changes.
+     */
+    private Map<Path, List<FileSummary>> align(Map<Path, List<FileSummary>> perArchive, Set<Path> roots) {
+        FingerprintStrategy strategy = config.getTarget().getFingerprint();
+        Set<Long> sizes = targetSizes;
+        Map<Path, List<FileSummary>> result = new LinkedHashMap<>();
+        for (Path root : roots) {
+            List<FileSummary> files = perArchive.get(root);
+            if(strategyOf(root) == strategy) {
+                result.put(root, files);
+                continue;
+            }
+            result.put(root, files.parallelStream()
+                    .map(x -> sizes.contains(x.getSize()) ? realigned.computeIfAbsent(key(x), y -> Indexer.refingerprint(x, strategy)) : x)
+                    .collect(Collectors.toList()));
+        }
+        return result;
+    }
+
+    private Set<Long> targetSizes(Map<Path, List<FileSummary>> perArchive) {
+        return perArchive.getOrDefault(config.getTarget().getRoot(), Collections.emptyList())
+                .stream()
+                .map(FileSummary::getSize)
+                .collect(Collectors.toSet());
+    }
+
+    private static String key(FileSummary file) {
+        return file.getPath() + '\t' + file.getSize() + '\t' + file.getModified();
+    }
+
+    private FingerprintStrategy strategyOf(Path root) {
+        return config.getSources()
+                .stream()
+                .filter(x -> x.getRoot().equals(root))
+                .map(Archive::getFingerprint)
+                .findFirst()
+                .orElse(config.getTarget().getFingerprint());
+    }
+
+    private List<FileSummary> load(Archive archive) {
+        if(watcher.isWatching(archive.getRoot())) return watcher.files(archive.getRoot());
+        return flatten(indexer.loadIndex(archive));
+    }
+
+    private static List<FileSummary> flatten(Map<Long, List<FileSummary>> index) {
+        List<FileSummary> files = new ArrayList<>();
+        index.values().forEach(files::addAll);
+        return files;
+    }
+
+    private List<FileSummary> files(Map<String, String> parameters) {
+        if(parameters.containsKey("extension")) return index.withExtension(parameters.get("extension"));
+        if(parameters.containsKey("directory")) return index.inDirectory(parameters.get("directory"));
+        Pattern regex = Pattern.compile(required(parameters, "regex"));
+        int limit = parameters.containsKey("limit") ? Integer.parseInt(parameters.get("limit")) : DEFAULT_LIMIT;
+        return index.matching(x -> regex.matcher(x).find(), limit);
+    }
+
+    /**
+     * Missing files of a source, after applying the configured filters to both archives as a report would: all
+     * filters to the source, and all but the EXIF filter to the archive it is compared with.
+     */
+    private List<FileSummary> missing(Map<String, String> parameters) {
+        Path source = archive(parameters, "archive", null);
+        Path from = archive(parameters, "from", config.getTarget());
+        return index.missing(source, from, filters.predicate(), filters::test);
+    }
+
+    private Path archive(Map<String, String> parameters, String name, Archive fallback) {
+        if(!parameters.containsKey(name) && fallback != null) return fallback.getRoot();
+        return Paths.get(required(parameters, name));
+    }
+
+    private static String required(Map<String, String> parameters, String name) {
+        String value = parameters.get(name);
+        if(value == null) throw new IllegalArgumentException(String.format("Missing parameter: %s", name));
+        return value;
+    }
+
+    private void respond(HttpExchange exchange, Function<Map<String, String>, Object> query) throws IOException {
+        int status = 200;
+        Object result;
+        try {
+            result = query.apply(parameters(exchange.getRequestURI().getRawQuery()));
+        } catch (IllegalArgumentException e) {
+            status = 400;
+            result = Collections.singletonMap("error", e.getMessage());
+        } catch (RuntimeException e) {
+            log.warn(String.format("Failed to answer query: %s", exchange.getRequestURI()), e);
+            status = 500;
+            result = Collections.singletonMap("error", String.valueOf(e.getMessage()));
+        }
+        byte[] body = mapper.writeValueAsBytes(result);
+        exchange.getResponseHeaders().set("Content-Type", "application/json; charset=utf-8");
+        exchange.sendResponseHeaders(status, body.length);
+        try (OutputStream out = exchange.getResponseBody()) {
+            out.write(body);
+        }
+    }
+
+    private static Map<String, String> parameters(String query) throws UnsupportedEncodingException {
+        Map<String, String> parameters = new HashMap<>();
+        if(query == null) return parameters;
+        for (String parameter : query.split("&")) {
+            int separator = parameter.indexOf('=');
+            if(separator < 0) continue;
+            parameters.put(URLDecoder.decode(parameter.substring(0, separator), "UTF-8"),
+                    URLDecoder.decode(parameter.substring(separator + 1), "UTF-8"));
+        }
+        return parameters;
+    }
+}
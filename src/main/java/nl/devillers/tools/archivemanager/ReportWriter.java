@@ -0,0 +1,164 @@
+package nl.devillers.tools.archivemanager;
+
+import com.fasterxml.jackson.core.JsonFactory;
+import com.fasterxml.jackson.core.JsonGenerator;
+import nl.devillers.tools.archivemanager.model.Archive;
+import nl.devillers.tools.archivemanager.model.FileSummary;
+import nl.devillers.tools.archivemanager.model.ReportFormat;
+
+import java.io.BufferedWriter;
+import java.io.Closeable;
+import java.io.IOException;
+import java.io.Writer;
+import java.nio.channels.Channels;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.nio.file.StandardOpenOption;
+import java.util.Comparator;
+import java.util.List;
+import java.util.stream.Collectors;
+
+/**
+ * Writes a report entry by entry through a buffered channel, so no part of the report is built up in memory. Every
+ * file is written with its size, fingerprint and the archive it belongs to, except in the {@link ReportFormat#TEXT}
+ * format, which holds paths only.
+ */
+public class ReportWriter implements Closeable {
+
+    private static final int BUFFER_SIZE = 64 * 1024;
+    private static final JsonFactory json = new JsonFactory();
+
+    private final ReportFormat format;
+    private final List<Path> roots;
+    private final Writer writer;
+    private final JsonGenerator generator;
+    private boolean headerWritten;
+
+    private ReportWriter(Path path, ReportFormat format, List<Archive> archives) throws IOException {
+        this.format = format;
+        // Deepest roots first, so files of nested archives are attributed to the innermost one
+        this.roots = archives.stream()
+                .map(Archive::getRoot)
+                .sorted(Comparator.comparingInt(Path::getNameCount).reversed())
+                .collect(Collectors.toList());
+        FileChannel channel = FileChannel.open(path, StandardOpenOption.CREATE_NEW, StandardOpenOption.WRITE);
+        this.writer = new BufferedWriter(Channels.newWriter(channel, StandardCharsets.UTF_8.newEncoder(), -1), BUFFER_SIZE);
+        this.generator = format == ReportFormat.JSONL ? json.createGenerator(writer).setRootValueSeparator(null) : null;
+    }
+
+    /**
+     * Creates a new report, failing if the file already exists.
+     */
+    public static ReportWriter open(Path path, ReportFormat format, List<Archive> archives) throws IOException {
+        return new ReportWriter(path, format, archives);
+    }
+
+    /**
+     * Writes a single file, e.g. one that is missing.
+     */
+    public void file(FileSummary file) throws IOException {
+        switch (format) {
+            case TEXT:
+                writer.write(file.getPath());
+                writer.write(System.lineSeparator());
+                break;
+            case CSV:
+                header("path,size,fingerprint,archive");
+                csv(file, "");
+                break;
+            case JSONL:
+                generator.writeStartObject();
+                fields(file);
+                generator.writeEndObject();
+                generator.writeRaw('\n');
+                break;
+        }
+    }
+
+    /**
+     * Writes a group of files with the same content, along with the bytes freed by keeping only one of them.
+     */
+    public void group(int number, List<FileSummary> files) throws IOException {
+        long reclaimable = reclaimable(files);
+        switch (format) {
+            case TEXT:
+                for (int i = 0; i < files.size(); i++) {
+                    writer.write(i == 0 ? ">" : " ");
+                    writer.write(files.get(i).getPath());
+                    writer.write(System.lineSeparator());
+                }
+                break;
+            case CSV:
+                header("group,reclaimable,path,size,fingerprint,archive");
+                for (FileSummary file : files) {
+                    csv(file, number + "," + reclaimable + ",");
+                }
+                break;
+            case JSONL:
+                generator.writeStartObject();
+                generator.writeNumberField("group", number);
+                generator.writeNumberField("reclaimable", reclaimable);
+                generator.writeArrayFieldStart("files");
+                for (FileSummary file : files) {
+                    generator.writeStartObject();
+                    fields(file);
+                    generator.writeEndObject();
+                }
+                generator.writeEndArray();
+                generator.writeEndObject();
+                generator.writeRaw('\n');
+                break;
+        }
+    }
+
+    /**
+     * Bytes freed by removing all but one file of a group of duplicates.
+     */
+    public static long reclaimable(List<FileSummary> group) {
+        return group.isEmpty() ? 0 : group.get(0).getSize() * (group.size() - 1);
+    }
+
+    @Override
+    public void close() throws IOException {
+        if(generator != null) generator.close();
+        writer.close();
+    }
+
+    private void header(String header) throws IOException {
+        if(headerWritten) return;
+        writer.write(header);
+        writer.write('\n');
+        headerWritten = true;
+    }
+
+    private void csv(FileSummary file, String prefix) throws IOException {
+        writer.write(prefix);
+        writer.write(quote(file.getPath()));
+        writer.write(',');
+        writer.write(Long.toString(file.getSize()));
+        writer.write(',');
+        writer.write(file.getFingerprint());
+        writer.write(',');
+        writer.write(quote(archive(file)));
+        writer.write('\n');
+    }
+
+    private void fields(FileSummary file) throws IOException {
+        generator.writeStringField("path", file.getPath());
+        generator.writeNumberField("size", file.getSize());
+        generator.writeStringField("fingerprint", file.getFingerprint());
+        generator.writeStringField("archive", archive(file));
+    }
+
+    private String archive(FileSummary file) {
+        Path path = Paths.get(file.getPath());
+        return roots.stream().filter(path::startsWith).findFirst().map(Path::toString).orElse("");
+    }
+
+    private static String quote(String value) {
+        if(value.indexOf(',') < 0 && value.indexOf('"') < 0 && value.indexOf('\n') < 0 && value.indexOf('\r') < 0) return value;
+        return '"' + value.replace("\"", "\"\"") + '"';
+    }
+}
@@ -0,0 +1,279 @@
+package nl.devillers.tools.archivemanager;
+
+import lombok.NonNull;
+import lombok.RequiredArgsConstructor;
+import lombok.SneakyThrows;
+import lombok.extern.slf4j.Slf4j;
+import nl.devillers.tools.archivemanager.model.*;
+import org.apache.commons.codec.digest.DigestUtils;
+import org.springframework.stereotype.Component;
+
+import java.io.*;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.nio.file.StandardCopyOption;
+import java.util.*;
+import java.util.stream.Collectors;
+
+/**
+ * Keeps the missing files and duplicates of a run, so a next run only derives what its inputs changed. Every result is
+ * stamped with the location, length and modification time of the indexes it was derived from, like the master index,
+ * as well as the fingerprint strategy and excludes of their archives, and with a digest of the filters that affect it.
+ * Indexes are stamped when the results are loaded, right before the indexes are read. Missing files are kept per source, as they only depend on that
+ * source and the target, so changing one source only means comparing that source again. The cache is a single file:
+ *
+ * <pre>
+ * header    : magic (int) | version (int) | configuration (UTF) | target stamp (UTF)
+ * sources   : count (int) | (index (UTF) | stamp (UTF) | files (long) | count (int) | entry*)*
+ * duplicates: count (int) | (count (int) | entry*)*
+ * dirs      : count (int) | (path (UTF) | files (int))*
+ * </pre>
+ *
+ * Entries are encoded as in {@link IndexFile}.
+ */
+@Component
+@RequiredArgsConstructor
+@Slf4j
+public class ResultCache {
+
+    static final int MAGIC = 0x414D5243; // "AMRC"
+    static final int VERSION = 1;
+
+    private static final int BUFFER_SIZE = 1 << 16;
+
+    @NonNull Config config;
+
+    /**
+     * Reads the results of an earlier run, keeping only those that are still valid for the current indexes and
+     * configuration. Returns empty results, stamped for the current run, if there are none.
+     */
+    public CachedResults load() {
+        CachedResults current = new CachedResults();
+        current.setConfiguration(configuration());
+        current.setTarget(stamp(config.getTarget()));
+        config.getSources().forEach(x -> current.getLoaded().put(key(x), stamp(x)));
+        Path path = path();
+        if(!Files.exists(path)) return current;
+        CachedResults cached;
+        try {
+            cached = read(path);
+        } catch (IOException e) {
+            log.warn(String.format("Ignoring unreadable result cache: %s", path), e);
+            return current;
+        }
+        if(!current.getConfiguration().equals(cached.getConfiguration()) || !current.getTarget().equals(cached.getTarget())) {
+            log.info("Target or filters changed since the cached results in {}", path);
+            return current;
+        }
+        for (Archive source : config.getSources()) {
+            CachedResults.SourceResults results = cached.getSources().get(key(source));
+            if(results != null && results.getStamp().equals(current.getLoaded().get(key(source)))) current.getSources().put(key(source), results);
+        }
+        current.setDuplicates(cached.getDuplicates());
+        current.setDirectoryFiles(cached.getDirectoryFiles());
+        log.info("Reusing cached results of {} of {} sources", current.getSources().size(), config.getSources().size());
+        return current;
+    }
+
+    /**
+     * Sources whose results are not cached.
+     */
+    public List<Archive> stale(CachedResults results) {
+        return config.getSources().stream()
+                .filter(x -> !results.getSources().containsKey(key(x)))
+                .collect(Collectors.toList());
+    }
+
+    /**
+     * Adds the results of sources that were compared again, attributing every file to the source it belongs to.
+     *
+     * @param sources Sources that were compared
+     * @param index Merged index of those sources, before filtering
+     * @param missing Files of those sources missing from the target
+     */
+    public void put(CachedResults results, List<Archive> sources, Map<Long, List<FileSummary>> index, List<FileSummary> missing) {
+        Map<Archive, Long> files = index.values()
+                .stream()
+                .flatMap(Collection::stream)
+                .collect(Collectors.groupingBy(x -> sourceOf(sources, x), Collectors.counting()));
+        Map<Archive, List<FileSummary>> missingPerSource = missing.stream()
+                .collect(Collectors.groupingBy(x -> sourceOf(sources, x)));
+        for (Archive source : sources) {
+            results.getSources().put(key(source), new CachedResults.SourceResults(results.getLoaded().get(key(source)),
+                    files.getOrDefault(source, 0L), missingPerSource.getOrDefault(source, new ArrayList<>())));
+        }
+    }
+
+    /**
+     * Detection made up of the results of all sources, in the order they are configured.
+     */
+    public Detection detection(CachedResults results) {
+        long files = 0;
+        List<FileSummary> missing = new ArrayList<>();
+        for (Archive source : config.getSources()) {
+            CachedResults.SourceResults sourceResults = results.getSources().get(key(source));
+            files += sourceResults.getFiles();
+            missing.addAll(sourceResults.getMissing());
+        }
+        return new Detection(files, missing, results.getDuplicates(), results.getDirectoryFiles());
+    }
+
+    /**
+     * Stamps of the indexes of the target and all sources as they are now, keyed by the location of the index.
+     */
+    public Map<String, String> stamps() {
+        Map<String, String> stamps = new HashMap<>();
+        stamps.put(key(config.getTarget()), stamp(config.getTarget()));
+        config.getSources().forEach(x -> stamps.put(key(x), stamp(x)));
+        return stamps;
+    }
+
+    /**
+     * Stamps the indexes again after they were rewritten without changing the files they hold, e.g. to cache content
+     * hashes. Only indexes that still had the stamp of the results right before they were rewritten are stamped again,
+     * so any other change to an index in the meantime keeps invalidating the results derived from it.
+     *
+     * @param before Stamps taken right before the indexes were rewritten, see {@link #stamps()}
+     */
+    public void restamp(CachedResults results, Map<String, String> before) {
+        Map<String, String> after = stamps();
+        String target = key(config.getTarget());
+        if(results.getTarget().equals(before.get(target))) results.setTarget(after.get(target));
+        for (Archive source : config.getSources()) {
+            CachedResults.SourceResults sourceResults = results.getSources().get(key(source));
+            if(sourceResults != null && sourceResults.getStamp().equals(before.get(key(source)))) {
+                sourceResults.setStamp(after.get(key(source)));
+            }
+        }
+    }
+
+    /**
+     * Writes the results to a temporary file first, so an interrupted write leaves the previous results intact.
+     */
+    @SneakyThrows
+    public void save(CachedResults results) {
+        Path path = path();
+        Path temporary = path.resolveSibling(path.getFileName() + ".tmp");
+        try (DataOutputStream out = new DataOutputStream(new BufferedOutputStream(Files.newOutputStream(temporary), BUFFER_SIZE))) {
+            out.writeInt(MAGIC);
+            out.writeInt(VERSION);
+            out.writeUTF(results.getConfiguration());
+            out.writeUTF(results.getTarget());
+            out.writeInt(results.getSources().size());
+            for (Map.Entry<String, CachedResults.SourceResults> entry : results.getSources().entrySet()) {
+                out.writeUTF(entry.getKey());
+                out.writeUTF(entry.getValue().getStamp());
+                out.writeLong(entry.getValue().getFiles());
+                writeEntries(out, entry.getValue().getMissing());
+            }
+            out.writeInt(results.getDuplicates().size());
+            for (List<FileSummary> group : results.getDuplicates()) {
+                writeEntries(out, group);
+            }
+            out.writeInt(results.getDirectoryFiles().size());
+            for (Map.Entry<Path, Integer> entry : results.getDirectoryFiles().entrySet()) {
+                out.writeUTF(entry.getKey().toString());
+                out.writeInt(entry.getValue());
+            }
+        }
+        Files.move(temporary, path, StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+        log.info("Cached results of {} sources in {}", results.getSources().size(), path);
+    }
+
+    private static CachedResults read(Path path) throws IOException {
+        try (DataInputStream in = new DataInputStream(new BufferedInputStream(Files.newInputStream(path), BUFFER_SIZE))) {
+            if(in.readInt() != MAGIC || in.readInt() != VERSION) throw new IOException("Not a result cache of this version");
+            CachedResults results = new CachedResults();
+            results.setConfiguration(in.readUTF());
+            results.setTarget(in.readUTF());
+            int sources = in.readInt();
+            for (int i = 0; i < sources; i++) {
+                String key = in.readUTF();
+                String stamp = in.readUTF();
+                long files = in.readLong();
+                results.getSources().put(key, new CachedResults.SourceResults(stamp, files, readEntries(in)));
+            }
+            int groups = in.readInt();
+            List<List<FileSummary>> duplicates = new ArrayList<>(groups);
+            for (int i = 0; i < groups; i++) {
+                duplicates.add(readEntries(in));
+            }
+            results.setDuplicates(duplicates);
+            int directories = in.readInt();
+            Map<Path, Integer> directoryFiles = new HashMap<>(directories * 2);
+            for (int i = 0; i < directories; i++) {
+                directoryFiles.put(Paths.get(in.readUTF()), in.readInt());
+            }
+            results.setDirectoryFiles(directoryFiles);
+            return results;
+        }
+    }
+
+    private static void writeEntries(DataOutputStream out, List<FileSummary> entries) throws IOException {
+        out.writeInt(entries.size());
+        for (FileSummary entry : entries) {
+            IndexFile.writeEntry(out, entry);
+        }
+    }
+
+    private static List<FileSummary> readEntries(DataInputStream in) throws IOException {
+        int count = in.readInt();
+        List<FileSummary> entries = new ArrayList<>(count);
+        for (int i = 0; i < count; i++) {
+            entries.add(IndexFile.readEntry(in));
+        }
+        return entries;
+    }
+
+    /**
+     * Digest of every setting that affects which files are reported as missing or duplicate.
+     */
+    String configuration() {
+        StringBuilder builder = new StringBuilder();
+        config.getRegexFilters().forEach(x -> builder.append(x.pattern()).append('|').append(x.flags()).append('\n'));
+        builder.append(config.getIgnoreEmptyFiles()).append('\n');
+        if(config.getExifFilter() != null) {
+            builder.append(config.getExifFilter().getEnabled()).append('|').append(config.getExifFilter().getExtensions()).append('\n');
+        }
+        builder.append(config.getVerifyContent()).append('\n');
+        return DigestUtils.sha1Hex(builder.toString());
+    }
+
+    /**
+     * Stamp of the root, fingerprint strategy and excludes of an archive and the location, length and modification
+     * time of its index. Changing the excludes does not always change the index, e.g. if it is not refreshed.
+     */
+    static String stamp(Archive archive) {
+        Path index = archive.getIndex().toAbsolutePath();
+        StringBuilder builder = new StringBuilder().append(archive.getRoot()).append('|').append(index)
+                .append('|').append(archive.getFingerprint());
+        archive.getExcludes().forEach(x -> builder.append('|').append(x.pattern()).append('/').append(x.flags()));
+        try {
+            builder.append('|').append(Files.size(index)).append('|').append(Files.getLastModifiedTime(index).toMillis());
+        } catch (IOException e) {
+            builder.append("|absent");
+        }
+        return DigestUtils.sha1Hex(builder.toString());
+    }
+
+    private static String key(Archive source) {
+        return source.getIndex().toAbsolutePath().toString();
+    }
+
+    /**
+     * The source a file belongs to, which is the one with the deepest root if sources are nested.
+     */
+    private static Archive sourceOf(List<Archive> sources, FileSummary file) {
+        return sources.stream()
+                .filter(x -> x.contains(file.getPath()))
+                .max(Comparator.comparingInt(x -> x.getRoot().getNameCount()))
+                .orElse(sources.get(0));
+    }
+
+    private Path path() {
+        if(config.getResultCache() != null) return config.getResultCache();
+        Path index = config.getTarget().getIndex();
+        return index.resolveSibling(index.getFileName() + ".results");
+    }
+}
@@ -0,0 +1,138 @@
+package nl.devillers.tools.archivemanager;
+
+import nl.devillers.tools.archivemanager.model.ContentKey;
+import nl.devillers.tools.archivemanager.model.FileSummary;
+
+import java.nio.file.Path;
+import java.util.*;
+import java.util.function.Predicate;
+import java.util.stream.Collectors;
+
+/**
+ * Read-only snapshot of the files of several archives, with secondary indexes by content, path, extension and
+ * directory so queries are answered by lookups instead of a scan over every file. Files are shared between the
+ * secondary indexes, each index only adds a map entry per file.
+ */
+public class SearchIndex {
+
+    private final Map<Path, List<FileSummary>> perArchive;
+    private final Map<FileSummary, Path> archiveOf = new IdentityHashMap<>();
+    private final Map<ContentKey, List<FileSummary>> byContent = new HashMap<>();
+    private final Map<String, FileSummary> byPath = new HashMap<>();
+    private final Map<String, List<FileSummary>> byExtension = new HashMap<>();
+    private final NavigableMap<String, List<FileSummary>> byDirectory = new TreeMap<>();
+
+    /**
+     * Builds the secondary indexes over the files of every archive, keyed by the root of the archive.
+     */
+    public SearchIndex(Map<Path, List<FileSummary>> perArchive) {
+        this.perArchive = perArchive;
+        perArchive.forEach((archive, files) -> files.forEach(x -> add(archive, x)));
+    }
+
+    private void add(Path archive, FileSummary file) {
+        archiveOf.put(file, archive);
+        String path = file.getPath();
+        int separator = Math.max(path.lastIndexOf('/'), path.lastIndexOf('\\')) + 1;
+        byContent.computeIfAbsent(ContentKey.of(file), x -> new ArrayList<>(1)).add(file);
+        byPath.put(path, file);
+        byExtension.computeIfAbsent(ExifExtractor.extension(path), x -> new ArrayList<>()).add(file);
+        byDirectory.computeIfAbsent(path.substring(0, separator), x -> new ArrayList<>()).add(file);
+    }
+
+    public int count() {
+        return byPath.size();
+    }
+
+    public Set<Path> getArchives() {
+        return perArchive.keySet();
+    }
+
+    public Optional<FileSummary> file(String path) {
+        return Optional.ofNullable(byPath.get(path));
+    }
+
+    /**
+     * Other files with the same size and fingerprint as the file at the given path, in any archive.
+     */
+    public List<FileSummary> whereElse(String path) {
+        FileSummary file = byPath.get(path);
+        if(file == null) return Collections.emptyList();
+        return byContent.get(ContentKey.of(file))
+                .stream()
+                .filter(x -> x != file)
+                .collect(Collectors.toList());
+    }
+
+    public List<FileSummary> withContent(long size, String fingerprint) {
+        return byContent.getOrDefault(new ContentKey(size, fingerprint), Collections.emptyList());
+    }
+
+    public List<FileSummary> withExtension(String extension) {
+        return byExtension.getOrDefault(extension.toLowerCase(Locale.ROOT), Collections.emptyList());
+    }
+
+    /**
+     * Files in directories starting with the given prefix, which includes the files in all their subdirectories.
+     */
+    public List<FileSummary> inDirectory(String prefix) {
+        return byDirectory.subMap(prefix, true, prefix + Character.MAX_VALUE, false)
+                .values()
+                .stream()
+                .flatMap(Collection::stream)
+                .collect(Collectors.toList());
+    }
+
+    /**
+     * Scans all files for paths matching the given predicate, e.g. a regex.
+     */
+    public List<FileSummary> matching(Predicate<String> path, int limit) {
+        return byPath.values()
+                .parallelStream()
+                .filter(x -> path.test(x.getPath()))
+                .limit(limit)
+                .collect(Collectors.toList());
+    }
+
+    /**
+     * Files of an archive that do not exist with the same content in the other archive.
+     */
+    public List<FileSummary> missing(Path archive, Path from) {
+        return missing(archive, from, x -> true, x -> true);
+    }
+
+    /**
+     * Files of an archive passing the first filter that do not exist with the same content in the other archive, only
+     * counting files of the other archive that pass the second filter.
+     */
+    public List<FileSummary> missing(Path archive, Path from, Predicate<FileSummary> filter, Predicate<FileSummary> fromFilter) {
+        return files(archive)
+                .stream()
+                .filter(filter)
+                .filter(x -> byContent.get(ContentKey.of(x)).stream().noneMatch(y -> belongsTo(y, from) && fromFilter.test(y)))
+                .collect(Collectors.toList());
+    }
+
+    /**
+     * Groups of files with the same content within a single archive.
+     */
+    public List<List<FileSummary>> duplicates(Path archive) {
+        return files(archive)
+                .stream()
+                .map(ContentKey::of)
+                .distinct()
+                .map(x -> byContent.get(x).stream().filter(y -> belongsTo(y, archive)).collect(Collectors.toList()))
+                .filter(x -> x.size() > 1)
+                .collect(Collectors.toList());
+    }
+
+    private List<FileSummary> files(Path archive) {
+        List<FileSummary> files = perArchive.get(archive);
+        if(files == null) throw new IllegalArgumentException(String.format("Unknown archive: %s", archive));
+        return files;
+    }
+
+    private boolean belongsTo(FileSummary file, Path archive) {
+        return archive.equals(archiveOf.get(file));
+    }
+}
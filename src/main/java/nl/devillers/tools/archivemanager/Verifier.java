@@ -0,0 +1,128 @@
+package nl.devillers.tools.archivemanager;
+
+import lombok.AllArgsConstructor;
+import lombok.NonNull;
+import lombok.extern.slf4j.Slf4j;
+import nl.devillers.tools.archivemanager.model.Archive;
+import nl.devillers.tools.archivemanager.model.CompactIndex;
+import nl.devillers.tools.archivemanager.model.Config;
+import nl.devillers.tools.archivemanager.model.FileSummary;
+import nl.devillers.tools.archivemanager.model.FingerprintStrategy;
+import org.springframework.stereotype.Component;
+
+import java.nio.file.Paths;
+import java.util.*;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.stream.Collectors;
+import java.util.stream.Stream;
+
+/**
+ * Last stage of matching files: size and fingerprint narrow down candidates cheaply, after which files that still
+ * collide are compared on a hash of their full content. Content hashes are computed at most once per file and written
+ * back to the index of the archive they belong to.
+ */
+@Component
+@AllArgsConstructor
+@Slf4j
+public class Verifier {
+
+    @NonNull Indexer indexer;
+    @NonNull Config config;
+
+    private final Map<String, String> computed = new ConcurrentHashMap<>();
+
+    /**
+     * Finds files in the right index that match a file in the left index on size and fingerprint, but not on full
+     * content. These are missing from the left index even though {@link Mappers#rightWithoutLeft} considers them
+     * present. Files that cannot be read are reported as well, as they cannot be proven to be present.
+     */
+    public List<FileSummary> falseMatches(CompactIndex left, Map<Long, List<FileSummary>> right) {
+        return right.values()
+                .parallelStream()
+                .flatMap(Collection::stream)
+                .filter(x -> !Fingerprinter.coversContent(x.getSize(), strategy()))
+                .filter(x -> {
+                    int first = left.find(x.getSize(), x.getFingerprint());
+                    return first >= 0 && !matchesContent(left, first, x);
+                })
+                .collect(Collectors.toList());
+    }
+
+    /**
+     * Splits groups of duplicates by full content hash, dropping files that turn out to be unique.
+     */
+    public List<List<FileSummary>> verifyDuplicates(List<List<FileSummary>> duplicates) {
+        return duplicates.parallelStream()
+                .flatMap(x -> Fingerprinter.coversContent(x.get(0).getSize(), strategy()) ? Stream.of(x) : split(x))
+                .collect(Collectors.toList());
+    }
+
+    /**
+     * Writes the content hashes computed since the last call to the indexes of the given archives, returning them by
+     * path.
+     */
+    public Map<String, String> persist(List<Archive> archives) {
+        Map<String, String> persisted = new HashMap<>(computed);
+        for (Archive archive : archives) {
+            Map<String, String> contentHashes = computed.entrySet()
+                    .stream()
+                    .filter(x -> archive.contains(x.getKey()))
+                    .collect(Collectors.toMap(Map.Entry::getKey, Map.Entry::getValue));
+            if(contentHashes.isEmpty()) continue;
+            log.info("Saving {} content hashes to {}", contentHashes.size(), archive.getIndex());
+            indexer.saveContentHashes(archive, contentHashes);
+        }
+        computed.clear();
+        return persisted;
+    }
+
+    /**
+     * Files are compared using the fingerprint strategy of the target, see {@link Indexer#align}.
+     */
+    private FingerprintStrategy strategy() {
+        return config.getTarget() == null ? FingerprintStrategy.HEAD_TAIL : config.getTarget().getFingerprint();
+    }
+
+    private boolean matchesContent(CompactIndex index, int first, FileSummary file) {
+        Optional<String> contentHash = contentHash(file);
+        if(!contentHash.isPresent()) return false;
+        for (int i = first; i < index.count() && index.sameContent(first, i); i++) {
+            if(contentHash.equals(contentHash(index, i))) return true;
+        }
+        return false;
+    }
+
+    private Stream<List<FileSummary>> split(List<FileSummary> group) {
+        Map<String, List<FileSummary>> byContent = new LinkedHashMap<>();
+        for (FileSummary file : group) {
+            contentHash(file).ifPresent(x -> byContent.computeIfAbsent(x, y -> new ArrayList<>()).add(file));
+        }
+        return byContent.values().stream().filter(x -> x.size() > 1);
+    }
+
+    private Optional<String> contentHash(FileSummary file) {
+        if(file.getContentHash() != null) return Optional.of(file.getContentHash());
+        Optional<String> contentHash = contentHash(file.getPath());
+        contentHash.ifPresent(x -> {
+            file.setContentHash(x);
+            computed.put(file.getPath(), x);
+        });
+        return contentHash;
+    }
+
+    private Optional<String> contentHash(CompactIndex index, int entry) {
+        String cached = index.contentHash(entry);
+        if(cached != null) return Optional.of(cached);
+        String path = index.path(entry);
+        Optional<String> contentHash = contentHash(path);
+        contentHash.ifPresent(x -> {
+            index.setContentHash(entry, x);
+            computed.put(path, x);
+        });
+        return contentHash;
+    }
+
+    private static Optional<String> contentHash(String path) {
+        return ZipIndexer.isVirtual(path) ? ZipIndexer.contentHash(path) : Fingerprinter.contentHash(Paths.get(path));
+    }
+}
@@ -0,0 +1,338 @@
+package nl.devillers.tools.archivemanager;
+
+import lombok.NonNull;
+import lombok.RequiredArgsConstructor;
+import lombok.SneakyThrows;
+import lombok.extern.slf4j.Slf4j;
+import nl.devillers.tools.archivemanager.model.Archive;
+import nl.devillers.tools.archivemanager.model.Config;
+import nl.devillers.tools.archivemanager.model.FileSummary;
+import nl.devillers.tools.archivemanager.model.Watch;
+import org.springframework.stereotype.Component;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.file.*;
+import java.nio.file.attribute.BasicFileAttributes;
+import java.util.*;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.TimeUnit;
+import java.util.function.BiConsumer;
+import java.util.stream.Collectors;
+
+import static java.nio.file.StandardWatchEventKinds.*;
+
+/**
+ * Keeps the indexes of archives current by watching them for changes. Events are collected until the archive has been
+ * quiet for a moment and then applied as one batch: created and modified files are fingerprinted, deleted files and
+ * directories are dropped. A file deleted and created in the same batch with the same name, size and modification time
+ * is taken to be moved and keeps its fingerprint, unless several deleted files match it. Entries of zip files are replaced along with the zip file itself if the
+ * archive indexes zip files. Changed indexes are written to disk periodically and when stopping.
+ */
+@Component
+@RequiredArgsConstructor
+@Slf4j
+public class Watcher {
+
+    @NonNull Config config;
+    @NonNull Indexer indexer;
+
+    private final List<WatchedArchive> archives = new CopyOnWriteArrayList<>();
+    private final Map<WatchKey, Path> directories = new ConcurrentHashMap<>();
+    private final Set<Path> registered = ConcurrentHashMap.newKeySet();
+    private BiConsumer<Path, List<FileSummary>> listener;
+    private WatchService watchService;
+    private Thread thread;
+    private volatile boolean running;
+
+    /**
+     * Reads the indexes of the given archives and starts watching them. The listener is called with all files of an
+     * archive every time a batch of changes to it has been applied.
+     */
+    @SneakyThrows
+    public void start(List<Archive> watched, BiConsumer<Path, List<FileSummary>> listener) {
+        this.listener = listener;
+        watchService = FileSystems.getDefault().newWatchService();
+        for (Archive archive : watched) {
+            WatchedArchive watchedArchive = new WatchedArchive(archive);
+            archives.add(watchedArchive);
+            // Register first, so changes made while the index is read are applied afterwards instead of being lost
+            register(watchedArchive, archive.getRoot());
+            indexer.readIndex(archive).values().forEach(x -> x.forEach(y -> watchedArchive.files.put(y.getPath(), y)));
+            log.info("Watching {} files in {} directories of {}", watchedArchive.files.size(), directories.size(), archive.getRoot());
+        }
+        running = true;
+        thread = new Thread(this::run, "watcher");
+        thread.start();
+    }
+
+    /**
+     * Stops watching and writes all changes not yet written to disk.
+     */
+    @SneakyThrows
+    public void stop() {
+        if(thread == null) return;
+        running = false;
+        watchService.close();
+        thread.join();
+        checkpoint();
+    }
+
+    public boolean isWatching(Path root) {
+        return archive(root) != null;
+    }
+
+    /**
+     * Current files of a watched archive.
+     */
+    public List<FileSummary> files(Path root) {
+        return new ArrayList<>(archive(root).files.values());
+    }
+
+    private void run() {
+        Watch watch = config.getWatch();
+        Set<Path> pending = new LinkedHashSet<>();
+        long firstPending = 0;
+        long lastCheckpoint = System.nanoTime();
+        try {
+            while(running) {
+                WatchKey key = watchService.poll(watch.getQuietPeriod().toMillis(), TimeUnit.MILLISECONDS);
+                if(key != null) {
+                    if(pending.isEmpty()) firstPending = System.nanoTime();
+                    collect(key, pending);
+                    if(System.nanoTime() - firstPending < watch.getMaxDelay().toNanos()) continue;
+                }
+                if(!pending.isEmpty()) {
+                    apply(pending);
+                    pending.clear();
+                }
+                if(System.nanoTime() - lastCheckpoint >= watch.getCheckpointInterval().toNanos()) {
+                    checkpoint();
+                    lastCheckpoint = System.nanoTime();
+                }
+            }
+        } catch (InterruptedException | ClosedWatchServiceException e) {
+            log.info("Stopped watching");
+        } catch (RuntimeException e) {
+            log.error("Watching failed, indexes are no longer kept up to date", e);
+        }
+    }
+
+    private void collect(WatchKey key, Set<Path> pending) {
+        Path directory = directories.get(key);
+        for (WatchEvent<?> event : key.pollEvents()) {
+            if(directory == null) continue;
+            if(event.kind() == OVERFLOW) {
+                // Events were lost, so everything in the directory needs to be looked at again
+                log.warn("Missed events in {}, rescanning it", directory);
+                pending.addAll(rescan(directory));
+            } else {
+                pending.add(directory.resolve((Path)event.context()));
+            }
+        }
+        if(!key.reset()) {
+            directories.remove(key);
+            if(directory != null) registered.remove(directory);
+        }
+    }
+
+    /**
+     * Applies a batch of changed paths. Deletions are handled first, so files that were moved can keep their
+     * fingerprint when they are picked up at their new location.
+     */
+    private void apply(Set<Path> pending) {
+        Map<String, List<FileSummary>> removed = new HashMap<>();
+        Set<WatchedArchive> changed = new LinkedHashSet<>();
+        List<Path> existing = new ArrayList<>();
+        for (Path path : pending) {
+            WatchedArchive archive = archiveOf(path);
+            if(archive == null) continue;
+            if(Files.exists(path, LinkOption.NOFOLLOW_LINKS)) {
+                existing.add(path);
+            } else {
+                List<FileSummary> deleted = archive.remove(path);
+                deleted.stream()
+                        .filter(x -> !ZipIndexer.isVirtual(x.getPath()))
+                        .forEach(x -> removed.computeIfAbsent(moveKey(Paths.get(x.getPath()), x.getSize(), x.getModified()),
+                                y -> new ArrayList<>(1)).add(x));
+                registered.removeIf(x -> x.startsWith(path));
+                if(!deleted.isEmpty()) changed.add(archive);
+            }
+        }
+        for (Path path : existing) {
+            WatchedArchive archive = archiveOf(path);
+            if(Files.isDirectory(path, LinkOption.NOFOLLOW_LINKS)) {
+                if(registered.contains(path)) continue;
+                for (Path file : register(archive, path)) {
+                    if(update(archive, file, removed)) changed.add(archive);
+                }
+            } else if(update(archive, path, removed)) {
+                changed.add(archive);
+            }
+        }
+        for (WatchedArchive archive : changed) {
+            archive.dirty = true;
+            log.info("Applied changes to {}, now {} files", archive.archive.getRoot(), archive.files.size());
+            listener.accept(archive.archive.getRoot(), new ArrayList<>(archive.files.values()));
+        }
+    }
+
+    /**
+     * Brings the entry of a single file up to date, returning whether it changed.
+     */
+    private boolean update(WatchedArchive archive, Path file, Map<String, List<FileSummary>> removed) {
+        BasicFileAttributes attrs;
+        try {
+            attrs = Files.readAttributes(file, BasicFileAttributes.class, LinkOption.NOFOLLOW_LINKS);
+        } catch (IOException e) {
+            log.warn(String.format("Failed to read attributes of file: %s", file), e);
+            return false;
+        }
+        if(!attrs.isRegularFile()) return false;
+        long modified = attrs.lastModifiedTime().toMillis();
+        FileSummary existing = archive.files.get(file.toString());
+        if(existing != null && existing.getSize() == attrs.size() && Objects.equals(existing.getModified(), modified)) return false;
+        // Copies that preserve timestamps look alike, so only a single candidate is trusted to be the same file
+        List<FileSummary> candidates = removed.get(moveKey(file, attrs.size(), modified));
+        FileSummary moved = candidates != null && candidates.size() == 1 ? candidates.remove(0) : null;
+        FileSummary summary;
+        if(moved != null) {
+            summary = new FileSummary(file.toString(), moved.getSize(), moved.getFingerprint(), modified);
+            summary.setContentHash(moved.getContentHash());
+            summary.setExif(moved.getExif());
+        } else {
+            summary = indexer.summarize(archive.archive, file, attrs);
+        }
+        if(summary == null) return false;
+        archive.files.put(summary.getPath(), summary);
+        if(archive.archive.getIndexZips() && ZipIndexer.isZip(summary.getPath())) updateZip(archive, file);
+        return true;
+    }
+
+    /**
+     * Replaces the entries of a created or changed zip file. Entries whose size and modification time did not change
+     * keep their fingerprint.
+     */
+    private void updateZip(WatchedArchive archive, Path zip) {
+        Map<String, FileSummary> previous = archive.removeBelow(zip + ZipIndexer.SEPARATOR)
+                .stream()
+                .collect(Collectors.toMap(FileSummary::getPath, x -> x));
+        indexer.summarizeZip(archive.archive, zip, previous).forEach(x -> archive.files.put(x.getPath(), x));
+    }
+
+    private void checkpoint() {
+        for (WatchedArchive archive : archives) {
+            if(!archive.dirty) continue;
+            archive.dirty = false;
+            try {
+                Map<Long, List<FileSummary>> index = archive.files.values()
+                        .stream()
+                        .collect(Collectors.groupingBy(FileSummary::getSize));
+                Indexer.save(archive.archive, index);
+            } catch (IOException e) {
+                archive.dirty = true;
+                log.warn(String.format("Failed to save index: %s", archive.archive.getIndex()), e);
+            }
+        }
+    }
+
+    /**
+     * Watches a directory and all directories below it, returning the files found in them.
+     */
+    @SneakyThrows
+    private List<Path> register(WatchedArchive archive, Path directory) {
+        List<Path> files = new ArrayList<>();
+        Files.walkFileTree(directory, new SimpleFileVisitor<Path>() {
+            @Override
+            public FileVisitResult preVisitDirectory(Path dir, BasicFileAttributes attrs) throws IOException {
+                String path = dir.toString();
+                if(archive.archive.getExcludes().stream().anyMatch(x -> x.matcher(path).find())) return FileVisitResult.SKIP_SUBTREE;
+                directories.put(dir.register(watchService, ENTRY_CREATE, ENTRY_DELETE, ENTRY_MODIFY), dir);
+                registered.add(dir);
+                return FileVisitResult.CONTINUE;
+            }
+
+            @Override
+            public FileVisitResult visitFile(Path file, BasicFileAttributes attrs) {
+                files.add(file);
+                return FileVisitResult.CONTINUE;
+            }
+
+            @Override
+            public FileVisitResult visitFileFailed(Path file, IOException exc) {
+                log.warn(String.format("Failed to watch file: %s", file), exc);
+                return FileVisitResult.CONTINUE;
+            }
+        });
+        return files;
+    }
+
+    /**
+     * Paths to look at again after missing events for a directory: every file in it now, and every file in the index
+     * that used to be in it.
+     */
+    @SneakyThrows
+    private Set<Path> rescan(Path directory) {
+        Set<Path> paths = new LinkedHashSet<>();
+        WatchedArchive archive = archiveOf(directory);
+        if(archive == null) return paths;
+        String prefix = directory.toString() + File.separator;
+        archive.files.keySet().stream().filter(x -> x.startsWith(prefix)).map(Paths::get).forEach(paths::add);
+        try (DirectoryStream<Path> stream = Files.newDirectoryStream(directory)) {
+            stream.forEach(paths::add);
+        } catch (NoSuchFileException e) {
+            paths.add(directory);
+        }
+        return paths;
+    }
+
+    private WatchedArchive archive(Path root) {
+        return archives.stream().filter(x -> x.archive.getRoot().equals(root)).findFirst().orElse(null);
+    }
+
+    /**
+     * The watched archive a path belongs to, which is the one with the deepest root if archives are nested.
+     */
+    private WatchedArchive archiveOf(Path path) {
+        return archives.stream()
+                .filter(x -> path.startsWith(x.archive.getRoot()))
+                .max(Comparator.comparingInt(x -> x.archive.getRoot().getNameCount()))
+                .orElse(null);
+    }
+
+    private static String moveKey(Path file, long size, Long modified) {
+        return file.getFileName() + "|" + size + "|" + modified;
+    }
+
+    private static class WatchedArchive {
+        private final Archive archive;
+        private final Map<String, FileSummary> files = new ConcurrentHashMap<>();
+        private volatile boolean dirty;
+
+        WatchedArchive(Archive archive) {
+            this.archive = archive;
+        }
+
+        /**
+         * Drops a deleted file along with its entries if it is a zip file, or all files below a deleted directory.
+         */
+        List<FileSummary> remove(Path path) {
+            FileSummary file = files.remove(path.toString());
+            if(file == null) return removeBelow(path + File.separator);
+            List<FileSummary> removed = removeBelow(path + ZipIndexer.SEPARATOR);
+            removed.add(0, file);
+            return removed;
+        }
+
+        List<FileSummary> removeBelow(String prefix) {
+            List<FileSummary> removed = new ArrayList<>();
+            files.values().removeIf(x -> {
+                if(!x.getPath().startsWith(prefix)) return false;
+                removed.add(x);
+                return true;
+            });
+            return removed;
+        }
+    }
+}
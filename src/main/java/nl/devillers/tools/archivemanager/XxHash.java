@@ -0,0 +1,80 @@
+package nl.devillers.tools.archivemanager;
+
+/**
+ * The 64-bit xxHash algorithm (XXH64), a fast non-cryptographic hash. Only hashes complete arrays, which is all the
+ * fingerprinter needs.
+ */
+final class XxHash {
+
+    private static final long PRIME1 = 0x9E3779B185EBCA87L;
+    private static final long PRIME2 = 0xC2B2AE3D27D4EB4FL;
+    private static final long PRIME3 = 0x165667B19E3779F9L;
+    private static final long PRIME4 = 0x85EBCA77C2B2AE63L;
+    private static final long PRIME5 = 0x27D4EB2F165667C5L;
+
+    private XxHash() {
+    }
+
+    static long hash64(byte[] input, int offset, int length, long seed) {
+        int end = offset + length;
+        int position = offset;
+        long hash;
+        if(length >= 32) {
+            long v1 = seed + PRIME1 + PRIME2;
+            long v2 = seed + PRIME2;
+            long v3 = seed;
+            long v4 = seed - PRIME1;
+            do {
+                v1 = round(v1, getLong(input, position));
+                v2 = round(v2, getLong(input, position + 8));
+                v3 = round(v3, getLong(input, position + 16));
+                v4 = round(v4, getLong(input, position + 24));
+                position += 32;
+            } while(position <= end - 32);
+            hash = Long.rotateLeft(v1, 1) + Long.rotateLeft(v2, 7) + Long.rotateLeft(v3, 12) + Long.rotateLeft(v4, 18);
+            hash = merge(hash, v1);
+            hash = merge(hash, v2);
+            hash = merge(hash, v3);
+            hash = merge(hash, v4);
+        } else {
+            hash = seed + PRIME5;
+        }
+        hash += length;
+        for (; position + 8 <= end; position += 8) {
+            hash ^= round(0, getLong(input, position));
+            hash = Long.rotateLeft(hash, 27) * PRIME1 + PRIME4;
+        }
+        if(position + 4 <= end) {
+            hash ^= (getInt(input, position) & 0xFFFFFFFFL) * PRIME1;
+            hash = Long.rotateLeft(hash, 23) * PRIME2 + PRIME3;
+            position += 4;
+        }
+        for (; position < end; position++) {
+            hash ^= (input[position] & 0xFF) * PRIME5;
+            hash = Long.rotateLeft(hash, 11) * PRIME1;
+        }
+        hash ^= hash >>> 33;
+        hash *= PRIME2;
+        hash ^= hash >>> 29;
+        hash *= PRIME3;
+        hash ^= hash >>> 32;
+        return hash;
+    }
+
+    private static long round(long accumulator, long input) {
+        return Long.rotateLeft(accumulator + input * PRIME2, 31) * PRIME1;
+    }
+
+    private static long merge(long hash, long value) {
+        return (hash ^ round(0, value)) * PRIME1 + PRIME4;
+    }
+
+    private static long getLong(byte[] input, int position) {
+        return (getInt(input, position) & 0xFFFFFFFFL) | ((long)getInt(input, position + 4) << 32);
+    }
+
+    private static int getInt(byte[] input, int position) {
+        return (input[position] & 0xFF) | (input[position + 1] & 0xFF) << 8 | (input[position + 2] & 0xFF) << 16
+                | (input[position + 3] & 0xFF) << 24;
+    }
+}
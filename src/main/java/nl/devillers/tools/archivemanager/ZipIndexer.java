@@ -0,0 +1,168 @@
+package nl.devillers.tools.archivemanager;
+
+import lombok.extern.slf4j.Slf4j;
+import nl.devillers.tools.archivemanager.model.ArchiveMetrics;
+import nl.devillers.tools.archivemanager.model.FileSummary;
+import nl.devillers.tools.archivemanager.model.FingerprintStrategy;
+import org.apache.commons.codec.binary.Hex;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.charset.Charset;
+import java.nio.charset.StandardCharsets;
+import java.util.*;
+import java.util.zip.ZipEntry;
+import java.util.zip.ZipFile;
+
+/**
+ * Indexes the entries of zip files as if they were files of the archive, under virtual paths like
+ * {@code F:\Backup\photos.zip!/2019/IMG_0001.jpg}. Entries are listed from the central directory and fingerprinted by
+ * decompressing only what is needed to reach the first and last chunk, which yields the same fingerprint as the
+ * extracted file would have.
+ */
+@Slf4j
+public class ZipIndexer {
+
+    public static final String SEPARATOR = "!/";
+
+    /**
+     * Code page of entry names written by older zip tools on Windows, which predate the UTF-8 flag.
+     */
+    static final Charset LEGACY_CHARSET = Charset.forName("IBM437");
+
+    private static final Set<String> EXTENSIONS = new HashSet<>(Arrays.asList("zip", "jar"));
+
+    /**
+     * Fingerprints by strategy and the CRC-32, size and modification time of an entry, all taken from the central
+     * directory. Copies of the same entry in other zip files (e.g. a backup of a backup) are recognized by this key and
+     * never decompressed again.
+     */
+    private final Map<String, String> fingerprints;
+
+    public ZipIndexer(Map<String, String> fingerprints) {
+        this.fingerprints = fingerprints;
+    }
+
+    public static boolean isZip(String path) {
+        return EXTENSIONS.contains(ExifExtractor.extension(path));
+    }
+
+    public static boolean isVirtual(String path) {
+        return path.contains(SEPARATOR);
+    }
+
+    /**
+     * Lists the entries of a zip file, reusing previous summaries of entries whose size and modification time did not
+     * change. Returns an empty list if the file cannot be read as a zip file.
+     */
+    public List<FileSummary> summarize(String zip, Map<String, FileSummary> previous, FingerprintStrategy strategy, ArchiveMetrics metrics) {
+        try {
+            try {
+                return summarize(zip, StandardCharsets.UTF_8, previous, strategy, metrics);
+            } catch (IllegalArgumentException e) {
+                log.info("Entry names of {} are not UTF-8, reading them as {}", zip, LEGACY_CHARSET);
+                return summarize(zip, LEGACY_CHARSET, previous, strategy, metrics);
+            }
+        } catch (IOException | RuntimeException e) {
+            // A single broken zip file must not stop the walk of the archive it is part of
+            log.warn(String.format("Failed to index zip file: %s", zip), e);
+            return new ArrayList<>();
+        }
+    }
+
+    private List<FileSummary> summarize(String zip, Charset charset, Map<String, FileSummary> previous, FingerprintStrategy strategy,
+                                        ArchiveMetrics metrics) throws IOException {
+        List<FileSummary> summaries = new ArrayList<>();
+        try (ZipFile file = new ZipFile(zip, charset)) {
+            Enumeration<? extends ZipEntry> entries = file.entries();
+            while(entries.hasMoreElements()) {
+                ZipEntry entry = entries.nextElement();
+                if(entry.isDirectory() || entry.getSize() < 0) continue;
+                String path = zip + SEPARATOR + entry.getName();
+                FileSummary existing = previous.get(path);
+                if(existing != null && existing.getSize() == entry.getSize() && Objects.equals(existing.getModified(), entry.getTime())) {
+                    metrics.recordReused();
+                    summaries.add(existing);
+                    continue;
+                }
+                FileSummary summary = summarize(file, entry, path, strategy, metrics);
+                if(summary != null) summaries.add(summary);
+            }
+        }
+        return summaries;
+    }
+
+    private FileSummary summarize(ZipFile file, ZipEntry entry, String path, FingerprintStrategy strategy, ArchiveMetrics metrics) {
+        String key = strategy + "|" + entry.getCrc() + "|" + entry.getSize() + "|" + entry.getTime();
+        try {
+            String fingerprint = fingerprints.get(key);
+            if(fingerprint == null) {
+                long bytesRead = Fingerprinter.getThreadBytesRead();
+                long start = System.nanoTime();
+                try (InputStream in = file.getInputStream(entry)) {
+                    fingerprint = Hex.encodeHexString(Fingerprinter.digest(in, entry.getSize(), strategy));
+                }
+                metrics.recordFingerprint(System.nanoTime() - start, Fingerprinter.getThreadBytesRead() - bytesRead);
+                fingerprints.put(key, fingerprint);
+            } else {
+                metrics.recordReused();
+            }
+            FileSummary summary = new FileSummary(path, entry.getSize(), fingerprint, entry.getTime());
+            if(ExifExtractor.isSupported(path)) {
+                long start = System.nanoTime();
+                try (InputStream in = file.getInputStream(entry)) {
+                    summary.setExif(ExifExtractor.extract(in, path));
+                }
+                metrics.recordExif(System.nanoTime() - start);
+            }
+            return summary;
+        } catch (IOException e) {
+            log.warn(String.format("Failed to fingerprint zip entry: %s", path), e);
+            return null;
+        }
+    }
+
+    /**
+     * Hashes the full content of the entry a virtual path points to.
+     */
+    public static Optional<String> contentHash(String path) {
+        return read(path, (in, entry) -> Fingerprinter.contentHash(in));
+    }
+
+    /**
+     * Fingerprints the entry a virtual path points to using the given strategy.
+     */
+    public static Optional<String> fingerprint(String path, FingerprintStrategy strategy) {
+        return read(path, (in, entry) -> Fingerprinter.digest(in, entry.getSize(), strategy));
+    }
+
+    private static Optional<String> read(String path, EntryDigest digest) {
+        int separator = path.indexOf(SEPARATOR);
+        String zip = path.substring(0, separator);
+        String name = path.substring(separator + SEPARATOR.length());
+        try {
+            // Names of entries in older zip files were read as the legacy code page while indexing
+            byte[] result = read(zip, name, StandardCharsets.UTF_8, digest);
+            if(result == null) result = read(zip, name, LEGACY_CHARSET, digest);
+            if(result == null) throw new IOException("No such entry");
+            return Optional.of(Hex.encodeHexString(result));
+        } catch (IOException | RuntimeException e) {
+            log.warn(String.format("Failed to hash zip entry: %s", path), e);
+            return Optional.empty();
+        }
+    }
+
+    private static byte[] read(String zip, String name, Charset charset, EntryDigest digest) throws IOException {
+        try (ZipFile file = new ZipFile(zip, charset)) {
+            ZipEntry entry = file.getEntry(name);
+            if(entry == null) return null;
+            try (InputStream in = file.getInputStream(entry)) {
+                return digest.apply(in, entry);
+            }
+        }
+    }
+
+    private interface EntryDigest {
+        byte[] apply(InputStream in, ZipEntry entry) throws IOException;
+    }
+}
@@ -3,11 +3,48 @@ package nl.devillers.tools.archivemanager.model;
 import lombok.Data;
 
 import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.regex.Pattern;
 
 @Data
 public class Archive {
     private Path root;
     private Path index;
+    /**
+     * Number of files fingerprinted concurrently while indexing. Defaults to the number of available processors, which
+     * suits SSDs; use a low value (e.g. 1 or 2) for spinning disks to avoid excessive seeking.
+     */
+    private Integer parallelism = Runtime.getRuntime().availableProcessors();
+    /**
+     * Refresh an existing index on every read, only fingerprinting files that are new or changed since it was saved.
+     * Useful for live archives; leave it disabled for backups that never change.
+     */
+    private Boolean refresh = false;
+    /**
+     * Directories matching any of these patterns are skipped entirely while indexing, e.g. system folders on a drive.
+     */
+    private List<Pattern> excludes = new ArrayList<>();
+    /**
+     * Keep the index up to date while running in watch mode. The target is always watched.
+     */
+    private Boolean watch = false;
+    /**
+     * Index the entries of zip and jar files as well, under paths like {@code photos.zip!/2019/IMG_0001.jpg}.
+     */
+    private Boolean indexZips = false;
+    /**
+     * How files are fingerprinted. Changing it causes the archive to be indexed again.
+     */
+    private FingerprintStrategy fingerprint = FingerprintStrategy.HEAD_TAIL;
+
+    /**
+     * Whether the given path lies within the root of this archive.
+     */
+    public boolean contains(String path) {
+        return Paths.get(path).startsWith(root);
+    }
 
     public Boolean isIndexed() {
         return index.toFile().exists() && index.toFile().length() > 0;
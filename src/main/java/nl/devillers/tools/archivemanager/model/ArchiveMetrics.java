@@ -0,0 +1,107 @@
+package nl.devillers.tools.archivemanager.model;
+
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLongArray;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * Throughput of indexing a single archive. Recorded concurrently by the indexer threads, so counters are
+ * {@link LongAdder}s. Fingerprint latencies are counted in buckets that double in width, which is precise enough to
+ * tell a cached read (microseconds) from a disk seek (milliseconds).
+ */
+public class ArchiveMetrics {
+
+    private static final int LATENCY_BUCKETS = 32;
+
+    private final String root;
+    private final LongAdder filesFingerprinted = new LongAdder();
+    private final LongAdder filesReused = new LongAdder();
+    private final LongAdder bytesRead = new LongAdder();
+    private final LongAdder fingerprintNanos = new LongAdder();
+    private final AtomicLongArray fingerprintLatencies = new AtomicLongArray(LATENCY_BUCKETS);
+    private final LongAdder exifFiles = new LongAdder();
+    private final LongAdder exifNanos = new LongAdder();
+    private final LongAdder walkNanos = new LongAdder();
+
+    public ArchiveMetrics(String root) {
+        this.root = root;
+    }
+
+    public void recordFingerprint(long nanos, long bytes) {
+        filesFingerprinted.increment();
+        bytesRead.add(bytes);
+        fingerprintNanos.add(nanos);
+        long micros = TimeUnit.NANOSECONDS.toMicros(nanos);
+        fingerprintLatencies.incrementAndGet(Math.min(LATENCY_BUCKETS - 1, 64 - Long.numberOfLeadingZeros(micros)));
+    }
+
+    public void recordReused() {
+        filesReused.increment();
+    }
+
+    public void recordExif(long nanos) {
+        exifFiles.increment();
+        exifNanos.add(nanos);
+    }
+
+    public void recordWalk(long nanos) {
+        walkNanos.add(nanos);
+    }
+
+    public String getRoot() {
+        return root;
+    }
+
+    public long getFilesFingerprinted() {
+        return filesFingerprinted.sum();
+    }
+
+    public long getFilesReused() {
+        return filesReused.sum();
+    }
+
+    public long getBytesRead() {
+        return bytesRead.sum();
+    }
+
+    public long getWalkMillis() {
+        return TimeUnit.NANOSECONDS.toMillis(walkNanos.sum());
+    }
+
+    /**
+     * Files visited per second of walking the archive, whether they had to be fingerprinted or not.
+     */
+    public double getFilesPerSecond() {
+        long nanos = walkNanos.sum();
+        return nanos == 0 ? 0 : (getFilesFingerprinted() + getFilesReused()) * 1e9 / nanos;
+    }
+
+    /**
+     * Time spent fingerprinting, summed over all indexer threads.
+     */
+    public long getFingerprintMillis() {
+        return TimeUnit.NANOSECONDS.toMillis(fingerprintNanos.sum());
+    }
+
+    /**
+     * Number of fingerprints by latency, keyed by the upper bound of each bucket in microseconds.
+     */
+    public Map<String, Long> getFingerprintLatencyMicros() {
+        Map<String, Long> histogram = new LinkedHashMap<>();
+        for (int i = 0; i < LATENCY_BUCKETS; i++) {
+            long count = fingerprintLatencies.get(i);
+            if(count > 0) histogram.put(i == LATENCY_BUCKETS - 1 ? "more" : "<" + (1L << i), count);
+        }
+        return histogram;
+    }
+
+    public long getExifFiles() {
+        return exifFiles.sum();
+    }
+
+    public long getExifMillis() {
+        return TimeUnit.NANOSECONDS.toMillis(exifNanos.sum());
+    }
+}
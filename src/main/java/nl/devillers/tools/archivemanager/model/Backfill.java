@@ -0,0 +1,24 @@
+package nl.devillers.tools.archivemanager.model;
+
+import lombok.Data;
+
+import java.nio.file.Path;
+
+@Data
+public class Backfill {
+    /**
+     * Where missing files are copied to, relative to the root of the target. Supports the placeholders {@code {archive}}
+     * (name of the source root), {@code {path}} (path relative to the source root), {@code {name}} (file name) and
+     * {@code {year}} and {@code {month}} of capture, or of modification for files without EXIF data.
+     */
+    private String layout = "{archive}/{path}";
+    /**
+     * Number of files copied concurrently from a single source device. Devices are copied from in parallel.
+     */
+    private Integer parallelism = 2;
+    /**
+     * Records every file copied, so an interrupted backfill continues where it stopped. Defaults to a file next to the
+     * index of the target. It is removed once the index of the target includes all copied files.
+     */
+    private Path journal;
+}
@@ -0,0 +1,45 @@
+package nl.devillers.tools.archivemanager.model;
+
+import lombok.AllArgsConstructor;
+import lombok.Data;
+
+import java.nio.file.Path;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * Missing files and duplicates of an earlier run, along with the stamps of the indexes and configuration they were
+ * derived from.
+ */
+@Data
+public class CachedResults {
+    private String configuration;
+    private String target;
+    /**
+     * Results per source, keyed by the location of its index.
+     */
+    private Map<String, SourceResults> sources = new LinkedHashMap<>();
+    /**
+     * Groups of duplicates within the target, or {@code null} if they have to be detected again.
+     */
+    private List<List<FileSummary>> duplicates;
+    private Map<Path, Integer> directoryFiles;
+    /**
+     * Stamps of the source indexes taken when the results were loaded, keyed like {@link #sources}. Results derived
+     * from those indexes get these stamps, so an index rewritten while deriving them is not mistaken for the one they
+     * were derived from. Not saved.
+     */
+    private Map<String, String> loaded = new LinkedHashMap<>();
+
+    @Data
+    @AllArgsConstructor
+    public static class SourceResults {
+        private String stamp;
+        /**
+         * Number of files in the source, before filtering.
+         */
+        private long files;
+        private List<FileSummary> missing;
+    }
+}
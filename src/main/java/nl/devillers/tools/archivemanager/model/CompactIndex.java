@@ -0,0 +1,294 @@
+package nl.devillers.tools.archivemanager.model;
+
+import org.apache.commons.codec.DecoderException;
+import org.apache.commons.codec.binary.Hex;
+
+import java.nio.charset.StandardCharsets;
+import java.util.*;
+import java.util.function.IntPredicate;
+
+/**
+ * Columnar, read-only index that stores entries in primitive arrays instead of {@link FileSummary} objects. Entries
+ * are ordered by size and fingerprint, fingerprints are kept as raw digest bytes in one flat array and every directory
+ * is stored once in a shared table, with only the file name kept per entry. This takes a fraction of the heap of a
+ * {@code Map<Long, List<FileSummary>>} holding the same files.
+ */
+public class CompactIndex {
+
+    private static final long NO_MODIFIED = Long.MIN_VALUE;
+
+    private final int count;
+    private final int fingerprintLength;
+    private final long[] sizes;
+    private final byte[] fingerprints;
+    private final long[] modified;
+    private final String[] directories;
+    private final int[] directoryIds;
+    private final byte[] names;
+    private final int[] nameOffsets;
+    /**
+     * Full content hashes are only known for the few entries that needed verification, so most slots stay null.
+     */
+    private final byte[][] contentHashes;
+
+    private CompactIndex(Builder builder) {
+        count = builder.count;
+        fingerprintLength = builder.fingerprintLength;
+        sizes = Arrays.copyOf(builder.sizes, count);
+        fingerprints = Arrays.copyOf(builder.fingerprints, count * fingerprintLength);
+        modified = Arrays.copyOf(builder.modified, count);
+        directories = builder.directories.toArray(new String[0]);
+        directoryIds = Arrays.copyOf(builder.directoryIds, count);
+        names = Arrays.copyOf(builder.names, builder.namesLength);
+        nameOffsets = Arrays.copyOf(builder.nameOffsets, count + 1);
+        contentHashes = Arrays.copyOf(builder.contentHashes, count);
+    }
+
+    public static CompactIndex of(Map<Long, List<FileSummary>> index) {
+        List<FileSummary> summaries = new ArrayList<>();
+        index.values().forEach(summaries::addAll);
+        summaries.sort(Comparator.comparing(FileSummary::getSize)
+                .thenComparing(FileSummary::getFingerprint)
+                .thenComparing(FileSummary::getPath));
+        Builder builder = new Builder();
+        summaries.forEach(builder::add);
+        return builder.build();
+    }
+
+    /**
+     * Number of entries in this index.
+     */
+    public int count() {
+        return count;
+    }
+
+    public long size(int entry) {
+        return sizes[entry];
+    }
+
+    public String fingerprint(int entry) {
+        return Hex.encodeHexString(Arrays.copyOfRange(fingerprints, entry * fingerprintLength, (entry + 1) * fingerprintLength));
+    }
+
+    public String path(int entry) {
+        String name = new String(names, nameOffsets[entry], nameOffsets[entry + 1] - nameOffsets[entry], StandardCharsets.UTF_8);
+        return directories[directoryIds[entry]].concat(name);
+    }
+
+    public String contentHash(int entry) {
+        return contentHashes[entry] == null ? null : Hex.encodeHexString(contentHashes[entry]);
+    }
+
+    /**
+     * Caches a full content hash computed for an entry after the index was loaded.
+     */
+    public void setContentHash(int entry, String contentHash) {
+        contentHashes[entry] = decode(contentHash);
+    }
+
+    public FileSummary summary(int entry) {
+        FileSummary summary = new FileSummary(path(entry), sizes[entry], fingerprint(entry), modified[entry] == NO_MODIFIED ? null : modified[entry]);
+        summary.setContentHash(contentHash(entry));
+        return summary;
+    }
+
+    /**
+     * Index of the first entry with the given size, or of the first larger entry if there is none.
+     */
+    public int from(long size) {
+        int low = 0;
+        int high = count;
+        while(low < high) {
+            int mid = (low + high) >>> 1;
+            if(sizes[mid] < size) low = mid + 1;
+            else high = mid;
+        }
+        return low;
+    }
+
+    /**
+     * Index just past the last entry with the given size.
+     */
+    public int to(long size) {
+        return size == Long.MAX_VALUE ? count : from(size + 1);
+    }
+
+    public List<FileSummary> lookup(long size) {
+        List<FileSummary> result = new ArrayList<>();
+        for (int i = from(size), to = to(size); i < to; i++) {
+            result.add(summary(i));
+        }
+        return result;
+    }
+
+    public boolean contains(long size, String fingerprint) {
+        return contains(size, decode(fingerprint));
+    }
+
+    /**
+     * Binary searches the entries of the given size for the given fingerprint.
+     */
+    public boolean contains(long size, byte[] fingerprint) {
+        if(fingerprint.length != fingerprintLength) return false;
+        int low = from(size);
+        int high = to(size) - 1;
+        while(low <= high) {
+            int mid = (low + high) >>> 1;
+            int comparison = compareFingerprint(mid, fingerprint);
+            if(comparison < 0) low = mid + 1;
+            else if(comparison > 0) high = mid - 1;
+            else return true;
+        }
+        return false;
+    }
+
+    /**
+     * Index of the first entry with the given size and fingerprint, or -1 if there is none.
+     */
+    public int find(long size, String fingerprint) {
+        byte[] decoded = decode(fingerprint);
+        if(decoded.length != fingerprintLength) return -1;
+        int low = from(size);
+        int high = to(size);
+        while(low < high) {
+            int mid = (low + high) >>> 1;
+            if(compareFingerprint(mid, decoded) < 0) low = mid + 1;
+            else high = mid;
+        }
+        return low < to(size) && compareFingerprint(low, decoded) == 0 ? low : -1;
+    }
+
+    /**
+     * Whether two entries have the same size and fingerprint.
+     */
+    public boolean sameContent(int left, int right) {
+        if(sizes[left] != sizes[right]) return false;
+        for (int i = 0; i < fingerprintLength; i++) {
+            if(fingerprints[left * fingerprintLength + i] != fingerprints[right * fingerprintLength + i]) return false;
+        }
+        return true;
+    }
+
+    /**
+     * Creates a new index containing only the entries matching the predicate.
+     */
+    public CompactIndex filter(IntPredicate predicate) {
+        Builder builder = new Builder();
+        for (int i = 0; i < count; i++) {
+            if(predicate.test(i)) builder.add(this, i);
+        }
+        return builder.build();
+    }
+
+    public Map<Long, List<FileSummary>> toMap() {
+        Map<Long, List<FileSummary>> index = new HashMap<>();
+        for (int i = 0; i < count; i++) {
+            index.computeIfAbsent(sizes[i], x -> new ArrayList<>()).add(summary(i));
+        }
+        return index;
+    }
+
+    private int compareFingerprint(int entry, byte[] fingerprint) {
+        for (int i = 0; i < fingerprintLength; i++) {
+            int comparison = Integer.compare(fingerprints[entry * fingerprintLength + i] & 0xFF, fingerprint[i] & 0xFF);
+            if(comparison != 0) return comparison;
+        }
+        return 0;
+    }
+
+    private static byte[] decode(String fingerprint) {
+        try {
+            return Hex.decodeHex(fingerprint);
+        } catch (DecoderException e) {
+            throw new IllegalArgumentException(String.format("Fingerprint is not hexadecimal: %s", fingerprint), e);
+        }
+    }
+
+    /**
+     * Builds a compact index from entries added in order of size and fingerprint.
+     */
+    public static class Builder {
+        private int count;
+        private int fingerprintLength = -1;
+        private long[] sizes = new long[1024];
+        private byte[] fingerprints = new byte[0];
+        private long[] modified = new long[1024];
+        private final List<String> directories = new ArrayList<>();
+        private final Map<String, Integer> directoryLookup = new HashMap<>();
+        private int[] directoryIds = new int[1024];
+        private byte[] names = new byte[16 * 1024];
+        private int namesLength;
+        private int[] nameOffsets = new int[1025];
+        private byte[][] contentHashes = new byte[1024][];
+
+        public Builder add(FileSummary summary) {
+            byte[] contentHash = summary.getContentHash() == null ? new byte[0] : decode(summary.getContentHash());
+            return add(summary.getSize(), decode(summary.getFingerprint()), summary.getPath(), summary.getModified(), contentHash);
+        }
+
+        /**
+         * Adds an entry, where an empty content hash means that it has not been computed.
+         */
+        public Builder add(long size, byte[] fingerprint, String path, Long lastModified, byte[] contentHash) {
+            int separator = Math.max(path.lastIndexOf('/'), path.lastIndexOf('\\')) + 1;
+            int directory = directoryLookup.computeIfAbsent(path.substring(0, separator), x -> {
+                directories.add(x);
+                return directories.size() - 1;
+            });
+            byte[] name = path.substring(separator).getBytes(StandardCharsets.UTF_8);
+            append(size, fingerprint, 0, fingerprint.length, directory, name, 0, name.length,
+                    lastModified == null ? NO_MODIFIED : lastModified, contentHash.length == 0 ? null : contentHash);
+            return this;
+        }
+
+        private void add(CompactIndex source, int entry) {
+            String directory = source.directories[source.directoryIds[entry]];
+            int directoryId = directoryLookup.computeIfAbsent(directory, x -> {
+                directories.add(x);
+                return directories.size() - 1;
+            });
+            append(source.sizes[entry], source.fingerprints, entry * source.fingerprintLength, source.fingerprintLength,
+                    directoryId, source.names, source.nameOffsets[entry], source.nameOffsets[entry + 1] - source.nameOffsets[entry],
+                    source.modified[entry], source.contentHashes[entry]);
+        }
+
+        private void append(long size, byte[] fingerprint, int fingerprintOffset, int length, int directory,
+                            byte[] name, int nameOffset, int nameLength, long lastModified, byte[] contentHash) {
+            if(count > 0 && size < sizes[count - 1]) {
+                throw new IllegalArgumentException(String.format("Entries out of order: %d after %d", size, sizes[count - 1]));
+            }
+            if(fingerprintLength == -1) {
+                fingerprintLength = length;
+                fingerprints = new byte[sizes.length * length];
+            } else if(fingerprintLength != length) {
+                throw new IllegalArgumentException(String.format("Fingerprint length %d differs from %d", length, fingerprintLength));
+            }
+            if(count == sizes.length) {
+                int capacity = count * 2;
+                sizes = Arrays.copyOf(sizes, capacity);
+                fingerprints = Arrays.copyOf(fingerprints, capacity * fingerprintLength);
+                modified = Arrays.copyOf(modified, capacity);
+                directoryIds = Arrays.copyOf(directoryIds, capacity);
+                nameOffsets = Arrays.copyOf(nameOffsets, capacity + 1);
+                contentHashes = Arrays.copyOf(contentHashes, capacity);
+            }
+            if(namesLength + nameLength > names.length) {
+                names = Arrays.copyOf(names, Math.max(names.length * 2, namesLength + nameLength));
+            }
+            sizes[count] = size;
+            System.arraycopy(fingerprint, fingerprintOffset, fingerprints, count * fingerprintLength, length);
+            modified[count] = lastModified;
+            directoryIds[count] = directory;
+            contentHashes[count] = contentHash;
+            System.arraycopy(name, nameOffset, names, namesLength, nameLength);
+            namesLength += nameLength;
+            count++;
+            nameOffsets[count] = namesLength;
+        }
+
+        public CompactIndex build() {
+            if(fingerprintLength == -1) fingerprintLength = 0;
+            return new CompactIndex(this);
+        }
+    }
+}
@@ -4,6 +4,7 @@ import lombok.Data;
 import org.springframework.boot.context.properties.ConfigurationProperties;
 import org.springframework.stereotype.Component;
 
+import java.nio.file.Path;
 import java.util.ArrayList;
 import java.util.List;
 import java.util.regex.Pattern;
@@ -12,9 +13,36 @@ import java.util.regex.Pattern;
 @Component
 @ConfigurationProperties("config")
 public class Config {
+    private Mode mode = Mode.REPORT;
     private List<Archive> sources;
     private Archive target;
+    /**
+     * Location of the merged index of all sources. It is rebuilt only when one of the source indexes changes. Leave
+     * empty to merge the sources on every run without saving the result.
+     */
+    private Path master;
+    /**
+     * Location of the missing files and duplicates of the previous run, which are reused for sources whose index and
+     * filters did not change. Defaults to a file next to the index of the target.
+     */
+    private Path resultCache;
     private List<Pattern> regexFilters = new ArrayList<>();
     private Boolean ignoreEmptyFiles;
     private ExifFilter exifFilter;
+    /**
+     * Compare files that match on size and fingerprint on their full content as well, before reporting them as present
+     * or duplicate.
+     */
+    private Boolean verifyContent = false;
+    private ReportFormat reportFormat = ReportFormat.CSV;
+    private Server server = new Server();
+    private Watch watch = new Watch();
+    private Backfill backfill = new Backfill();
+    private OutOfCore outOfCore = new OutOfCore();
+    private Estimation estimation = new Estimation();
+    /**
+     * Limits on the number of files fingerprinted at once per device, e.g. a low one for a spinning disk. Archives on
+     * other devices are indexed using their own parallelism.
+     */
+    private List<Device> devices = new ArrayList<>();
 }
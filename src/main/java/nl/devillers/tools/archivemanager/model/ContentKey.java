@@ -0,0 +1,16 @@
+package nl.devillers.tools.archivemanager.model;
+
+import lombok.Value;
+
+/**
+ * Identifies file content by size and fingerprint, the key on which indexes are joined.
+ */
+@Value
+public class ContentKey {
+    long size;
+    String fingerprint;
+
+    public static ContentKey of(FileSummary file) {
+        return new ContentKey(file.getSize(), file.getFingerprint());
+    }
+}
@@ -0,0 +1,26 @@
+package nl.devillers.tools.archivemanager.model;
+
+import lombok.AllArgsConstructor;
+import lombok.Data;
+
+import java.nio.file.Path;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * Files missing from the target and groups of duplicates within it.
+ */
+@Data
+@AllArgsConstructor
+public class Detection {
+    /**
+     * Number of files in all sources, before filtering.
+     */
+    private long sourceFiles;
+    private List<FileSummary> missing;
+    private List<List<FileSummary>> duplicates;
+    /**
+     * Number of files per directory of the target, including files left out by the filters.
+     */
+    private Map<Path, Integer> directoryFiles;
+}
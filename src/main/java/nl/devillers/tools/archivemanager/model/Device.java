@@ -0,0 +1,17 @@
+package nl.devillers.tools.archivemanager.model;
+
+import lombok.Data;
+
+import java.nio.file.Path;
+
+@Data
+public class Device {
+    /**
+     * Any path on the device, e.g. its root or the root of one of the archives it holds.
+     */
+    private Path path;
+    /**
+     * Maximum number of files fingerprinted at once on this device, regardless of the parallelism of its archives.
+     */
+    private Integer parallelism;
+}
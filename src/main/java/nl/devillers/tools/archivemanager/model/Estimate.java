@@ -0,0 +1,30 @@
+package nl.devillers.tools.archivemanager.model;
+
+import lombok.AllArgsConstructor;
+import lombok.Data;
+
+/**
+ * How much of a source is estimated to be missing from the target, with 95% confidence intervals.
+ */
+@Data
+@AllArgsConstructor
+public class Estimate {
+    private String archive;
+    /**
+     * Number and total size of the files in the source that pass the filters.
+     */
+    private long files;
+    private long bytes;
+    private long sampled;
+    private long sampledMissing;
+    private double missingFraction;
+    private double missingFractionLow;
+    private double missingFractionHigh;
+    private long missingBytes;
+    private long missingBytesLow;
+    private long missingBytesHigh;
+    /**
+     * Whether the intervals are within the tolerance, rather than sampling having run out of time.
+     */
+    private boolean converged;
+}
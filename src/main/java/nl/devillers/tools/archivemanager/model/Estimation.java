@@ -0,0 +1,26 @@
+package nl.devillers.tools.archivemanager.model;
+
+import lombok.Data;
+
+import java.time.Duration;
+
+@Data
+public class Estimation {
+    /**
+     * Sampling stops once the 95% confidence interval of the missing fraction is at most this far from the estimate
+     * either way, and the interval of the missing bytes is at most this fraction of all bytes either way.
+     */
+    private Double tolerance = 0.01;
+    /**
+     * Number of files sampled before the estimate is considered at all, so a few lucky draws cannot end it early.
+     */
+    private Integer minSamples = 100;
+    /**
+     * Time spent sampling a single source, after which its estimate is reported as is.
+     */
+    private Duration maxDuration = Duration.ofMinutes(10);
+    /**
+     * Seed of the random sample, to reproduce an estimate. A different sample is drawn on every run by default.
+     */
+    private Long seed;
+}
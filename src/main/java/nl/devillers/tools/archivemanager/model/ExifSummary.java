@@ -0,0 +1,26 @@
+package nl.devillers.tools.archivemanager.model;
+
+import lombok.AllArgsConstructor;
+import lombok.Data;
+import lombok.NoArgsConstructor;
+
+import java.io.Serializable;
+
+/**
+ * EXIF facts of an image, extracted once while indexing. All fields are {@code null} for images without EXIF data.
+ */
+@Data
+@AllArgsConstructor
+@NoArgsConstructor
+public class ExifSummary implements Serializable {
+    private String make;
+    private String model;
+    /**
+     * Original capture date in epoch milliseconds.
+     */
+    private Long captured;
+
+    public boolean hasCamera() {
+        return make != null || model != null;
+    }
+}
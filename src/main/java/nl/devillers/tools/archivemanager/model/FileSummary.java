@@ -2,6 +2,8 @@ package nl.devillers.tools.archivemanager.model;
 
 import lombok.AllArgsConstructor;
 import lombok.Data;
+import lombok.EqualsAndHashCode;
+import org.nustaq.serialization.annotations.Version;
 
 import java.io.Serializable;
 
@@ -11,4 +13,32 @@ public class FileSummary implements Serializable {
     private String path;
     private Long size;
     private String fingerprint;
+    /**
+     * Last modified time in epoch milliseconds, used to detect changed files when refreshing an index. Indexes created
+     * before this field existed read it as {@code null}, which causes the file to be fingerprinted again.
+     */
+    @Version(1)
+    @EqualsAndHashCode.Exclude
+    private Long modified;
+    /**
+     * SHA-1 hash of the full file content. Only computed for files whose size and fingerprint collide with another
+     * file, to rule out files that differ somewhere between the fingerprinted head and tail.
+     */
+    @Version(2)
+    @EqualsAndHashCode.Exclude
+    private String contentHash;
+    /**
+     * EXIF facts of images, or {@code null} for other files and for images indexed before EXIF data was extracted.
+     */
+    @Version(3)
+    @EqualsAndHashCode.Exclude
+    private ExifSummary exif;
+
+    public FileSummary(String path, Long size, String fingerprint) {
+        this(path, size, fingerprint, null);
+    }
+
+    public FileSummary(String path, Long size, String fingerprint, Long modified) {
+        this(path, size, fingerprint, modified, null, null);
+    }
 }
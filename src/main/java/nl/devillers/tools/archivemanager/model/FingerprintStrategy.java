@@ -0,0 +1,27 @@
+package nl.devillers.tools.archivemanager.model;
+
+/**
+ * How files are fingerprinted. Fingerprints of different strategies cannot be compared, so the strategy is recorded
+ * in the header of every index.
+ */
+public enum FingerprintStrategy {
+    /**
+     * SHA-1 of the first and last kilobyte. Cheap for any file size, but misses differences in between, e.g. in videos
+     * whose container headers and trailers are identical.
+     */
+    HEAD_TAIL,
+    /**
+     * SHA-1 of sixteen evenly spaced blocks of a kilobyte, including the first and last one, or of the entire file
+     * if it is no larger than that.
+     */
+    SAMPLED,
+    /**
+     * Non-cryptographic 128-bit hash of the first and last kilobyte. Cheapest in CPU, but meant as a pre-filter: use it
+     * together with {@code VerifyContent} to confirm matches on full content.
+     */
+    FAST,
+    /**
+     * SHA-1 of the entire file, which is the same as its content hash. Reads every byte, so best kept for small archives.
+     */
+    FULL
+}
@@ -0,0 +1,21 @@
+package nl.devillers.tools.archivemanager.model;
+
+import lombok.Data;
+
+import java.nio.file.Path;
+import java.util.List;
+import java.util.LongSummaryStatistics;
+import java.util.Map;
+
+/**
+ * Files missing from the target, with the number and total size of missing files per source archive.
+ */
+@Data
+public class MissingFiles {
+    private final List<FileSummary> files;
+    private final Map<Path, LongSummaryStatistics> perArchive;
+
+    public long getBytes() {
+        return perArchive.values().stream().mapToLong(LongSummaryStatistics::getSum).sum();
+    }
+}
@@ -0,0 +1,29 @@
+package nl.devillers.tools.archivemanager.model;
+
+/**
+ * What a run of the archive manager does.
+ */
+public enum Mode {
+    /**
+     * Writes the missing files and duplicates reports once and exits.
+     */
+    REPORT,
+    /**
+     * Keeps all indexes in memory and answers queries over HTTP until stopped.
+     */
+    SERVE,
+    /**
+     * Serves queries like {@link #SERVE}, while keeping the indexes of the target and any archive with
+     * {@code Watch: true} up to date as files change.
+     */
+    WATCH,
+    /**
+     * Writes the reports like {@link #REPORT}, then copies the missing files into the target and adds them to its index.
+     */
+    BACKFILL,
+    /**
+     * Estimates how much of every source is missing from the target by fingerprinting a random sample of its files,
+     * without indexing the sources.
+     */
+    ESTIMATE
+}
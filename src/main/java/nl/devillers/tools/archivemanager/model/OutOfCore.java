@@ -0,0 +1,19 @@
+package nl.devillers.tools.archivemanager.model;
+
+import lombok.Data;
+import org.springframework.util.unit.DataSize;
+
+import java.nio.file.Path;
+
+@Data
+public class OutOfCore {
+    /**
+     * Heap available for detecting missing files and duplicates. When set, indexes are not loaded as a whole but
+     * spilled to disk in partitions small enough to process within this budget. Leave empty to load everything.
+     */
+    private DataSize memoryBudget;
+    /**
+     * Where partitions are spilled to, the temporary directory by default. Needs room for all indexes.
+     */
+    private Path spillDirectory;
+}
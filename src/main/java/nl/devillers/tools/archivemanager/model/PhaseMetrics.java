@@ -0,0 +1,15 @@
+package nl.devillers.tools.archivemanager.model;
+
+import lombok.AllArgsConstructor;
+import lombok.Data;
+
+/**
+ * Wall time of one phase of a run, and the heap in use once it completed.
+ */
+@Data
+@AllArgsConstructor
+public class PhaseMetrics {
+    private String name;
+    private long millis;
+    private long heapUsedBytes;
+}
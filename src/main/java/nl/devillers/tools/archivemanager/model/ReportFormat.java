@@ -0,0 +1,29 @@
+package nl.devillers.tools.archivemanager.model;
+
+/**
+ * Format of the missing files and duplicates reports.
+ */
+public enum ReportFormat {
+    /**
+     * Paths only, with every group of duplicates starting with a '>'.
+     */
+    TEXT("txt"),
+    /**
+     * One row per file with its size, fingerprint and archive, preceded by a header.
+     */
+    CSV("csv"),
+    /**
+     * One JSON object per file with its size, fingerprint and archive.
+     */
+    JSONL("jsonl");
+
+    private final String extension;
+
+    ReportFormat(String extension) {
+        this.extension = extension;
+    }
+
+    public String getExtension() {
+        return extension;
+    }
+}
@@ -0,0 +1,12 @@
+package nl.devillers.tools.archivemanager.model;
+
+import lombok.Data;
+
+@Data
+public class Server {
+    /**
+     * Only listens on the loopback interface by default, as queries expose the paths of every indexed file.
+     */
+    private String host = "localhost";
+    private Integer port = 8642;
+}
@@ -0,0 +1,22 @@
+package nl.devillers.tools.archivemanager.model;
+
+import lombok.Data;
+
+import java.time.Duration;
+
+@Data
+public class Watch {
+    /**
+     * Changes are applied once no new events arrived for this long, so a burst of events (e.g. copying a folder) is
+     * handled as a single batch.
+     */
+    private Duration quietPeriod = Duration.ofSeconds(2);
+    /**
+     * Changes are applied at least this often while events keep arriving.
+     */
+    private Duration maxDelay = Duration.ofSeconds(30);
+    /**
+     * How often changed indexes are written to disk.
+     */
+    private Duration checkpointInterval = Duration.ofMinutes(5);
+}
@@ -0,0 +1,157 @@
+package nl.devillers.tools.archivemanager;
+
+import nl.devillers.tools.archivemanager.model.Archive;
+import nl.devillers.tools.archivemanager.model.Config;
+import nl.devillers.tools.archivemanager.model.FileSummary;
+import nl.devillers.tools.archivemanager.model.FingerprintStrategy;
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.io.TempDir;
+
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.util.*;
+import java.util.stream.Collectors;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+class BackfillerTest {
+
+    @TempDir
+    Path directory;
+
+    Indexer indexer = new Indexer();
+    Config config = new Config();
+    Archive source = new Archive();
+
+    @BeforeEach
+    void setUp() throws IOException {
+        source.setRoot(Files.createDirectories(directory.resolve("photos")));
+        source.setIndex(directory.resolve("photos.amx"));
+        Files.write(source.getRoot().resolve("a.jpg"), new byte[] {1, 2, 3});
+        Files.write(Files.createDirectories(source.getRoot().resolve("2019")).resolve("b.jpg"), new byte[] {4, 5, 6, 7});
+        Archive target = new Archive();
+        target.setRoot(Files.createDirectories(directory.resolve("target")));
+        target.setIndex(directory.resolve("target.amx"));
+        config.setSources(Collections.singletonList(source));
+        config.setTarget(target);
+        indexer.prepare(target);
+    }
+
+    @Test
+    void backfill_copies_files_into_layout_and_adds_them_to_target_index() throws IOException {
+        // Arrange
+        Backfiller backfiller = new Backfiller(config, indexer);
+        List<FileSummary> missing = files(indexer.readIndex(source));
+
+        // Act
+        List<FileSummary> actual = backfiller.backfill(missing);
+
+        // Assert
+        Path target = config.getTarget().getRoot();
+        assertEquals(2, actual.size());
+        assertArrayEquals(new byte[] {1, 2, 3}, Files.readAllBytes(target.resolve("photos").resolve("a.jpg")));
+        assertArrayEquals(new byte[] {4, 5, 6, 7}, Files.readAllBytes(target.resolve("photos").resolve("2019").resolve("b.jpg")));
+        assertEquals(new HashSet<>(actual), new HashSet<>(files(IndexFile.read(config.getTarget().getIndex()))));
+        assertEquals(missing.stream().map(FileSummary::getFingerprint).collect(Collectors.toSet()),
+                actual.stream().map(FileSummary::getFingerprint).collect(Collectors.toSet()));
+        assertFalse(Files.exists(directory.resolve("target.amx.backfill")));
+    }
+
+    @Test
+    void backfill_skips_files_recorded_in_journal() throws IOException {
+        // Arrange
+        Backfiller backfiller = new Backfiller(config, indexer);
+        List<FileSummary> missing = files(indexer.readIndex(source));
+        FileSummary a = missing.stream().filter(x -> x.getPath().endsWith("a.jpg")).findFirst().get();
+        Path copy = Files.createDirectories(directory.resolve("target").resolve("photos")).resolve("a.jpg");
+        Files.write(copy, new byte[] {1, 2, 3});
+        String line = String.join("\t", a.getPath(), copy.toString(), "3", "0", a.getFingerprint()) + "\n";
+        Files.write(directory.resolve("target.amx.backfill"), (line + "incomplete\t").getBytes(StandardCharsets.UTF_8));
+        // Copying the file again would fail now
+        Files.delete(source.getRoot().resolve("a.jpg"));
+
+        // Act
+        List<FileSummary> actual = backfiller.backfill(missing);
+
+        // Assert
+        assertEquals(2, actual.size());
+        assertTrue(actual.stream().anyMatch(x -> x.getPath().equals(copy.toString())));
+        assertEquals(2, files(IndexFile.read(config.getTarget().getIndex())).size());
+    }
+
+    @Test
+    void backfill_rejects_files_changed_since_indexing() throws IOException {
+        // Arrange
+        Backfiller backfiller = new Backfiller(config, indexer);
+        List<FileSummary> missing = files(indexer.readIndex(source));
+        Files.write(source.getRoot().resolve("a.jpg"), new byte[] {9, 9, 9});
+
+        // Act
+        List<FileSummary> actual = backfiller.backfill(missing);
+
+        // Assert
+        Path target = config.getTarget().getRoot().resolve("photos");
+        assertEquals(1, actual.size());
+        assertFalse(Files.exists(target.resolve("a.jpg")));
+        assertFalse(Files.exists(target.resolve("a.jpg.part")));
+    }
+
+    @Test
+    void backfill_renames_files_that_would_overwrite_another() throws IOException {
+        // Arrange
+        config.getBackfill().setLayout("{name}");
+        Backfiller backfiller = new Backfiller(config, indexer);
+        Files.write(source.getRoot().resolve("2019").resolve("a.jpg"), new byte[] {8, 9});
+        List<FileSummary> missing = files(indexer.readIndex(source));
+
+        // Act
+        List<FileSummary> actual = backfiller.backfill(missing);
+
+        // Assert
+        Set<String> names = actual.stream()
+                .map(x -> Paths.get(x.getPath()).getFileName().toString())
+                .collect(Collectors.toSet());
+        assertEquals(new HashSet<>(Arrays.asList("a.jpg", "a (2).jpg", "b.jpg")), names);
+    }
+
+    @Test
+    void backfill_verifies_files_aligned_to_strategy_of_target() throws IOException {
+        // Arrange
+        source.setFingerprint(FingerprintStrategy.SAMPLED);
+        Random random = new Random(1);
+        byte[] content = new byte[100_000];
+        random.nextBytes(content);
+        Files.write(source.getRoot().resolve("c.jpg"), content);
+        // A file of the same size in the target makes the source file be aligned to the strategy of the target
+        random.nextBytes(content);
+        Files.write(config.getTarget().getRoot().resolve("other.jpg"), content);
+        indexer.createIndex(config.getTarget());
+        Map<Long, List<FileSummary>> sources = indexer.readIndex(source);
+        Map<FileSummary, FileSummary> originals = indexer.align(sources, config.getSources(), FingerprintStrategy.HEAD_TAIL,
+                x -> x == content.length);
+        List<FileSummary> missing = files(sources);
+        missing.replaceAll(x -> originals.getOrDefault(x, x));
+        Backfiller backfiller = new Backfiller(config, indexer);
+
+        // Act
+        List<FileSummary> actual = backfiller.backfill(missing);
+
+        // Assert
+        Path copy = config.getTarget().getRoot().resolve("photos").resolve("c.jpg");
+        assertEquals(3, actual.size());
+        assertTrue(Files.exists(copy));
+        assertEquals(Fingerprinter.fingerprint(copy, FingerprintStrategy.HEAD_TAIL).get(), actual.stream()
+                .filter(x -> x.getPath().equals(copy.toString()))
+                .findFirst()
+                .get()
+                .getFingerprint());
+    }
+
+    private static List<FileSummary> files(Map<Long, List<FileSummary>> index) {
+        return index.values().stream().flatMap(Collection::stream).collect(Collectors.toList());
+    }
+}
@@ -0,0 +1,49 @@
+package nl.devillers.tools.archivemanager;
+
+import nl.devillers.tools.archivemanager.model.FileSummary;
+import org.junit.jupiter.api.Test;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.stream.Collectors;
+import java.util.stream.IntStream;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+
+class BucketsTest {
+
+    @Test
+    void map_keeps_order_of_buckets_of_any_weight() {
+        // Arrange
+        List<List<FileSummary>> buckets = new ArrayList<>();
+        for (int i = 0; i < 1000; i++) {
+            // Every hundredth bucket is bigger than a split on its own
+            buckets.add(bucket(i % 100 == 0 ? Buckets.SPLIT_WEIGHT * 2 : i % 7, i));
+        }
+
+        // Act
+        List<Integer> actual = Buckets.map(buckets, List::size);
+
+        // Assert
+        assertEquals(buckets.stream().map(List::size).collect(Collectors.toList()), actual);
+    }
+
+    @Test
+    void filter_keeps_order_within_big_bucket() {
+        // Arrange
+        List<FileSummary> bucket = bucket(Buckets.SPLIT_WEIGHT * 3, 1);
+
+        // Act
+        List<FileSummary> actual = Buckets.filter(bucket, x -> x.getPath().endsWith("0"));
+
+        // Assert
+        assertEquals(Buckets.SPLIT_WEIGHT * 3 / 10 + 1, actual.size());
+        assertEquals(bucket.stream().filter(x -> x.getPath().endsWith("0")).collect(Collectors.toList()), actual);
+    }
+
+    private static List<FileSummary> bucket(int files, long size) {
+        return IntStream.range(0, files)
+                .mapToObj(x -> new FileSummary("/files/" + size + "/" + x, size, Long.toHexString(x)))
+                .collect(Collectors.toList());
+    }
+}
@@ -0,0 +1,110 @@
+package nl.devillers.tools.archivemanager;
+
+import nl.devillers.tools.archivemanager.model.*;
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.io.TempDir;
+
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.Collections;
+import java.util.List;
+import java.util.regex.Pattern;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+class EstimatorTest {
+
+    @TempDir
+    Path directory;
+
+    @Test
+    void estimate_is_exact_once_every_file_is_sampled() throws IOException {
+        // Arrange
+        Config config = config(archive("source", 40, 0), archive("target", 50, 10));
+        config.getEstimation().setTolerance(0.0);
+        Estimator estimator = new Estimator(config, new Indexer(), new Filters(config));
+        long missingBytes = 0;
+        for (int i = 0; i < 10; i++) {
+            missingBytes += ("content of file " + i).length();
+        }
+
+        // Act
+        List<Estimate> actual = estimator.estimate();
+
+        // Assert
+        assertEquals(1, actual.size());
+        Estimate estimate = actual.get(0);
+        assertEquals(40, estimate.getSampled());
+        assertEquals(10, estimate.getSampledMissing());
+        assertEquals(0.25, estimate.getMissingFraction());
+        assertEquals(0.25, estimate.getMissingFractionLow());
+        assertEquals(0.25, estimate.getMissingFractionHigh());
+        assertEquals(missingBytes, estimate.getMissingBytes());
+        assertTrue(estimate.isConverged());
+        assertFalse(Files.exists(directory.resolve("source.amx")));
+    }
+
+    @Test
+    void estimate_stops_early_once_converged() throws IOException {
+        // Arrange
+        Config config = config(archive("source", 300, 0), archive("target", 300, 0));
+        config.getEstimation().setTolerance(0.05);
+        config.getEstimation().setMinSamples(50);
+        config.getEstimation().setSeed(42L);
+        Estimator estimator = new Estimator(config, new Indexer(), new Filters(config));
+
+        // Act
+        Estimate actual = estimator.estimate().get(0);
+
+        // Assert
+        assertTrue(actual.isConverged());
+        assertTrue(actual.getSampled() >= 50 && actual.getSampled() < 300, "sampled " + actual.getSampled());
+        assertEquals(0, actual.getMissingFraction());
+        assertTrue(actual.getMissingFractionHigh() <= 0.05);
+    }
+
+    @Test
+    void sample_interval_covers_population_fraction() {
+        // Arrange
+        Estimator.Sample sample = new Estimator.Sample(1_000_000, 1_000_000_000L);
+
+        // Act
+        for (int i = 0; i < 1000; i++) {
+            sample.add(1000, i % 10 == 0);
+        }
+        double[] fraction = sample.fractionInterval();
+        double[] bytes = sample.missingBytesInterval();
+
+        // Assert
+        assertEquals(0.1, sample.fraction(), 1e-9);
+        assertTrue(fraction[0] < 0.1 && 0.1 < fraction[1]);
+        assertTrue(fraction[1] - fraction[0] < 0.05);
+        assertEquals(100_000_000, sample.missingBytes(), 1);
+        assertTrue(bytes[0] < 100_000_000 && 100_000_000 < bytes[1]);
+    }
+
+    private Config config(Archive source, Archive target) {
+        Config config = new Config();
+        config.setIgnoreEmptyFiles(true);
+        config.setRegexFilters(Collections.singletonList(Pattern.compile("\\.bin$")));
+        config.setSources(Collections.singletonList(source));
+        config.setTarget(target);
+        return config;
+    }
+
+    /**
+     * Creates an archive of files numbered from the given offset, each with distinct content.
+     */
+    private Archive archive(String name, int count, int offset) throws IOException {
+        Path root = Files.createDirectories(directory.resolve(name));
+        for (int i = offset; i < offset + count; i++) {
+            Files.write(root.resolve("file-" + i + ".bin"), ("content of file " + i).getBytes());
+        }
+        Archive archive = new Archive();
+        archive.setRoot(root);
+        archive.setIndex(directory.resolve(name + ".amx"));
+        archive.setParallelism(2);
+        return archive;
+    }
+}
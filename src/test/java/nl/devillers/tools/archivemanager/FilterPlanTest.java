@@ -0,0 +1,63 @@
+package nl.devillers.tools.archivemanager;
+
+import org.junit.jupiter.params.ParameterizedTest;
+import org.junit.jupiter.params.provider.ValueSource;
+
+import java.util.Arrays;
+import java.util.List;
+import java.util.regex.Pattern;
+import java.util.stream.Collectors;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+
+class FilterPlanTest {
+
+    List<String> paths = Arrays.asList(
+            "C:\\photos\\IMG_0001.JPG",
+            "C:\\photos\\IMG_0001.jpg",
+            "C:\\photos\\IMG_0001.jpeg.txt",
+            "C:\\photos\\notes.txt",
+            "C:\\.jpg",
+            "C:\\a.jpe",
+            "/home/photos/IMG_0001.jpg",
+            "no-extension",
+            "C:\\photos\\2019-01-01 party.mp4",
+            "C:\\photos\\DSC0001.ARW");
+
+    /**
+     * Whichever way a rule is compiled, the plan must accept exactly the paths the original regex accepts
+     *
+     * @param regex A configured regex filter
+     */
+    @ParameterizedTest
+    @ValueSource(strings = {
+            "(?i)\\\\.+\\.(jpg|jpeg|jpe)$",
+            "\\.(jpg|jpeg)$",
+            "(?i)\\.arw$",
+            ".*\\.txt$",
+            "\\.jpg|jpeg$",
+            "(?i)\\\\[0-9]{4}-[0-9]{2}-[0-9]{2}.*\\.(jpg|mov|mp4|avi|arw|mpg)$",
+    })
+    void plan_matches_same_paths_as_regex(String regex) {
+        // Arrange
+        Pattern pattern = Pattern.compile(regex);
+        FilterPlan plan = new FilterPlan(Arrays.asList(pattern));
+
+        // Act
+        List<String> actual = paths.stream().filter(plan::test).collect(Collectors.toList());
+
+        // Assert
+        assertEquals(paths.stream().filter(x -> pattern.matcher(x).find()).collect(Collectors.toList()), actual);
+    }
+
+    @ParameterizedTest
+    @ValueSource(strings = {"C:\\photos\\notes.txt", "C:\\photos\\IMG_0001.JPG", "/home/x.mp4"})
+    void plan_matches_if_any_rule_matches(String path) {
+        // Arrange
+        List<Pattern> patterns = Arrays.asList(Pattern.compile("(?i)\\\\.+\\.(jpg|jpeg|jpe)$"), Pattern.compile("notes"), Pattern.compile("mp4$"));
+        FilterPlan plan = new FilterPlan(patterns);
+
+        // Act & Assert
+        assertEquals(patterns.stream().anyMatch(x -> x.matcher(path).find()), plan.test(path));
+    }
+}
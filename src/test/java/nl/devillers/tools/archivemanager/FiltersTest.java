@@ -0,0 +1,60 @@
+package nl.devillers.tools.archivemanager;
+
+import nl.devillers.tools.archivemanager.model.*;
+import org.assertj.core.util.Lists;
+import org.junit.jupiter.api.Test;
+
+import java.util.*;
+import java.util.regex.Pattern;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+class FiltersTest {
+
+    @Test
+    void filter_returns_view_and_leaves_index_untouched() {
+        // Arrange
+        Config config = new Config();
+        config.setIgnoreEmptyFiles(true);
+        config.setRegexFilters(Collections.singletonList(Pattern.compile("(?i)\\.jpg$")));
+        config.setExifFilter(new ExifFilter());
+        Filters filters = new Filters(config);
+        FileSummary photo = new FileSummary("/photos/a.jpg", 100L, "aa");
+        FileSummary text = new FileSummary("/photos/a.txt", 100L, "bb");
+        FileSummary empty = new FileSummary("/photos/b.jpg", 0L, "cc");
+        Map<Long, List<FileSummary>> index = new HashMap<>();
+        index.put(100L, Lists.list(photo, text));
+        index.put(0L, Lists.list(empty));
+
+        // Act
+        Map<Long, List<FileSummary>> actual = filters.filter(index);
+
+        // Assert
+        assertEquals(Collections.singletonMap(100L, Lists.list(photo)), actual);
+        assertEquals(Lists.list(photo, text), index.get(100L));
+        assertEquals(Lists.list(empty), index.get(0L));
+    }
+
+    @Test
+    void filter_applies_exif_filter_in_same_pass() {
+        // Arrange
+        Config config = new Config();
+        config.setIgnoreEmptyFiles(false);
+        config.setRegexFilters(Collections.singletonList(Pattern.compile("(?i)\\.jpg$")));
+        ExifFilter exifFilter = new ExifFilter();
+        exifFilter.setEnabled(true);
+        exifFilter.setExtensions(Collections.singletonList("jpg"));
+        config.setExifFilter(exifFilter);
+        Filters filters = new Filters(config);
+        FileSummary camera = new FileSummary("/photos/a.jpg", 100L, "aa");
+        camera.setExif(new ExifSummary("Canon", "EOS 5D", null));
+        FileSummary screenshot = new FileSummary("/photos/b.jpg", 100L, "bb");
+        Map<Long, List<FileSummary>> index = Collections.singletonMap(100L, Lists.list(camera, screenshot));
+
+        // Act
+        Map<Long, List<FileSummary>> actual = filters.filter(index);
+
+        // Assert
+        assertEquals(Collections.singletonMap(100L, Lists.list(camera)), actual);
+    }
+}
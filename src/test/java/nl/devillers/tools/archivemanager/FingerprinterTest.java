@@ -1,20 +1,34 @@
 package nl.devillers.tools.archivemanager;
 
+import nl.devillers.tools.archivemanager.model.FingerprintStrategy;
+import org.apache.commons.codec.binary.Hex;
+import org.apache.commons.codec.digest.DigestUtils;
 import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.io.TempDir;
 import org.junit.jupiter.params.ParameterizedTest;
 import org.junit.jupiter.params.provider.CsvSource;
+import org.junit.jupiter.params.provider.ValueSource;
 
+import java.io.ByteArrayInputStream;
+import java.io.IOException;
+import java.nio.file.Files;
 import java.nio.file.Path;
 import java.nio.file.Paths;
 import java.util.Optional;
 
+import static org.junit.jupiter.api.Assertions.assertArrayEquals;
 import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertFalse;
+import static org.junit.jupiter.api.Assertions.assertNotEquals;
 import static org.junit.jupiter.api.Assertions.assertTrue;
 
 class FingerprinterTest {
 
     Path files = Paths.get("src","test","resources", "files");
 
+    @TempDir
+    Path temp;
+
     /**
      * An empty file should produce the (famous) empty SHA-1 hash
      *
@@ -100,4 +114,94 @@ class FingerprinterTest {
         assertTrue(actual.isPresent());
         assertEquals(expected, actual.get());
     }
-}
\ No newline at end of file
+
+    /**
+     * The binary digest is the raw form of the hexadecimal fingerprint, and for files that fit in two chunks the
+     * fingerprint equals the hash of the full content.
+     */
+    @ParameterizedTest
+    @ValueSource(strings = {"506.txt", "1440.txt"})
+    void digest_and_content_hash_match_fingerprint_of_small_files(String path) throws IOException {
+        // Arrange
+        String expected = DigestUtils.sha1Hex(Files.readAllBytes(files.resolve(path)));
+
+        // Act
+        Optional<byte[]> digest = Fingerprinter.digest(files.resolve(path));
+        Optional<String> contentHash = Fingerprinter.contentHash(files.resolve(path));
+
+        // Assert
+        assertTrue(digest.isPresent());
+        assertEquals(expected, Hex.encodeHexString(digest.get()));
+        assertEquals(Optional.of(expected), contentHash);
+    }
+
+    @Test
+    void missing_file_produces_no_fingerprint() {
+        // Act
+        Optional<String> actual = Fingerprinter.fingerprint(files.resolve("missing.txt"));
+
+        // Assert
+        assertFalse(actual.isPresent());
+    }
+
+    @ParameterizedTest
+    @CsvSource({"A2049.txt", "A2049-B-mid.txt", "1440.txt"})
+    void full_fingerprint_equals_content_hash(String path) {
+        // Act
+        Optional<String> actual = Fingerprinter.fingerprint(files.resolve(path), FingerprintStrategy.FULL);
+
+        // Assert
+        assertTrue(actual.isPresent());
+        assertEquals(Fingerprinter.contentHash(files.resolve(path)), actual);
+    }
+
+    /**
+     * A file that differs between its first and last chunk has the same head and tail, but not the same samples if the
+     * difference is in one of them.
+     */
+    @Test
+    void sampled_fingerprint_catches_difference_between_head_and_tail() throws IOException {
+        // Arrange
+        byte[] content = new byte[1024 * 1024];
+        Path original = Files.write(temp.resolve("original.bin"), content);
+        content[(content.length - 1024) * 8 / 15 + 100] = 1; // Inside the ninth sample
+        Path changed = Files.write(temp.resolve("changed.bin"), content);
+
+        // Act
+        Optional<String> headTail = Fingerprinter.fingerprint(changed, FingerprintStrategy.HEAD_TAIL);
+        Optional<String> sampled = Fingerprinter.fingerprint(changed, FingerprintStrategy.SAMPLED);
+
+        // Assert
+        assertEquals(Fingerprinter.fingerprint(original, FingerprintStrategy.HEAD_TAIL), headTail);
+        assertNotEquals(Fingerprinter.fingerprint(original, FingerprintStrategy.SAMPLED), sampled);
+        assertFalse(Fingerprinter.coversContent(content.length, FingerprintStrategy.SAMPLED));
+    }
+
+    @Test
+    void sampled_fingerprint_of_small_file_equals_content_hash() {
+        // Act
+        Optional<String> actual = Fingerprinter.fingerprint(files.resolve("A2049.txt"), FingerprintStrategy.SAMPLED);
+
+        // Assert
+        assertEquals(Fingerprinter.contentHash(files.resolve("A2049.txt")), actual);
+        assertTrue(Fingerprinter.coversContent(2049, FingerprintStrategy.SAMPLED));
+    }
+
+    @ParameterizedTest
+    @CsvSource({"0.txt", "506.txt", "A2049.txt", "A2049-B-end.txt"})
+    void fast_fingerprint_of_stream_equals_fingerprint_of_file(String path) throws IOException {
+        // Arrange
+        byte[] content = Files.readAllBytes(files.resolve(path));
+
+        // Act
+        Optional<byte[]> actual = Fingerprinter.digest(files.resolve(path), FingerprintStrategy.FAST);
+        byte[] stream = Fingerprinter.digest(new ByteArrayInputStream(content), content.length, FingerprintStrategy.FAST);
+
+        // Assert
+        assertTrue(actual.isPresent());
+        assertEquals(16, actual.get().length);
+        assertArrayEquals(stream, actual.get());
+        assertNotEquals(Fingerprinter.digest(files.resolve(path)).map(Hex::encodeHexString),
+                actual.map(Hex::encodeHexString));
+    }
+}
@@ -0,0 +1,183 @@
+package nl.devillers.tools.archivemanager;
+
+import nl.devillers.tools.archivemanager.model.ExifSummary;
+import nl.devillers.tools.archivemanager.model.FileSummary;
+import org.apache.commons.codec.binary.Hex;
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.io.TempDir;
+
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.*;
+import java.util.stream.Stream;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+class IndexFileTest {
+
+    @TempDir
+    Path directory;
+
+    @Test
+    void write_then_read_round_trips_all_entries() throws IOException {
+        // Arrange
+        Map<Long, List<FileSummary>> expected = generate(1000);
+        Path file = directory.resolve("index.amx");
+
+        // Act
+        IndexFile.write(file, expected);
+        Map<Long, List<FileSummary>> actual = IndexFile.read(file);
+
+        // Assert
+        assertTrue(IndexFile.isIndexFile(file));
+        assertEquals(sorted(expected), sorted(actual));
+    }
+
+    @Test
+    void lookup_finds_sizes_spanning_multiple_blocks() throws IOException {
+        // Arrange
+        Map<Long, List<FileSummary>> index = generate(2000);
+        Path file = directory.resolve("index.amx");
+        IndexFile.write(file, index);
+
+        // Act & Assert
+        try (IndexFile.Reader reader = IndexFile.open(file)) {
+            assertEquals(2000, reader.getEntryCount());
+            for (Map.Entry<Long, List<FileSummary>> entry : index.entrySet()) {
+                assertEquals(new HashSet<>(entry.getValue()), new HashSet<>(reader.lookup(entry.getKey())));
+            }
+            assertTrue(reader.lookup(-1).isEmpty());
+            assertTrue(reader.lookup(Long.MAX_VALUE).isEmpty());
+            FileSummary any = index.get(0L).get(0);
+            assertTrue(reader.contains(0L, any.getFingerprint()));
+            assertFalse(reader.contains(0L, "0000000000000000000000000000000000000000"));
+        }
+    }
+
+    @Test
+    void empty_index_round_trips() throws IOException {
+        // Arrange
+        Path file = directory.resolve("index.amx");
+
+        // Act
+        IndexFile.write(file, Collections.emptyMap());
+
+        // Assert
+        assertTrue(IndexFile.read(file).isEmpty());
+        try (IndexFile.Reader reader = IndexFile.open(file)) {
+            assertTrue(reader.lookup(0).isEmpty());
+        }
+    }
+
+    @Test
+    void properties_round_trip_without_affecting_entries() throws IOException {
+        // Arrange
+        Map<Long, List<FileSummary>> expected = generate(300);
+        Path file = directory.resolve("index.amx");
+
+        // Act
+        IndexFile.write(file, expected, Collections.singletonMap("sources", "abc"));
+
+        // Assert
+        assertEquals(Collections.singletonMap("sources", "abc"), IndexFile.readProperties(file));
+        assertEquals(sorted(expected), sorted(IndexFile.read(file)));
+        try (IndexFile.Reader reader = IndexFile.open(file)) {
+            assertEquals(new HashSet<>(expected.get(0L)), new HashSet<>(reader.lookup(0L)));
+        }
+    }
+
+    @Test
+    void strings_of_any_length_round_trip() throws IOException {
+        // Arrange
+        char[] make = new char[70000];
+        Arrays.fill(make, 'x');
+        FileSummary photo = new FileSummary("photo.jpg", 1000L, "aa", 1L);
+        photo.setExif(new ExifSummary(new String(make), null, 2L));
+        FileSummary other = new FileSummary("other.jpg", 1000L, "bb", 1L);
+        other.setExif(new ExifSummary(new String(make, 0, 65535), "model", null));
+        Path file = directory.resolve("index.amx");
+
+        // Act
+        IndexFile.write(file, Collections.singletonMap(1000L, Arrays.asList(photo, other)));
+
+        // Assert
+        List<FileSummary> actual = IndexFile.read(file).get(1000L);
+        assertEquals(photo.getExif(), actual.get(0).getExif());
+        assertEquals(other.getExif(), actual.get(1).getExif());
+        try (IndexFile.Reader reader = IndexFile.open(file)) {
+            assertEquals(photo.getExif(), reader.lookup(1000L).get(0).getExif());
+        }
+    }
+
+    @Test
+    void sorting_writer_merges_spilled_runs_into_same_index_as_write() throws IOException {
+        // Arrange
+        Map<Long, List<FileSummary>> index = generate(1000);
+        List<FileSummary> unordered = new ArrayList<>();
+        index.values().forEach(unordered::addAll);
+        Collections.shuffle(unordered, new Random(7));
+        Path expected = directory.resolve("expected.amx");
+        IndexFile.write(expected, index, Collections.singletonMap("sources", "abc"));
+        Path file = directory.resolve("index.amx");
+
+        // Act
+        // Runs of 5 entries make more runs than are merged at once, so some are merged into larger runs first
+        try (IndexFile.SortingWriter writer = new IndexFile.SortingWriter(file, Collections.singletonMap("sources", "abc"), 5)) {
+            for (FileSummary summary : unordered) {
+                writer.append(summary);
+            }
+        }
+
+        // Assert
+        assertArrayEquals(Files.readAllBytes(expected), Files.readAllBytes(file));
+        try (Stream<Path> files = Files.list(directory)) {
+            assertEquals(2, files.count());
+        }
+    }
+
+    @Test
+    void open_rejects_truncated_index() throws IOException {
+        // Arrange
+        Path file = directory.resolve("index.amx");
+        IndexFile.write(file, generate(300));
+        byte[] bytes = Files.readAllBytes(file);
+        Files.write(file, Arrays.copyOf(bytes, bytes.length - 100));
+
+        // Act & Assert
+        assertThrows(IOException.class, () -> IndexFile.open(file).close());
+    }
+
+    @Test
+    void isIndexFile_rejects_other_files() throws IOException {
+        // Arrange
+        Path file = directory.resolve("index.fst");
+        Files.write(file, new byte[] {1, 2});
+
+        // Act & Assert
+        assertFalse(IndexFile.isIndexFile(file));
+    }
+
+    /**
+     * Generates entries spread over a small number of sizes, so buckets are larger than a single block
+     */
+    static Map<Long, List<FileSummary>> generate(int count) {
+        Random random = new Random(42);
+        Map<Long, List<FileSummary>> index = new HashMap<>();
+        for (int i = 0; i < count; i++) {
+            long size = random.nextInt(5) * 1000L;
+            byte[] fingerprint = new byte[20];
+            random.nextBytes(fingerprint);
+            FileSummary summary = new FileSummary(String.format("dir%d/file%d.jpg", i % 7, i), size,
+                    Hex.encodeHexString(fingerprint), (long)i);
+            index.computeIfAbsent(size, x -> new ArrayList<>()).add(summary);
+        }
+        return index;
+    }
+
+    private static Map<Long, Set<FileSummary>> sorted(Map<Long, List<FileSummary>> index) {
+        Map<Long, Set<FileSummary>> result = new HashMap<>();
+        index.forEach((size, bucket) -> result.put(size, new HashSet<>(bucket)));
+        return result;
+    }
+}
@@ -0,0 +1,111 @@
+package nl.devillers.tools.archivemanager;
+
+import nl.devillers.tools.archivemanager.model.ExifSummary;
+import nl.devillers.tools.archivemanager.model.FileSummary;
+import nl.devillers.tools.archivemanager.model.FingerprintStrategy;
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.io.TempDir;
+
+import java.io.IOException;
+import java.nio.channels.FileChannel;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+class IndexJournalTest {
+
+    @TempDir
+    Path directory;
+
+    @Test
+    void open_replays_entries_of_earlier_runs() throws IOException {
+        // Arrange
+        Path index = directory.resolve("index.amx");
+        FileSummary photo = new FileSummary("photo.jpg", 10L, "aabb", 1000L);
+        photo.setExif(new ExifSummary("Canon", null, 2000L));
+        FileSummary text = new FileSummary("text.txt", 3L, "ccdd", null);
+        try (IndexJournal journal = IndexJournal.open(index, FingerprintStrategy.HEAD_TAIL)) {
+            journal.append(photo);
+        }
+        try (IndexJournal journal = IndexJournal.open(index, FingerprintStrategy.HEAD_TAIL)) {
+            journal.append(text);
+        }
+
+        // Act
+        IndexJournal actual = IndexJournal.open(index, FingerprintStrategy.HEAD_TAIL);
+        actual.close();
+
+        // Assert
+        assertEquals(2, actual.getReplayed().size());
+        assertEquals(photo.getExif(), actual.getReplayed().get("photo.jpg").getExif());
+        assertEquals(text, actual.getReplayed().get("text.txt"));
+    }
+
+    @Test
+    void open_discards_torn_batch_and_appends_after_last_intact_one() throws IOException {
+        // Arrange
+        Path index = directory.resolve("index.amx");
+        try (IndexJournal journal = IndexJournal.open(index, FingerprintStrategy.HEAD_TAIL)) {
+            journal.append(new FileSummary("a.txt", 1L, "aa", 1L));
+            journal.flush();
+            journal.append(new FileSummary("b.txt", 2L, "bb", 2L));
+        }
+        Path path = IndexJournal.of(index);
+        try (FileChannel channel = FileChannel.open(path, StandardOpenOption.WRITE)) {
+            channel.truncate(channel.size() - 3);
+        }
+
+        // Act
+        try (IndexJournal journal = IndexJournal.open(index, FingerprintStrategy.HEAD_TAIL)) {
+            journal.append(new FileSummary("c.txt", 3L, "cc", 3L));
+        }
+        IndexJournal actual = IndexJournal.open(index, FingerprintStrategy.HEAD_TAIL);
+        actual.delete();
+
+        // Assert
+        assertEquals(2, actual.getReplayed().size());
+        assertTrue(actual.getReplayed().containsKey("a.txt"));
+        assertTrue(actual.getReplayed().containsKey("c.txt"));
+        assertFalse(Files.exists(path));
+    }
+
+    @Test
+    void open_discards_journal_of_other_fingerprint_strategy() throws IOException {
+        // Arrange
+        Path index = directory.resolve("index.amx");
+        try (IndexJournal journal = IndexJournal.open(index, FingerprintStrategy.SAMPLED)) {
+            journal.append(new FileSummary("a.txt", 1L, "aa", 1L));
+        }
+
+        // Act
+        try (IndexJournal journal = IndexJournal.open(index, FingerprintStrategy.HEAD_TAIL)) {
+            journal.append(new FileSummary("b.txt", 2L, "bb", 2L));
+        }
+        IndexJournal actual = IndexJournal.open(index, FingerprintStrategy.HEAD_TAIL);
+        actual.close();
+
+        // Assert
+        assertEquals(1, actual.getReplayed().size());
+        assertTrue(actual.getReplayed().containsKey("b.txt"));
+    }
+
+    @Test
+    void open_starts_over_journal_with_unreadable_header() throws IOException {
+        // Arrange
+        Path index = directory.resolve("index.amx");
+        Files.write(IndexJournal.of(index), new byte[] {1, 2, 3, 4, 5, 6, 7, 8, 9, 10, 11, 12, 13, 14, 15, 16});
+
+        // Act
+        try (IndexJournal journal = IndexJournal.open(index, FingerprintStrategy.HEAD_TAIL)) {
+            journal.append(new FileSummary("a.txt", 1L, "aa", 1L));
+        }
+        IndexJournal actual = IndexJournal.open(index, FingerprintStrategy.HEAD_TAIL);
+        actual.close();
+
+        // Assert
+        assertEquals(1, actual.getReplayed().size());
+        assertTrue(actual.getReplayed().containsKey("a.txt"));
+    }
+}
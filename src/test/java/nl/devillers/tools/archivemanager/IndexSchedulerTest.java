@@ -0,0 +1,106 @@
+package nl.devillers.tools.archivemanager;
+
+import nl.devillers.tools.archivemanager.model.Archive;
+import nl.devillers.tools.archivemanager.model.Config;
+import nl.devillers.tools.archivemanager.model.Device;
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.io.TempDir;
+
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.*;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+class IndexSchedulerTest {
+
+    @TempDir
+    Path directory;
+
+    @Test
+    void devices_groups_archives_by_file_store_ordered_by_root() throws IOException {
+        // Arrange
+        Archive b = archive("b");
+        Archive a = archive("a");
+        Archive missing = new Archive();
+        missing.setRoot(directory.resolve("missing"));
+
+        // Act
+        List<List<Archive>> actual = new ArrayList<>(IndexScheduler.devices(Arrays.asList(b, missing, a)));
+
+        // Assert
+        assertEquals(2, actual.size());
+        assertEquals(Arrays.asList(a, b), actual.get(0));
+        assertEquals(Arrays.asList(missing), actual.get(1));
+    }
+
+    @Test
+    void prepare_indexes_all_archives() throws IOException {
+        // Arrange
+        IndexScheduler scheduler = new IndexScheduler(new Indexer(), new Config());
+        List<Archive> archives = Arrays.asList(archive("a"), archive("b"));
+
+        // Act
+        scheduler.prepare(archives);
+
+        // Assert
+        assertTrue(archives.stream().allMatch(Archive::isIndexed));
+        assertEquals(1, IndexFile.read(archives.get(0).getIndex()).size());
+    }
+
+    @Test
+    void prepare_caps_parallelism_of_archives_on_limited_device() throws IOException {
+        // Arrange
+        Map<Path, Integer> actual = new HashMap<>();
+        Indexer indexer = new Indexer() {
+            @Override
+            public void prepare(Archive archive, int parallelism) {
+                actual.put(archive.getRoot(), parallelism);
+            }
+        };
+        Device device = new Device();
+        device.setPath(directory);
+        device.setParallelism(2);
+        Config config = new Config();
+        config.setDevices(Collections.singletonList(device));
+        Archive wide = archive("wide");
+        wide.setParallelism(8);
+        Archive narrow = archive("narrow");
+        narrow.setParallelism(1);
+
+        // Act
+        new IndexScheduler(indexer, config).prepare(Arrays.asList(wide, narrow));
+
+        // Assert
+        assertEquals(2, actual.get(wide.getRoot()));
+        assertEquals(1, actual.get(narrow.getRoot()));
+    }
+
+    @Test
+    void parallelism_of_archive_on_device_without_limit_is_its_own() throws IOException {
+        // Arrange
+        Device device = new Device();
+        device.setPath(directory.resolve("missing"));
+        device.setParallelism(2);
+        Config config = new Config();
+        config.setDevices(Collections.singletonList(device));
+        Archive archive = archive("a");
+        archive.setParallelism(8);
+
+        // Act
+        int actual = new IndexScheduler(new Indexer(), config).parallelism(archive);
+
+        // Assert
+        assertEquals(8, actual);
+    }
+
+    private Archive archive(String name) throws IOException {
+        Path root = Files.createDirectories(directory.resolve(name));
+        Files.write(root.resolve("file.txt"), name.getBytes());
+        Archive archive = new Archive();
+        archive.setRoot(root);
+        archive.setIndex(directory.resolve(name + ".amx"));
+        return archive;
+    }
+}
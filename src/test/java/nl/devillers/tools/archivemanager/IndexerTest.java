@@ -2,16 +2,27 @@ package nl.devillers.tools.archivemanager;
 
 import nl.devillers.tools.archivemanager.model.Archive;
 import nl.devillers.tools.archivemanager.model.FileSummary;
+import nl.devillers.tools.archivemanager.model.FingerprintStrategy;
 import org.assertj.core.util.Lists;
 import org.junit.jupiter.api.Test;
 import org.junit.jupiter.api.io.TempDir;
+import org.nustaq.serialization.FSTConfiguration;
 
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.charset.Charset;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
 import java.nio.file.Path;
 import java.nio.file.Paths;
+import java.nio.file.attribute.FileTime;
 import java.util.Collections;
 import java.util.HashMap;
 import java.util.List;
 import java.util.Map;
+import java.util.regex.Pattern;
+import java.util.zip.ZipEntry;
+import java.util.zip.ZipOutputStream;
 
 import static org.junit.jupiter.api.Assertions.*;
 
@@ -116,4 +127,305 @@ class IndexerTest {
         // Assert
         assertEquals(expected, actual);
     }
+
+    @Test
+    void readIndex_duplicate_single_threaded() throws IOException {
+        // Arrange
+        Indexer indexer = new Indexer();
+        Archive archive = new Archive();
+        Path duplicate = archives.resolve("duplicate");
+        archive.setRoot(duplicate);
+        archive.setIndex(index.resolve("index.fst"));
+        archive.setParallelism(1);
+        Map<Long, List<FileSummary>> expected = new HashMap<>();
+        expected.put(Files.size(duplicate.resolve("gibberish_d1.txt")), Lists.list(
+                summaryOf(duplicate.resolve("gibberish_d1.txt")),
+                summaryOf(duplicate.resolve("gibberish_d2.txt")))
+        );
+
+        // Act
+        Map<Long, List<FileSummary>> actual = indexer.readIndex(archive);
+
+        // Assert
+        assertEquals(expected, actual);
+    }
+
+    @Test
+    void readIndex_refresh_picks_up_new_changed_and_deleted_files() throws IOException {
+        // Arrange
+        Indexer indexer = new Indexer();
+        Archive archive = new Archive();
+        Path live = index.resolve("live");
+        Files.createDirectories(live);
+        Files.write(live.resolve("unchanged.txt"), "unchanged".getBytes());
+        Files.write(live.resolve("changed.txt"), "before".getBytes());
+        Files.write(live.resolve("deleted.txt"), "deleted".getBytes());
+        archive.setRoot(live);
+        archive.setIndex(index.resolve("index.fst"));
+        archive.setRefresh(true);
+        indexer.readIndex(archive);
+
+        Files.write(live.resolve("changed.txt"), "after!".getBytes());
+        Files.setLastModifiedTime(live.resolve("changed.txt"), FileTime.fromMillis(0));
+        Files.delete(live.resolve("deleted.txt"));
+        Files.write(live.resolve("new.txt"), "new".getBytes());
+        Map<Long, List<FileSummary>> expected = new HashMap<>();
+        expected.put(3L, Lists.list(new FileSummary(live.resolve("new.txt").toString(), 3L, "c2a6b03f190dfb2b4aa91f8af8d477a9bc3401dc")));
+        expected.put(6L, Lists.list(new FileSummary(live.resolve("changed.txt").toString(), 6L, "12b5af7c1310fbea0b8021ff51fb41465e98129a")));
+        expected.put(9L, Lists.list(new FileSummary(live.resolve("unchanged.txt").toString(), 9L, "8012ff51a005eaa8ed8f4c08ccdce580f462fff6")));
+
+        // Act
+        Map<Long, List<FileSummary>> actual = indexer.readIndex(archive);
+
+        // Assert
+        assertEquals(expected, actual);
+    }
+
+    @Test
+    void readIndex_migrates_legacy_fst_index() throws IOException {
+        // Arrange
+        Indexer indexer = new Indexer();
+        Archive archive = new Archive();
+        Path single = archives.resolve("single");
+        archive.setRoot(single);
+        archive.setIndex(index.resolve("index.fst"));
+        FileSummary fileSummary = new FileSummary(single.resolve("gibberish.txt").toString(), 3599L, "ba5e28b1e872e9162da643e5845504cece08f005");
+        HashMap<Long, List<FileSummary>> expected = new HashMap<>(Collections.singletonMap(3599L, Lists.list(fileSummary)));
+        Files.write(archive.getIndex(), FSTConfiguration.createDefaultConfiguration().asByteArray(expected));
+
+        // Act
+        Map<Long, List<FileSummary>> actual = indexer.readIndex(archive);
+
+        // Assert
+        assertEquals(expected, actual);
+        assertTrue(IndexFile.isIndexFile(archive.getIndex()));
+    }
+
+    @Test
+    void readIndex_captures_exif_of_images() throws IOException {
+        // Arrange
+        Indexer indexer = new Indexer();
+        Archive archive = new Archive();
+        Path photos = index.resolve("photos");
+        Files.createDirectories(photos);
+        Files.write(photos.resolve("camera.jpg"), jpegWithMake("Canon"));
+        Files.write(photos.resolve("scan.jpg"), new byte[] {(byte)0xFF, (byte)0xD8, (byte)0xFF, (byte)0xD9});
+        Files.write(photos.resolve("notes.txt"), "no image".getBytes());
+        archive.setRoot(photos);
+        archive.setIndex(index.resolve("index.fst"));
+
+        // Act
+        Map<String, FileSummary> actual = new HashMap<>();
+        indexer.readIndex(archive).values().forEach(x -> x.forEach(y -> actual.put(photos.relativize(Paths.get(y.getPath())).toString(), y)));
+
+        // Assert
+        assertEquals("Canon", actual.get("camera.jpg").getExif().getMake());
+        assertTrue(actual.get("camera.jpg").getExif().hasCamera());
+        assertFalse(actual.get("scan.jpg").getExif().hasCamera());
+        assertNull(actual.get("notes.txt").getExif());
+    }
+
+    @Test
+    void backfillExif_extracts_exif_missing_from_older_indexes() throws IOException {
+        // Arrange
+        Indexer indexer = new Indexer();
+        Archive archive = new Archive();
+        Path photos = index.resolve("photos");
+        Files.createDirectories(photos);
+        Path camera = Files.write(photos.resolve("camera.jpg"), jpegWithMake("Nikon"));
+        archive.setRoot(photos);
+        archive.setIndex(index.resolve("index.fst"));
+        FileSummary summary = new FileSummary(camera.toString(), Files.size(camera), Fingerprinter.fingerprint(camera).get());
+        HashMap<Long, List<FileSummary>> legacy = new HashMap<>(Collections.singletonMap(summary.getSize(), Lists.list(summary)));
+        Files.write(archive.getIndex(), FSTConfiguration.createDefaultConfiguration().asByteArray(legacy));
+
+        // Act
+        indexer.backfillExif(archive, indexer.readIndex(archive));
+
+        // Assert
+        FileSummary actual = indexer.readIndex(archive).get(summary.getSize()).get(0);
+        assertEquals("Nikon", actual.getExif().getMake());
+    }
+
+    @Test
+    void readIndex_tree_skips_excluded_directories() throws IOException {
+        // Arrange
+        Indexer indexer = new Indexer();
+        Archive archive = new Archive();
+        Path tree = archives.resolve("tree");
+        archive.setRoot(tree);
+        archive.setIndex(index.resolve("index.fst"));
+        archive.setExcludes(Lists.list(Pattern.compile("sub$")));
+        Map<Long, List<FileSummary>> expected = new HashMap<>();
+        expected.put(Files.size(tree.resolve("gibberish1.txt")), Lists.list(summaryOf(tree.resolve("gibberish1.txt"))));
+
+        // Act
+        Map<Long, List<FileSummary>> actual = indexer.readIndex(archive);
+
+        // Assert
+        assertEquals(expected, actual);
+    }
+
+    @Test
+    void readIndex_indexes_zip_entries_under_virtual_paths() throws IOException {
+        // Arrange
+        Indexer indexer = new Indexer();
+        Path root = Files.createDirectories(index.resolve("archive"));
+        Path zip = root.resolve("backup.zip");
+        Path large = archives.resolve("single").resolve("gibberish.txt");
+        try (ZipOutputStream out = new ZipOutputStream(Files.newOutputStream(zip))) {
+            out.putNextEntry(new ZipEntry("dir/gibberish.txt"));
+            out.write(Files.readAllBytes(large));
+            out.putNextEntry(new ZipEntry("small.txt"));
+            out.write(new byte[] {1, 2, 3});
+        }
+        Archive archive = new Archive();
+        archive.setRoot(root);
+        archive.setIndex(index.resolve("index.amx"));
+        archive.setIndexZips(true);
+
+        // Act
+        Map<Long, List<FileSummary>> actual = indexer.readIndex(archive);
+
+        // Assert
+        FileSummary entry = actual.get(Files.size(large)).get(0);
+        assertEquals(zip + ZipIndexer.SEPARATOR + "dir/gibberish.txt", entry.getPath());
+        assertEquals(Fingerprinter.fingerprint(large).get(), entry.getFingerprint());
+        assertEquals(1, actual.get(3L).size());
+        assertTrue(actual.containsKey(Files.size(zip)));
+        assertEquals(Fingerprinter.contentHash(large), ZipIndexer.contentHash(entry.getPath()));
+    }
+
+    @Test
+    void readIndex_reads_zip_entry_names_of_legacy_code_page_and_skips_broken_zips() throws IOException {
+        // Arrange
+        Indexer indexer = new Indexer();
+        Path root = Files.createDirectories(index.resolve("archive"));
+        Path zip = root.resolve("old.zip");
+        try (ZipOutputStream out = new ZipOutputStream(Files.newOutputStream(zip), Charset.forName("IBM437"))) {
+            out.putNextEntry(new ZipEntry("caf\u00e9.txt"));
+            out.write(new byte[] {1, 2, 3, 4, 5});
+        }
+        Files.write(root.resolve("broken.zip"), "not a zip file".getBytes());
+        Archive archive = new Archive();
+        archive.setRoot(root);
+        archive.setIndex(index.resolve("index.amx"));
+        archive.setIndexZips(true);
+        archive.setParallelism(1);
+
+        // Act
+        Map<Long, List<FileSummary>> actual = indexer.readIndex(archive);
+
+        // Assert
+        FileSummary entry = actual.get(5L).get(0);
+        assertEquals(zip + ZipIndexer.SEPARATOR + "caf\u00e9.txt", entry.getPath());
+        assertTrue(ZipIndexer.contentHash(entry.getPath()).isPresent());
+        assertTrue(actual.containsKey(Files.size(root.resolve("broken.zip"))));
+    }
+
+    @Test
+    void readIndex_resumes_from_journal_of_interrupted_indexing() throws IOException {
+        // Arrange
+        Indexer indexer = new Indexer();
+        Archive archive = new Archive();
+        Path live = Files.createDirectories(index.resolve("live"));
+        Files.write(live.resolve("done.txt"), "done".getBytes());
+        Files.write(live.resolve("pending.txt"), "pending".getBytes());
+        archive.setRoot(live);
+        archive.setIndex(index.resolve("index.amx"));
+        // A fingerprint that was never computed from the file shows it was taken from the journal
+        FileSummary done = new FileSummary(live.resolve("done.txt").toString(), 4L, "0123456789abcdef",
+                Files.getLastModifiedTime(live.resolve("done.txt")).toMillis());
+        try (IndexJournal journal = IndexJournal.open(archive.getIndex(), archive.getFingerprint())) {
+            journal.append(done);
+        }
+
+        // Act
+        Map<Long, List<FileSummary>> actual = indexer.readIndex(archive);
+
+        // Assert
+        assertEquals("0123456789abcdef", actual.get(4L).get(0).getFingerprint());
+        assertEquals(Fingerprinter.fingerprint(live.resolve("pending.txt")).get(), actual.get(7L).get(0).getFingerprint());
+        assertFalse(Files.exists(IndexJournal.of(archive.getIndex())));
+    }
+
+    @Test
+    void readIndex_indexes_again_when_fingerprint_strategy_changes() throws IOException {
+        // Arrange
+        Indexer indexer = new Indexer();
+        Archive archive = new Archive();
+        Path single = archives.resolve("single");
+        archive.setRoot(single);
+        archive.setIndex(index.resolve("index.amx"));
+        indexer.readIndex(archive);
+        archive.setFingerprint(FingerprintStrategy.FAST);
+
+        // Act
+        Map<Long, List<FileSummary>> actual = indexer.readIndex(archive);
+
+        // Assert
+        assertEquals(FingerprintStrategy.FAST, Indexer.strategyOf(archive.getIndex()));
+        assertEquals(Fingerprinter.fingerprint(single.resolve("gibberish.txt"), FingerprintStrategy.FAST).get(),
+                actual.get(Files.size(single.resolve("gibberish.txt"))).get(0).getFingerprint());
+    }
+
+    @Test
+    void align_fingerprints_files_of_other_strategies_with_matching_sizes() throws IOException {
+        // Arrange
+        Indexer indexer = new Indexer();
+        long singleSize = Files.size(archives.resolve("single").resolve("gibberish.txt"));
+        long skippedSize = Files.size(archives.resolve("multiple").resolve("gibberish2.txt"));
+        long multipleSize = Files.size(archives.resolve("multiple").resolve("gibberish1.txt"));
+        Archive headTail = new Archive();
+        headTail.setRoot(archives.resolve("single"));
+        headTail.setIndex(index.resolve("single.amx"));
+        Archive sampled = new Archive();
+        sampled.setRoot(archives.resolve("multiple"));
+        sampled.setIndex(index.resolve("multiple.amx"));
+        sampled.setFingerprint(FingerprintStrategy.SAMPLED);
+        Map<Long, List<FileSummary>> sources = new HashMap<>(indexer.readIndex(headTail));
+        sources.putAll(indexer.readIndex(sampled));
+        String unaligned = sources.get(skippedSize).get(0).getFingerprint();
+        FileSummary original = sources.get(singleSize).get(0);
+        String originalFingerprint = original.getFingerprint();
+
+        // Act
+        Map<FileSummary, FileSummary> actual = indexer.align(sources, Lists.list(headTail, sampled), FingerprintStrategy.FULL, x -> x != skippedSize);
+
+        // Assert
+        assertEquals(3, actual.size());
+        assertSame(original, actual.get(sources.get(singleSize).get(0)));
+        assertEquals(originalFingerprint, original.getFingerprint());
+        assertEquals(Fingerprinter.contentHash(archives.resolve("single").resolve("gibberish.txt")).get(), sources.get(singleSize).get(0).getFingerprint());
+        assertEquals(unaligned, sources.get(skippedSize).get(0).getFingerprint());
+        assertEquals(Fingerprinter.contentHash(archives.resolve("multiple").resolve("gibberish1.txt")).get(), sources.get(multipleSize).get(0).getFingerprint());
+    }
+
+    /**
+     * Summary of a test resource as indexed, taking size and fingerprint from the file itself as these depend on the
+     * line endings the resources were checked out with
+     */
+    private static FileSummary summaryOf(Path file) throws IOException {
+        return new FileSummary(file.toString(), Files.size(file), Fingerprinter.fingerprint(file).get());
+    }
+
+    /**
+     * Builds a minimal JPEG holding nothing but an EXIF segment with the given camera make
+     */
+    private static byte[] jpegWithMake(String make) {
+        byte[] value = (make + "\0").getBytes(StandardCharsets.US_ASCII);
+        ByteBuffer tiff = ByteBuffer.allocate(26 + value.length)
+                .put(new byte[] {'M', 'M', 0x00, 0x2A}).putInt(8)
+                .putShort((short)1)
+                .putShort((short)0x010F).putShort((short)2).putInt(value.length).putInt(26)
+                .putInt(0)
+                .put(value);
+        byte[] exif = ByteBuffer.allocate(6 + tiff.capacity()).put("Exif\0\0".getBytes(StandardCharsets.US_ASCII)).put(tiff.array()).array();
+        return ByteBuffer.allocate(8 + exif.length)
+                .put((byte)0xFF).put((byte)0xD8)
+                .put((byte)0xFF).put((byte)0xE1).putShort((short)(exif.length + 2))
+                .put(exif)
+                .put((byte)0xFF).put((byte)0xD9)
+                .array();
+    }
 }
\ No newline at end of file
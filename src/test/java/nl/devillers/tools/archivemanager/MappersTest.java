@@ -1,14 +1,19 @@
 package nl.devillers.tools.archivemanager;
 
 import nl.devillers.tools.archivemanager.model.Archive;
+import nl.devillers.tools.archivemanager.model.CompactIndex;
 import nl.devillers.tools.archivemanager.model.FileSummary;
+import nl.devillers.tools.archivemanager.model.MissingFiles;
+import org.assertj.core.util.Lists;
 import org.junit.jupiter.api.Test;
 import org.junit.jupiter.api.io.TempDir;
 
+import java.io.IOException;
+import java.nio.file.Files;
 import java.nio.file.Path;
 import java.nio.file.Paths;
-import java.util.List;
-import java.util.Map;
+import java.util.*;
+import java.util.stream.Collectors;
 
 import static org.junit.jupiter.api.Assertions.*;
 
@@ -66,4 +71,161 @@ class MappersTest {
         // Assert
         assertEquals(3, actual.size());
     }
-}
\ No newline at end of file
+
+    @Test
+    void compact_index_produces_same_difference_and_duplicates() {
+        // Arrange
+        Mappers mappers = new Mappers();
+        Indexer indexer = new Indexer();
+
+        Archive multipleArchive = new Archive();
+        multipleArchive.setRoot(archives.resolve("multiple"));
+        multipleArchive.setIndex(index.resolve("multiple.fst"));
+        Map<Long, List<FileSummary>> multipleIndex = indexer.readIndex(multipleArchive);
+
+        Archive duplicateArchive = new Archive();
+        duplicateArchive.setRoot(archives.resolve("duplicate"));
+        duplicateArchive.setIndex(index.resolve("duplicate.fst"));
+        CompactIndex duplicateIndex = indexer.readCompactIndex(duplicateArchive);
+
+        // Act
+        List<FileSummary> missing = mappers.rightWithoutLeft(duplicateIndex, multipleIndex);
+        List<List<FileSummary>> duplicates = mappers.duplicates(duplicateIndex);
+
+        // Assert
+        assertEquals(3, missing.size());
+        assertEquals(mappers.duplicates(indexer.readIndex(duplicateArchive)), duplicates);
+        assertEquals(1, duplicates.size());
+    }
+
+    @Test
+    void summarize_totals_missing_files_per_source_archive() throws IOException {
+        // Arrange
+        Mappers mappers = new Mappers();
+        Indexer indexer = new Indexer();
+
+        Archive multipleArchive = new Archive();
+        multipleArchive.setRoot(archives.resolve("multiple"));
+        multipleArchive.setIndex(index.resolve("multiple.fst"));
+        Map<Long, List<FileSummary>> multipleIndex = indexer.readIndex(multipleArchive);
+
+        Archive duplicateArchive = new Archive();
+        duplicateArchive.setRoot(archives.resolve("duplicate"));
+        duplicateArchive.setIndex(index.resolve("duplicate.fst"));
+        Map<Long, List<FileSummary>> duplicateIndex = indexer.readIndex(duplicateArchive);
+
+        List<FileSummary> missing = mappers.rightWithoutLeft(duplicateIndex, multipleIndex);
+
+        // Act
+        MissingFiles actual = mappers.summarize(missing, Lists.list(multipleArchive, duplicateArchive));
+
+        // Assert
+        assertEquals(missing, actual.getFiles());
+        assertEquals(1, actual.getPerArchive().size());
+        assertEquals(3, actual.getPerArchive().get(multipleArchive.getRoot()).getCount());
+        assertEquals(Files.size(archives.resolve("multiple").resolve("gibberish1.txt"))
+                + Files.size(archives.resolve("multiple").resolve("gibberish2.txt"))
+                + Files.size(archives.resolve("multiple").resolve("gibberish3.txt")), actual.getBytes());
+    }
+
+    @Test
+    void rankByReclaimable_puts_biggest_wins_first() {
+        // Arrange
+        Mappers mappers = new Mappers();
+        List<FileSummary> pair = Lists.list(new FileSummary("a", 1000L, "aa"), new FileSummary("b", 1000L, "aa"));
+        List<FileSummary> triple = Lists.list(new FileSummary("c", 600L, "bb"), new FileSummary("d", 600L, "bb"), new FileSummary("e", 600L, "bb"));
+        List<FileSummary> small = Lists.list(new FileSummary("f", 10L, "cc"), new FileSummary("g", 10L, "cc"));
+
+        // Act
+        List<List<FileSummary>> actual = mappers.rankByReclaimable(Lists.list(small, pair, triple));
+
+        // Assert
+        assertEquals(Lists.list(triple, pair, small), actual);
+    }
+
+    @Test
+    void directoryDuplicates_collapses_copied_subtrees() {
+        // Arrange
+        Mappers mappers = new Mappers();
+        List<FileSummary> files = new ArrayList<>();
+        for (String copy : Arrays.asList("photos", "backup/photos", "old")) {
+            files.add(file(copy, "2019/a.jpg", 100L, "aa"));
+            files.add(file(copy, "2019/b.jpg", 200L, "bb"));
+            files.add(file(copy, "2020/c.jpg", 300L, "cc"));
+        }
+        files.add(file("loose", "c.jpg", 300L, "cc"));
+        files.add(file("loose", "d.jpg", 400L, "dd"));
+        files.add(file("other", "d.jpg", 400L, "dd"));
+        files.add(file("other", "e.jpg", 500L, "ee"));
+        CompactIndex index = CompactIndex.of(index(files));
+        List<List<FileSummary>> duplicates = mappers.duplicates(index);
+
+        // Act
+        List<List<FileSummary>> actual = mappers.directoryDuplicates(duplicates, directoryFiles(files));
+        List<List<FileSummary>> uncovered = mappers.uncovered(duplicates, actual);
+
+        // Assert
+        assertEquals(1, actual.size());
+        assertEquals(Lists.list(Paths.get("backup", "photos").toString(), "old", "photos"),
+                actual.get(0).stream().map(FileSummary::getPath).collect(Collectors.toList()));
+        assertEquals(600L, actual.get(0).get(0).getSize());
+        assertEquals(2, uncovered.size());
+        assertEquals(4, uncovered.stream().filter(x -> x.get(0).getSize() == 300L).findFirst().get().size());
+    }
+
+    @Test
+    void directoryDuplicates_keeps_copies_within_a_copied_directory() {
+        // Arrange
+        Mappers mappers = new Mappers();
+        List<FileSummary> files = new ArrayList<>();
+        for (String copy : Arrays.asList("photos", "backup")) {
+            files.add(file(copy, "a/a.jpg", 100L, "aa"));
+            files.add(file(copy, "b/a.jpg", 100L, "aa"));
+        }
+        List<List<FileSummary>> duplicates = mappers.duplicates(CompactIndex.of(index(files)));
+
+        // Act
+        List<List<FileSummary>> actual = mappers.directoryDuplicates(duplicates, directoryFiles(files));
+
+        // Assert
+        assertEquals(2, actual.size());
+        assertTrue(actual.stream().anyMatch(x -> x.size() == 2 && x.get(1).getPath().equals("photos")));
+        assertTrue(actual.stream().anyMatch(x -> x.size() == 4));
+        assertTrue(mappers.uncovered(duplicates, actual).isEmpty());
+    }
+
+    @Test
+    void directoryDuplicates_ignores_directories_holding_unique_files_left_out_by_filters() {
+        // Arrange
+        Mappers mappers = new Mappers();
+        List<FileSummary> files = new ArrayList<>();
+        for (String copy : Arrays.asList("photos", "backup")) {
+            files.add(file(copy, "a.jpg", 100L, "aa"));
+            files.add(file(copy, "b.jpg", 200L, "bb"));
+        }
+        List<List<FileSummary>> duplicates = mappers.duplicates(CompactIndex.of(index(files)));
+        // A unique video next to the photos, not matched by a filter for photos
+        files.add(file("photos", "clip.mov", 300L, "cc"));
+
+        // Act
+        List<List<FileSummary>> actual = mappers.directoryDuplicates(duplicates, directoryFiles(files));
+
+        // Assert
+        assertTrue(actual.isEmpty());
+        assertEquals(duplicates, mappers.uncovered(duplicates, actual));
+    }
+
+    private static FileSummary file(String directory, String path, long size, String fingerprint) {
+        return new FileSummary(Paths.get(directory, path.split("/")).toString(), size, fingerprint);
+    }
+
+    private static Map<Long, List<FileSummary>> index(List<FileSummary> files) {
+        return files.stream().collect(Collectors.groupingBy(FileSummary::getSize));
+    }
+
+    private static Map<Path, Integer> directoryFiles(List<FileSummary> files) {
+        Map<Path, Integer> directoryFiles = new HashMap<>();
+        files.forEach(x -> directoryFiles.merge(Paths.get(x.getPath()).getParent(), 1, Integer::sum));
+        return directoryFiles;
+    }
+}
@@ -0,0 +1,104 @@
+package nl.devillers.tools.archivemanager;
+
+import nl.devillers.tools.archivemanager.model.Archive;
+import nl.devillers.tools.archivemanager.model.Config;
+import nl.devillers.tools.archivemanager.model.FileSummary;
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.io.TempDir;
+
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.nio.file.attribute.FileTime;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+import java.util.Map;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+class MasterIndexerTest {
+
+    @TempDir
+    Path directory;
+
+    Path archives = Paths.get("src","test","resources", "archives");
+
+    @Test
+    void readMasterIndex_merges_sources_and_reuses_master_while_unchanged() throws IOException {
+        // Arrange
+        Indexer indexer = new Indexer();
+        MasterIndexer masterIndexer = new MasterIndexer(new Config(), indexer, new IndexScheduler(indexer, new Config()), new Mappers());
+        List<Archive> sources = Arrays.asList(archive("single"), archive("duplicate"));
+        Path master = directory.resolve("master.amx");
+        long singleSize = Files.size(archives.resolve("single").resolve("gibberish.txt"));
+        long duplicateSize = Files.size(archives.resolve("duplicate").resolve("gibberish_d1.txt"));
+
+        // Act
+        Map<Long, List<FileSummary>> first = masterIndexer.readMasterIndex(sources, master, false);
+        FileTime written = Files.getLastModifiedTime(master);
+        Map<Long, List<FileSummary>> second = masterIndexer.readMasterIndex(sources, master, false);
+
+        // Assert
+        assertEquals(2, first.size());
+        assertEquals(1, first.get(singleSize).size());
+        assertEquals(2, first.get(duplicateSize).size());
+        assertEquals(first, second);
+        assertEquals(written, Files.getLastModifiedTime(master));
+    }
+
+    @Test
+    void readMasterIndex_rebuilds_master_when_a_source_changes() throws IOException {
+        // Arrange
+        Indexer indexer = new Indexer();
+        MasterIndexer masterIndexer = new MasterIndexer(new Config(), indexer, new IndexScheduler(indexer, new Config()), new Mappers());
+        Path root = Files.createDirectories(directory.resolve("archive"));
+        Files.write(root.resolve("a.txt"), new byte[] {1, 2, 3});
+        Archive source = new Archive();
+        source.setRoot(root);
+        source.setIndex(directory.resolve("index.amx"));
+        source.setRefresh(true);
+        Path master = directory.resolve("master.amx");
+        masterIndexer.readMasterIndex(Arrays.asList(source, archive("single")), master, false);
+        Files.write(root.resolve("b.txt"), new byte[] {1, 2, 3, 4});
+
+        // Act
+        Map<Long, List<FileSummary>> actual = masterIndexer.readMasterIndex(Arrays.asList(source, archive("single")), master, false);
+
+        // Assert
+        assertEquals(3, actual.size());
+        assertTrue(actual.containsKey(4L));
+        assertEquals(actual, IndexFile.read(master));
+    }
+
+    @Test
+    void saveContentHashes_keeps_master_current_after_source_indexes_are_rewritten() throws IOException {
+        // Arrange
+        Indexer indexer = new Indexer();
+        MasterIndexer masterIndexer = new MasterIndexer(new Config(), indexer, new IndexScheduler(indexer, new Config()), new Mappers());
+        List<Archive> sources = Arrays.asList(archive("single"), archive("duplicate"));
+        Path master = directory.resolve("master.amx");
+        long size = Files.size(archives.resolve("single").resolve("gibberish.txt"));
+        FileSummary file = masterIndexer.readMasterIndex(sources, master, false).get(size).get(0);
+        Map<String, String> contentHashes = Collections.singletonMap(file.getPath(), "abcd");
+        Files.setLastModifiedTime(sources.get(0).getIndex(), FileTime.fromMillis(0));
+        indexer.saveContentHashes(sources.get(0), contentHashes);
+        boolean currentAfterRewrite = masterIndexer.isCurrent(sources, master);
+
+        // Act
+        masterIndexer.saveContentHashes(sources, master, contentHashes);
+
+        // Assert
+        assertFalse(currentAfterRewrite);
+        assertTrue(masterIndexer.isCurrent(sources, master));
+        assertEquals("abcd", IndexFile.read(master).get(size).get(0).getContentHash());
+    }
+
+    private Archive archive(String name) {
+        Archive archive = new Archive();
+        archive.setRoot(archives.resolve(name));
+        archive.setIndex(directory.resolve(name + ".amx"));
+        return archive;
+    }
+}
@@ -0,0 +1,61 @@
+package nl.devillers.tools.archivemanager;
+
+import com.fasterxml.jackson.databind.JsonNode;
+import com.fasterxml.jackson.databind.ObjectMapper;
+import nl.devillers.tools.archivemanager.model.Archive;
+import nl.devillers.tools.archivemanager.model.ArchiveMetrics;
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.io.TempDir;
+
+import java.io.IOException;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+class MetricsTest {
+
+    @TempDir
+    Path directory;
+
+    Path archives = Paths.get("src","test","resources", "archives");
+
+    @Test
+    void indexing_records_fingerprints_per_archive() {
+        // Arrange
+        Metrics metrics = new Metrics();
+        Indexer indexer = new Indexer(metrics);
+        Archive archive = new Archive();
+        archive.setRoot(archives.resolve("multiple"));
+        archive.setIndex(directory.resolve("index.amx"));
+
+        // Act
+        metrics.phase("load", () -> indexer.readIndex(archive));
+
+        // Assert
+        ArchiveMetrics actual = metrics.archive(archive.getRoot());
+        assertEquals(3, actual.getFilesFingerprinted());
+        assertEquals(3 * 2048, actual.getBytesRead());
+        assertEquals(3, actual.getFingerprintLatencyMicros().values().stream().mapToLong(Long::longValue).sum());
+        assertTrue(metrics.getPhaseMillis().containsKey("load"));
+    }
+
+    @Test
+    void write_produces_json_summary() throws IOException {
+        // Arrange
+        Metrics metrics = new Metrics();
+        metrics.phase("filter", () -> {});
+        metrics.archive(Paths.get("archive")).recordFingerprint(1_500_000, 2048);
+        Path output = directory.resolve("run-summary.json");
+
+        // Act
+        metrics.write(output);
+
+        // Assert
+        JsonNode summary = new ObjectMapper().readTree(output.toFile());
+        assertEquals("filter", summary.get("phases").get(0).get("name").asText());
+        JsonNode archive = summary.get("archives").get(0);
+        assertEquals(2048, archive.get("bytesRead").asLong());
+        assertEquals(1, archive.get("fingerprintLatencyMicros").get("<2048").asLong());
+    }
+}
@@ -0,0 +1,117 @@
+package nl.devillers.tools.archivemanager;
+
+import nl.devillers.tools.archivemanager.model.*;
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.io.TempDir;
+import org.junit.jupiter.params.ParameterizedTest;
+import org.junit.jupiter.params.provider.ValueSource;
+import org.springframework.util.unit.DataSize;
+
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.*;
+import java.util.regex.Pattern;
+import java.util.stream.Collectors;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+class PartitionedDetectorTest {
+
+    @TempDir
+    Path directory;
+
+    /**
+     * A budget of a single byte makes the maximum number of partitions, which are spilled in groups first.
+     */
+    @ParameterizedTest
+    @ValueSource(longs = {1024, 1})
+    void detect_matches_detection_in_memory(long memoryBudget) throws IOException {
+        // Arrange
+        Config config = new Config();
+        config.setIgnoreEmptyFiles(true);
+        config.setRegexFilters(Collections.singletonList(Pattern.compile("\\.bin$")));
+        config.setExifFilter(new ExifFilter());
+        config.setSources(Arrays.asList(archive("first", 40, 0), archive("second", 40, 20)));
+        config.setTarget(archive("target", 50, 10));
+        // Copy a few files within the target, so it holds duplicates as well
+        for (int i = 10; i < 15; i++) {
+            Path file = config.getTarget().getRoot().resolve("file-" + i + ".bin");
+            Files.copy(file, file.resolveSibling("copy-" + i + ".bin"));
+        }
+        Files.write(config.getSources().get(0).getRoot().resolve("empty.bin"), new byte[0]);
+        Files.write(config.getTarget().getRoot().resolve("notes.txt"), "not matched by the filters".getBytes());
+        config.getOutOfCore().setMemoryBudget(DataSize.ofBytes(memoryBudget));
+        config.getOutOfCore().setSpillDirectory(directory.resolve("spill"));
+        Indexer indexer = new Indexer();
+        new IndexScheduler(indexer, config).prepare(Arrays.asList(config.getSources().get(0), config.getSources().get(1), config.getTarget()));
+        Filters filters = new Filters(config);
+        Mappers mappers = new Mappers();
+        PartitionedDetector detector = new PartitionedDetector(config, indexer, filters, mappers, new Verifier(indexer, config));
+
+        Map<Long, List<FileSummary>> sources = new HashMap<>();
+        config.getSources().forEach(x -> mappers.accumulator(sources, indexer.loadIndex(x)));
+        CompactIndex target = filters.applyFilters(indexer.loadCompactIndex(config.getTarget()));
+        Set<String> expectedMissing = paths(mappers.rightWithoutLeft(target, filters.filter(sources)));
+        Set<Set<String>> expectedDuplicates = mappers.duplicates(target).stream().map(PartitionedDetectorTest::paths).collect(Collectors.toSet());
+
+        List<FileSummary> missing = new ArrayList<>();
+        List<List<FileSummary>> duplicates = new ArrayList<>();
+
+        // Act
+        long actual = detector.detect(new PartitionedDetector.Sink() {
+            @Override
+            public void missing(List<FileSummary> files) {
+                missing.addAll(files);
+            }
+
+            @Override
+            public void duplicates(List<List<FileSummary>> groups) {
+                duplicates.addAll(groups);
+            }
+        });
+
+        // Assert
+        assertEquals(81, actual);
+        assertEquals(10, expectedMissing.size());
+        assertEquals(expectedMissing, paths(missing));
+        assertEquals(5, expectedDuplicates.size());
+        assertEquals(expectedDuplicates, duplicates.stream().map(PartitionedDetectorTest::paths).collect(Collectors.toSet()));
+        assertEquals(0, Files.list(directory.resolve("spill")).count());
+    }
+
+    @Test
+    void partitions_grow_with_indexes_and_threads() throws IOException {
+        // Arrange
+        Path index = Files.write(directory.resolve("index.amx"), new byte[1000]);
+        List<Path> indexes = Arrays.asList(index, index);
+
+        // Act
+        int unlimited = PartitionedDetector.partitions(indexes, Long.MAX_VALUE, 4);
+        int limited = PartitionedDetector.partitions(indexes, 2000 * PartitionedDetector.HEAP_PER_INDEX_BYTE, 4);
+        int tiny = PartitionedDetector.partitions(indexes, 1, 4);
+
+        // Assert
+        assertEquals(1, unlimited);
+        assertEquals(4, limited);
+        assertEquals(PartitionedDetector.MAX_PARTITIONS, tiny);
+    }
+
+    /**
+     * Creates an archive of files numbered from the given offset, each with distinct content.
+     */
+    private Archive archive(String name, int count, int offset) throws IOException {
+        Path root = Files.createDirectories(directory.resolve(name));
+        for (int i = offset; i < offset + count; i++) {
+            Files.write(root.resolve("file-" + i + ".bin"), ("content of file " + i).getBytes());
+        }
+        Archive archive = new Archive();
+        archive.setRoot(root);
+        archive.setIndex(directory.resolve(name + ".amx"));
+        return archive;
+    }
+
+    private static Set<String> paths(List<FileSummary> files) {
+        return files.stream().map(x -> x.getPath().substring(x.getPath().lastIndexOf('/') + 1)).collect(Collectors.toSet());
+    }
+}
@@ -0,0 +1,131 @@
+package nl.devillers.tools.archivemanager;
+
+import com.fasterxml.jackson.databind.JsonNode;
+import com.fasterxml.jackson.databind.ObjectMapper;
+import nl.devillers.tools.archivemanager.model.Archive;
+import nl.devillers.tools.archivemanager.model.Config;
+import nl.devillers.tools.archivemanager.model.FileSummary;
+import nl.devillers.tools.archivemanager.model.FingerprintStrategy;
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.io.TempDir;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.net.HttpURLConnection;
+import java.net.URL;
+import java.net.URLEncoder;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+class QueryServerTest {
+
+    @TempDir
+    Path directory;
+
+    Path archives = Paths.get("src","test","resources", "archives");
+
+    @Test
+    void answers_queries_over_http() throws IOException {
+        // Arrange
+        Config config = new Config();
+        config.setSources(Collections.singletonList(archive("tree")));
+        config.setTarget(archive("multiple"));
+        config.setIgnoreEmptyFiles(true);
+        config.getServer().setPort(0);
+        Indexer indexer = new Indexer();
+        QueryServer server = new QueryServer(config, indexer, new IndexScheduler(indexer, config), new Filters(config), new Watcher(config, indexer));
+        String path = archives.resolve("tree").resolve("gibberish1.txt").toString();
+
+        try {
+            // Act
+            server.start();
+            JsonNode whereElse = get(server, "/where-else?path=" + URLEncoder.encode(path, "UTF-8"));
+            JsonNode missing = get(server, "/missing?archive=" + URLEncoder.encode(archives.resolve("tree").toString(), "UTF-8"));
+            int badRequest = status(server, "/files");
+
+            // Assert
+            assertEquals(1, whereElse.size());
+            assertEquals(archives.resolve("multiple").resolve("gibberish1.txt").toString(), whereElse.get(0).get("path").asText());
+            assertEquals(0, missing.size());
+            assertEquals(400, badRequest);
+        } finally {
+            server.stop();
+        }
+    }
+
+    @Test
+    void matches_content_of_archives_using_another_fingerprint_strategy() throws IOException {
+        // Arrange
+        Config config = new Config();
+        config.setSources(Collections.singletonList(archive("tree")));
+        config.getSources().get(0).setFingerprint(FingerprintStrategy.SAMPLED);
+        config.setTarget(archive("multiple"));
+        config.setIgnoreEmptyFiles(true);
+        config.getServer().setPort(0);
+        Indexer indexer = new Indexer();
+        QueryServer server = new QueryServer(config, indexer, new IndexScheduler(indexer, config), new Filters(config), new Watcher(config, indexer));
+        String path = archives.resolve("multiple").resolve("gibberish1.txt").toString();
+
+        try {
+            // Act
+            server.start();
+            JsonNode whereElse = get(server, "/where-else?path=" + URLEncoder.encode(path, "UTF-8"));
+            JsonNode missing = get(server, "/missing?archive=" + URLEncoder.encode(archives.resolve("tree").toString(), "UTF-8"));
+
+            // Assert
+            assertEquals(1, whereElse.size());
+            assertEquals(archives.resolve("tree").resolve("gibberish1.txt").toString(), whereElse.get(0).get("path").asText());
+            assertEquals(0, missing.size());
+        } finally {
+            server.stop();
+        }
+    }
+
+    @Test
+    void fingerprints_files_of_other_strategies_again_only_for_sizes_new_to_the_target() throws IOException {
+        // Arrange
+        Config config = new Config();
+        config.setSources(Collections.singletonList(archive("tree")));
+        config.getSources().get(0).setFingerprint(FingerprintStrategy.SAMPLED);
+        config.setTarget(archive("multiple"));
+        Indexer indexer = new Indexer();
+        QueryServer server = new QueryServer(config, indexer, new IndexScheduler(indexer, config), new Filters(config), new Watcher(config, indexer));
+        server.reload();
+        List<FileSummary> target = new ArrayList<>();
+        indexer.loadIndex(config.getTarget()).values().forEach(target::addAll);
+        List<FileSummary> source = new ArrayList<>();
+        indexer.loadIndex(config.getSources().get(0)).values().forEach(source::addAll);
+        long before = Fingerprinter.getBytesRead();
+
+        // Act
+        server.update(config.getTarget().getRoot(), target);
+        server.update(config.getSources().get(0).getRoot(), source);
+        server.reload();
+
+        // Assert
+        assertEquals(before, Fingerprinter.getBytesRead());
+    }
+
+    private Archive archive(String name) {
+        Archive archive = new Archive();
+        archive.setRoot(archives.resolve(name));
+        archive.setIndex(directory.resolve(name + ".amx"));
+        return archive;
+    }
+
+    private static JsonNode get(QueryServer server, String query) throws IOException {
+        try (InputStream in = new URL("http://localhost:" + server.getPort() + query).openStream()) {
+            return new ObjectMapper().readTree(in);
+        }
+    }
+
+    private static int status(QueryServer server, String query) throws IOException {
+        HttpURLConnection connection = (HttpURLConnection)new URL("http://localhost:" + server.getPort() + query).openConnection();
+        return connection.getResponseCode();
+    }
+}
@@ -0,0 +1,90 @@
+package nl.devillers.tools.archivemanager;
+
+import com.fasterxml.jackson.databind.JsonNode;
+import com.fasterxml.jackson.databind.ObjectMapper;
+import nl.devillers.tools.archivemanager.model.Archive;
+import nl.devillers.tools.archivemanager.model.FileSummary;
+import nl.devillers.tools.archivemanager.model.ReportFormat;
+import org.assertj.core.util.Lists;
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.io.TempDir;
+
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.util.List;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+class ReportWriterTest {
+
+    @TempDir
+    Path directory;
+
+    Path root = Paths.get("archive");
+    Path nested = root.resolve("nested");
+    FileSummary first = new FileSummary(root.resolve("a,b.txt").toString(), 100L, "aa");
+    FileSummary second = new FileSummary(nested.resolve("c.txt").toString(), 100L, "aa");
+
+    @Test
+    void csv_includes_size_fingerprint_and_innermost_archive() throws IOException {
+        // Arrange
+        Path output = directory.resolve("missing.csv");
+
+        // Act
+        try (ReportWriter writer = ReportWriter.open(output, ReportFormat.CSV, archives())) {
+            writer.file(first);
+            writer.file(second);
+        }
+
+        // Assert
+        List<String> expected = Lists.list(
+                "path,size,fingerprint,archive",
+                "\"" + first.getPath() + "\",100,aa," + root,
+                second.getPath() + ",100,aa," + nested);
+        assertEquals(expected, Files.readAllLines(output, StandardCharsets.UTF_8));
+    }
+
+    @Test
+    void jsonl_writes_one_object_per_group() throws IOException {
+        // Arrange
+        Path output = directory.resolve("duplicates.jsonl");
+
+        // Act
+        try (ReportWriter writer = ReportWriter.open(output, ReportFormat.JSONL, archives())) {
+            writer.group(1, Lists.list(first, second));
+            writer.group(2, Lists.list(second, first));
+        }
+
+        // Assert
+        List<String> lines = Files.readAllLines(output, StandardCharsets.UTF_8);
+        assertEquals(2, lines.size());
+        JsonNode group = new ObjectMapper().readTree(lines.get(0));
+        assertEquals(100, group.get("reclaimable").asLong());
+        assertEquals(nested.toString(), group.get("files").get(1).get("archive").asText());
+    }
+
+    @Test
+    void text_keeps_the_paths_only_format() throws IOException {
+        // Arrange
+        Path output = directory.resolve("duplicates.txt");
+
+        // Act
+        try (ReportWriter writer = ReportWriter.open(output, ReportFormat.TEXT, archives())) {
+            writer.group(1, Lists.list(first, second));
+        }
+
+        // Assert
+        assertEquals(Lists.list(">" + first.getPath(), " " + second.getPath()), Files.readAllLines(output, StandardCharsets.UTF_8));
+    }
+
+    private List<Archive> archives() {
+        Archive outer = new Archive();
+        outer.setRoot(root);
+        Archive inner = new Archive();
+        inner.setRoot(nested);
+        return Lists.list(outer, inner);
+    }
+}
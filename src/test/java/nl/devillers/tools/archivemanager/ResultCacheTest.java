@@ -0,0 +1,144 @@
+package nl.devillers.tools.archivemanager;
+
+import nl.devillers.tools.archivemanager.model.*;
+import org.assertj.core.util.Lists;
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.io.TempDir;
+
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.attribute.FileTime;
+import java.util.*;
+import java.util.regex.Pattern;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+class ResultCacheTest {
+
+    @TempDir
+    Path directory;
+
+    @Test
+    void load_reuses_results_of_unchanged_sources() throws IOException {
+        // Arrange
+        Config config = config();
+        ResultCache cache = new ResultCache(config);
+        Archive first = config.getSources().get(0);
+        Archive second = config.getSources().get(1);
+        FileSummary missingFromFirst = new FileSummary(first.getRoot().resolve("a.jpg").toString(), 100L, "aa", 1000L);
+        FileSummary missingFromSecond = new FileSummary(second.getRoot().resolve("b.jpg").toString(), 200L, "bb", 2000L);
+        FileSummary present = new FileSummary(second.getRoot().resolve("c.jpg").toString(), 300L, "cc", 3000L);
+        Map<Long, List<FileSummary>> index = new HashMap<>();
+        index.put(100L, Lists.list(missingFromFirst));
+        index.put(200L, Lists.list(missingFromSecond));
+        index.put(300L, Lists.list(present));
+        List<FileSummary> duplicate = Lists.list(new FileSummary(config.getTarget().getRoot().resolve("d.jpg").toString(), 400L, "dd"),
+                new FileSummary(config.getTarget().getRoot().resolve("e.jpg").toString(), 400L, "dd"));
+
+        CachedResults results = cache.load();
+        cache.put(results, cache.stale(results), index, Lists.list(missingFromFirst, missingFromSecond));
+        results.setDuplicates(Lists.list(duplicate));
+        results.setDirectoryFiles(Collections.singletonMap(config.getTarget().getRoot(), 2));
+        cache.save(results);
+        Files.setLastModifiedTime(second.getIndex(), FileTime.fromMillis(Files.getLastModifiedTime(second.getIndex()).toMillis() + 60_000));
+
+        // Act
+        CachedResults actual = cache.load();
+
+        // Assert
+        assertEquals(Lists.list(second), cache.stale(actual));
+        assertEquals(1, actual.getSources().size());
+        assertEquals(1, actual.getSources().values().iterator().next().getFiles());
+        assertEquals(Lists.list(missingFromFirst), actual.getSources().values().iterator().next().getMissing());
+        assertEquals(Lists.list(duplicate), actual.getDuplicates());
+        assertEquals(Collections.singletonMap(config.getTarget().getRoot(), 2), actual.getDirectoryFiles());
+    }
+
+    @Test
+    void load_discards_results_when_filters_change() throws IOException {
+        // Arrange
+        Config config = config();
+        ResultCache cache = new ResultCache(config);
+        CachedResults results = cache.load();
+        cache.put(results, cache.stale(results), Collections.emptyMap(), Collections.emptyList());
+        results.setDuplicates(Collections.emptyList());
+        results.setDirectoryFiles(Collections.emptyMap());
+        cache.save(results);
+        CachedResults unchanged = cache.load();
+        config.setRegexFilters(Collections.singletonList(Pattern.compile("(?i)\\.png$")));
+
+        // Act
+        CachedResults actual = cache.load();
+
+        // Assert
+        assertTrue(cache.stale(unchanged).isEmpty());
+        assertEquals(0, cache.detection(unchanged).getSourceFiles());
+        assertEquals(config.getSources(), cache.stale(actual));
+        assertNull(actual.getDuplicates());
+    }
+
+    @Test
+    void load_discards_results_of_sources_changed_since_they_were_loaded() throws IOException {
+        // Arrange
+        Config config = config();
+        ResultCache cache = new ResultCache(config);
+        Archive first = config.getSources().get(0);
+        Archive second = config.getSources().get(1);
+        CachedResults results = cache.load();
+        // Rewritten after loading, e.g. by a refresh running at the same time
+        Files.setLastModifiedTime(first.getIndex(), FileTime.fromMillis(Files.getLastModifiedTime(first.getIndex()).toMillis() + 60_000));
+        cache.put(results, cache.stale(results), Collections.emptyMap(), Collections.emptyList());
+        results.setDuplicates(Collections.emptyList());
+        results.setDirectoryFiles(Collections.emptyMap());
+        cache.save(results);
+        CachedResults unchanged = cache.load();
+        second.setFingerprint(FingerprintStrategy.SAMPLED);
+        second.setExcludes(Collections.singletonList(Pattern.compile("tmp$")));
+
+        // Act
+        CachedResults actual = cache.load();
+
+        // Assert
+        assertEquals(Lists.list(first), cache.stale(unchanged));
+        assertEquals(config.getSources(), cache.stale(actual));
+    }
+
+    @Test
+    void restamp_keeps_results_of_indexes_rewritten_in_between() throws IOException {
+        // Arrange
+        Config config = config();
+        ResultCache cache = new ResultCache(config);
+        Archive first = config.getSources().get(0);
+        CachedResults results = cache.load();
+        cache.put(results, cache.stale(results), Collections.emptyMap(), Collections.emptyList());
+        results.setDuplicates(Collections.emptyList());
+        results.setDirectoryFiles(Collections.emptyMap());
+        Map<String, String> stamps = cache.stamps();
+        Files.setLastModifiedTime(first.getIndex(), FileTime.fromMillis(Files.getLastModifiedTime(first.getIndex()).toMillis() + 60_000));
+
+        // Act
+        cache.restamp(results, stamps);
+        cache.save(results);
+
+        // Assert
+        assertTrue(cache.stale(cache.load()).isEmpty());
+    }
+
+    private Config config() throws IOException {
+        Config config = new Config();
+        config.setIgnoreEmptyFiles(true);
+        config.setRegexFilters(Collections.singletonList(Pattern.compile("(?i)\\.jpg$")));
+        config.setExifFilter(new ExifFilter());
+        config.setSources(Lists.list(archive("first"), archive("second")));
+        config.setTarget(archive("target"));
+        return config;
+    }
+
+    private Archive archive(String name) throws IOException {
+        Archive archive = new Archive();
+        archive.setRoot(directory.resolve(name));
+        archive.setIndex(Files.write(directory.resolve(name + ".amx"), name.getBytes()));
+        return archive;
+    }
+}
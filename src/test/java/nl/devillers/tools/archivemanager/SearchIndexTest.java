@@ -0,0 +1,73 @@
+package nl.devillers.tools.archivemanager;
+
+import nl.devillers.tools.archivemanager.model.FileSummary;
+import org.assertj.core.util.Lists;
+import org.junit.jupiter.api.Test;
+
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+class SearchIndexTest {
+
+    Path source = Paths.get("/source");
+    Path target = Paths.get("/target");
+    FileSummary photo = new FileSummary("/source/2019/photo.jpg", 100L, "aa");
+    FileSummary photoCopy = new FileSummary("/source/2019/copy/photo.JPG", 100L, "aa");
+    FileSummary document = new FileSummary("/source/2020/document.docx", 200L, "bb");
+    FileSummary backup = new FileSummary("/target/photos/photo.jpg", 100L, "aa");
+    FileSummary other = new FileSummary("/target/other.txt", 200L, "cc");
+
+    SearchIndex index() {
+        Map<Path, List<FileSummary>> perArchive = new LinkedHashMap<>();
+        perArchive.put(source, Lists.list(photo, photoCopy, document));
+        perArchive.put(target, Lists.list(backup, other));
+        return new SearchIndex(perArchive);
+    }
+
+    @Test
+    void whereElse_finds_copies_in_all_archives() {
+        // Act
+        List<FileSummary> actual = index().whereElse(photo.getPath());
+
+        // Assert
+        assertEquals(Lists.list(photoCopy, backup), actual);
+    }
+
+    @Test
+    void extension_and_directory_queries_use_secondary_indexes() {
+        // Arrange
+        SearchIndex index = index();
+
+        // Act & Assert
+        assertEquals(Lists.list(photo, photoCopy, backup), index.withExtension("JPG"));
+        assertEquals(Lists.list(photo, photoCopy), index.inDirectory("/source/2019/"));
+        assertEquals(Lists.list(document), index.matching(x -> x.endsWith(".docx"), 10));
+    }
+
+    @Test
+    void missing_and_duplicates_are_reported_per_archive() {
+        // Arrange
+        SearchIndex index = index();
+
+        // Act & Assert
+        assertEquals(Lists.list(document), index.missing(source, target));
+        assertEquals(Lists.list(Lists.list(photo, photoCopy)), index.duplicates(source));
+        assertTrue(index.duplicates(target).isEmpty());
+        assertThrows(IllegalArgumentException.class, () -> index.duplicates(Paths.get("/unknown")));
+    }
+
+    @Test
+    void missing_applies_filters_to_both_archives() {
+        // Act
+        List<FileSummary> actual = index().missing(source, target, x -> !x.getPath().endsWith(".docx"),
+                x -> !x.getPath().startsWith("/target/photos/"));
+
+        // Assert
+        assertEquals(Lists.list(photo, photoCopy), actual);
+    }
+}
@@ -0,0 +1,93 @@
+package nl.devillers.tools.archivemanager;
+
+import nl.devillers.tools.archivemanager.model.Archive;
+import nl.devillers.tools.archivemanager.model.CompactIndex;
+import nl.devillers.tools.archivemanager.model.Config;
+import nl.devillers.tools.archivemanager.model.FileSummary;
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.io.TempDir;
+
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+import java.util.Map;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+class VerifierTest {
+
+    @TempDir
+    Path directory;
+
+    Archive source;
+    Archive target;
+
+    /**
+     * Creates a source with a file that only differs from the target in the middle, where the fingerprint does not look,
+     * and a target holding two true copies of a file plus the look-alike.
+     */
+    @BeforeEach
+    void setUp() throws IOException {
+        byte[] original = new byte[10_000];
+        Arrays.fill(original, (byte)'A');
+        byte[] lookalike = original.clone();
+        lookalike[5_000] = 'B';
+
+        Path sourceRoot = Files.createDirectories(directory.resolve("source"));
+        Files.write(sourceRoot.resolve("lookalike.bin"), lookalike);
+        Path targetRoot = Files.createDirectories(directory.resolve("target"));
+        Files.write(targetRoot.resolve("original1.bin"), original);
+        Files.write(targetRoot.resolve("original2.bin"), original);
+        Files.write(targetRoot.resolve("original3.bin"), lookalike);
+
+        source = new Archive();
+        source.setRoot(sourceRoot);
+        source.setIndex(directory.resolve("source.idx"));
+        target = new Archive();
+        target.setRoot(targetRoot);
+        target.setIndex(directory.resolve("target.idx"));
+    }
+
+    @Test
+    void verifyDuplicates_splits_groups_on_content() {
+        // Arrange
+        Indexer indexer = new Indexer();
+        Verifier verifier = new Verifier(indexer, new Config());
+        CompactIndex index = indexer.readCompactIndex(target);
+        List<List<FileSummary>> candidates = new Mappers().duplicates(index);
+
+        // Act
+        List<List<FileSummary>> actual = verifier.verifyDuplicates(candidates);
+
+        // Assert
+        assertEquals(1, candidates.size());
+        assertEquals(3, candidates.get(0).size());
+        assertEquals(1, actual.size());
+        assertEquals(2, actual.get(0).size());
+        assertTrue(actual.get(0).stream().allMatch(x -> x.getPath().contains("original1") || x.getPath().contains("original2")));
+    }
+
+    @Test
+    void falseMatches_finds_lookalikes_and_persist_caches_hashes() {
+        // Arrange
+        Indexer indexer = new Indexer();
+        Verifier verifier = new Verifier(indexer, new Config());
+        CompactIndex left = indexer.readCompactIndex(source);
+        Map<Long, List<FileSummary>> right = indexer.readIndex(target);
+
+        // Act
+        List<FileSummary> actual = verifier.falseMatches(left, right);
+        verifier.persist(Arrays.asList(source, target));
+
+        // Assert
+        assertEquals(2, actual.size());
+        assertTrue(actual.stream().noneMatch(x -> x.getPath().contains("original3")));
+        assertTrue(indexer.readIndex(source).values().stream().flatMap(List::stream).allMatch(x -> x.getContentHash() != null));
+        assertTrue(indexer.readIndex(target).values().stream().flatMap(List::stream).allMatch(x -> x.getContentHash() != null));
+        assertEquals(Collections.emptyList(), new Verifier(indexer, new Config()).falseMatches(indexer.readCompactIndex(target), indexer.readIndex(target)));
+    }
+}
@@ -0,0 +1,158 @@
+package nl.devillers.tools.archivemanager;
+
+import nl.devillers.tools.archivemanager.model.Archive;
+import nl.devillers.tools.archivemanager.model.Config;
+import nl.devillers.tools.archivemanager.model.FileSummary;
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.io.TempDir;
+
+import java.io.IOException;
+import java.io.OutputStream;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.attribute.FileTime;
+import java.time.Duration;
+import java.util.*;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.TimeUnit;
+import java.util.stream.Collectors;
+import java.util.zip.ZipEntry;
+import java.util.zip.ZipOutputStream;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+class WatcherTest {
+
+    @TempDir
+    Path directory;
+
+    @Test
+    void applies_created_moved_and_deleted_files() throws Exception {
+        // Arrange
+        Path root = Files.createDirectories(directory.resolve("archive"));
+        Files.write(root.resolve("kept.txt"), new byte[] {1});
+        Files.write(root.resolve("deleted.txt"), new byte[] {1, 2});
+        Files.write(root.resolve("moved.txt"), new byte[] {1, 2, 3});
+        Archive archive = new Archive();
+        archive.setRoot(root);
+        archive.setIndex(directory.resolve("index.amx"));
+        Config config = new Config();
+        config.getWatch().setQuietPeriod(Duration.ofMillis(200));
+        Watcher watcher = new Watcher(config, new Indexer());
+        BlockingQueue<List<FileSummary>> updates = new LinkedBlockingQueue<>();
+        watcher.start(Collections.singletonList(archive), (x, y) -> updates.add(y));
+        String movedFingerprint = watcher.files(root).stream().filter(x -> x.getPath().endsWith("moved.txt")).findFirst().get().getFingerprint();
+
+        try {
+            // Act
+            Files.delete(root.resolve("deleted.txt"));
+            Files.createDirectories(root.resolve("sub"));
+            Files.move(root.resolve("moved.txt"), root.resolve("sub").resolve("moved.txt"));
+            Files.write(root.resolve("sub").resolve("created.txt"), new byte[] {1, 2, 3, 4});
+            Set<String> expected = new HashSet<>(Arrays.asList(
+                    root.resolve("kept.txt").toString(),
+                    root.resolve("sub").resolve("moved.txt").toString(),
+                    root.resolve("sub").resolve("created.txt").toString()));
+            List<FileSummary> actual = Collections.emptyList();
+            while(!paths(actual).equals(expected)) {
+                actual = updates.poll(10, TimeUnit.SECONDS);
+                assertNotNull(actual, "Changes were not applied in time");
+            }
+        } finally {
+            watcher.stop();
+        }
+
+        // Assert
+        Map<Long, List<FileSummary>> saved = IndexFile.read(archive.getIndex());
+        assertEquals(3, saved.size());
+        assertEquals(movedFingerprint, saved.get(3L).get(0).getFingerprint());
+        assertEquals(root.resolve("sub").resolve("moved.txt").toString(), saved.get(3L).get(0).getPath());
+    }
+
+    @Test
+    void fingerprints_file_again_if_several_deleted_files_look_alike() throws Exception {
+        // Arrange
+        Path root = Files.createDirectories(directory.resolve("archive"));
+        FileTime modified = FileTime.fromMillis(1500000000000L);
+        Files.createDirectories(root.resolve("a"));
+        Files.createDirectories(root.resolve("b"));
+        Files.setLastModifiedTime(Files.write(root.resolve("a").resolve("photo.jpg"), new byte[] {1, 2, 3}), modified);
+        Files.setLastModifiedTime(Files.write(root.resolve("b").resolve("photo.jpg"), new byte[] {4, 5, 6}), modified);
+        Archive archive = new Archive();
+        archive.setRoot(root);
+        archive.setIndex(directory.resolve("index.amx"));
+        Config config = new Config();
+        config.getWatch().setQuietPeriod(Duration.ofMillis(200));
+        Watcher watcher = new Watcher(config, new Indexer());
+        BlockingQueue<List<FileSummary>> updates = new LinkedBlockingQueue<>();
+        watcher.start(Collections.singletonList(archive), (x, y) -> updates.add(y));
+        Path copy = root.resolve("photo.jpg");
+
+        try {
+            // Act
+            Files.delete(root.resolve("a").resolve("photo.jpg"));
+            Files.delete(root.resolve("b").resolve("photo.jpg"));
+            Files.setLastModifiedTime(Files.write(copy, new byte[] {7, 8, 9}), modified);
+            awaitPaths(updates, copy.toString());
+        } finally {
+            watcher.stop();
+        }
+
+        // Assert
+        assertEquals(Fingerprinter.fingerprint(copy).get(), watcher.files(root).get(0).getFingerprint());
+    }
+
+    @Test
+    void applies_entries_of_created_changed_and_deleted_zip_files() throws Exception {
+        // Arrange
+        Path root = Files.createDirectories(directory.resolve("archive"));
+        Files.write(root.resolve("kept.txt"), new byte[] {1});
+        Path zip = root.resolve("photos.zip");
+        Archive archive = new Archive();
+        archive.setRoot(root);
+        archive.setIndex(directory.resolve("index.amx"));
+        archive.setIndexZips(true);
+        Config config = new Config();
+        config.getWatch().setQuietPeriod(Duration.ofMillis(200));
+        Watcher watcher = new Watcher(config, new Indexer());
+        BlockingQueue<List<FileSummary>> updates = new LinkedBlockingQueue<>();
+        watcher.start(Collections.singletonList(archive), (x, y) -> updates.add(y));
+        String kept = root.resolve("kept.txt").toString();
+
+        try {
+            // Act & Assert
+            writeZip(zip, "a.txt", "b.txt");
+            awaitPaths(updates, kept, zip.toString(), zip + "!/a.txt", zip + "!/b.txt");
+            writeZip(zip, "a.txt", "c.txt");
+            awaitPaths(updates, kept, zip.toString(), zip + "!/a.txt", zip + "!/c.txt");
+            Files.delete(zip);
+            awaitPaths(updates, kept);
+        } finally {
+            watcher.stop();
+        }
+    }
+
+    private static void writeZip(Path zip, String... names) throws IOException {
+        try (ZipOutputStream out = new ZipOutputStream(Files.newOutputStream(zip))) {
+            for (String name : names) {
+                out.putNextEntry(new ZipEntry(name));
+                out.write(name.getBytes());
+                out.closeEntry();
+            }
+        }
+    }
+
+    private static void awaitPaths(BlockingQueue<List<FileSummary>> updates, String... paths) throws InterruptedException {
+        Set<String> expected = new HashSet<>(Arrays.asList(paths));
+        List<FileSummary> actual = Collections.emptyList();
+        while(!paths(actual).equals(expected)) {
+            actual = updates.poll(10, TimeUnit.SECONDS);
+            assertNotNull(actual, "Changes were not applied in time");
+        }
+    }
+
+    private static Set<String> paths(List<FileSummary> files) {
+        return files.stream().map(FileSummary::getPath).collect(Collectors.toSet());
+    }
+}
@@ -0,0 +1,33 @@
+package nl.devillers.tools.archivemanager;
+
+import org.junit.jupiter.params.ParameterizedTest;
+import org.junit.jupiter.params.provider.CsvSource;
+
+import java.nio.charset.StandardCharsets;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+
+class XxHashTest {
+
+    /**
+     * Reference values of XXH64 with seed 0, covering the short input path and the four-lane path for input of 32
+     * bytes or more.
+     */
+    @ParameterizedTest
+    @CsvSource({
+        "'', ef46db3751d8e999",
+        "a, d24ec4f1a98c6e5b",
+        "abc, 44bc2cf5ad770999",
+        "Nobody inspects the spammish repetition, fbcea83c8a378bf1",
+    })
+    void hash64_matches_reference_values(String input, String expected) {
+        // Arrange
+        byte[] bytes = input.getBytes(StandardCharsets.UTF_8);
+
+        // Act
+        long actual = XxHash.hash64(bytes, 0, bytes.length, 0);
+
+        // Assert
+        assertEquals(expected, String.format("%016x", actual));
+    }
+}
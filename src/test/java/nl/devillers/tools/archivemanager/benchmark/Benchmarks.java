@@ -0,0 +1,21 @@
+package nl.devillers.tools.archivemanager.benchmark;
+
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.Comparator;
+import java.util.stream.Stream;
+
+class Benchmarks {
+
+    /**
+     * Deletes a temporary directory created by a benchmark, including everything in it.
+     */
+    static void delete(Path root) throws IOException {
+        try (Stream<Path> walk = Files.walk(root)) {
+            for (Path path : (Iterable<Path>)walk.sorted(Comparator.reverseOrder())::iterator) {
+                Files.delete(path);
+            }
+        }
+    }
+}
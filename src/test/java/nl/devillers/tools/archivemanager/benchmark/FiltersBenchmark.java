@@ -0,0 +1,58 @@
+package nl.devillers.tools.archivemanager.benchmark;
+
+import nl.devillers.tools.archivemanager.Filters;
+import nl.devillers.tools.archivemanager.model.CompactIndex;
+import nl.devillers.tools.archivemanager.model.Config;
+import nl.devillers.tools.archivemanager.model.ExifFilter;
+import nl.devillers.tools.archivemanager.model.FileSummary;
+import org.openjdk.jmh.annotations.*;
+
+import java.util.Collections;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.TimeUnit;
+import java.util.regex.Pattern;
+
+/**
+ * Applying regex filters to an index of {@link SyntheticArchive#FILES} files. The extension filter is answered by a
+ * set lookup, the directory filter needs the regex engine.
+ */
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+@Warmup(iterations = 3)
+@Measurement(iterations = 5)
+@Fork(value = 1, jvmArgs = {"-Xms4g", "-Xmx4g"})
+@State(Scope.Benchmark)
+public class FiltersBenchmark {
+
+    @Param({"250000"})
+    int files;
+
+    @Param({"(?i)\\\\.+\\.(jpg|jpeg|jpe)$", "(?i)[\\\\/]20(0[5-9]|1[0-9])[\\\\/][0-9]+[\\\\/]IMG_"})
+    String filter;
+
+    Filters filters;
+    Map<Long, List<FileSummary>> index;
+    CompactIndex compactIndex;
+
+    @Setup
+    public void setup() {
+        Config config = new Config();
+        config.setIgnoreEmptyFiles(true);
+        config.setRegexFilters(Collections.singletonList(Pattern.compile(filter)));
+        config.setExifFilter(new ExifFilter());
+        filters = new Filters(config);
+        index = SyntheticArchive.index("/sources", files, SyntheticArchive.SEED);
+        compactIndex = CompactIndex.of(index);
+    }
+
+    @Benchmark
+    public Map<Long, List<FileSummary>> filter() {
+        return filters.filter(index);
+    }
+
+    @Benchmark
+    public CompactIndex applyFilters_compact() {
+        return filters.applyFilters(compactIndex);
+    }
+}
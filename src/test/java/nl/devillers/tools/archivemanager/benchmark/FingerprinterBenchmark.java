@@ -0,0 +1,64 @@
+package nl.devillers.tools.archivemanager.benchmark;
+
+import nl.devillers.tools.archivemanager.Fingerprinter;
+import org.openjdk.jmh.annotations.*;
+
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+import java.util.stream.Collectors;
+import java.util.stream.Stream;
+
+/**
+ * Fingerprinting the files of a synthetic archive on disk, one file per invocation. Files are visited round robin, so
+ * after warmup they are served from the page cache and the benchmark measures the cost of opening and hashing a file
+ * rather than the speed of the disk.
+ */
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 3)
+@Measurement(iterations = 5)
+@Fork(1)
+@State(Scope.Benchmark)
+public class FingerprinterBenchmark {
+
+    @Param({"2000"})
+    int files;
+
+    Path root;
+    Path[] paths;
+
+    @State(Scope.Thread)
+    public static class Cursor {
+        int next;
+    }
+
+    @Setup
+    public void setup() throws IOException {
+        root = Files.createTempDirectory("fingerprinter-benchmark");
+        SyntheticArchive.write(root, files, SyntheticArchive.SEED);
+        try (Stream<Path> walk = Files.walk(root)) {
+            List<Path> regularFiles = walk.filter(Files::isRegularFile).sorted().collect(Collectors.toList());
+            paths = regularFiles.toArray(new Path[0]);
+        }
+    }
+
+    @TearDown
+    public void tearDown() throws IOException {
+        Benchmarks.delete(root);
+    }
+
+    @Benchmark
+    @Threads(1)
+    public Object fingerprint(Cursor cursor) {
+        return Fingerprinter.fingerprint(paths[cursor.next++ % paths.length]);
+    }
+
+    @Benchmark
+    @Threads(4)
+    public Object fingerprint_4_threads(Cursor cursor) {
+        return Fingerprinter.fingerprint(paths[cursor.next++ % paths.length]);
+    }
+}
@@ -0,0 +1,113 @@
+package nl.devillers.tools.archivemanager.benchmark;
+
+import nl.devillers.tools.archivemanager.IndexFile;
+import nl.devillers.tools.archivemanager.Indexer;
+import nl.devillers.tools.archivemanager.model.Archive;
+import nl.devillers.tools.archivemanager.model.CompactIndex;
+import nl.devillers.tools.archivemanager.model.FileSummary;
+import org.nustaq.serialization.FSTConfiguration;
+import org.openjdk.jmh.annotations.*;
+
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Creating an index by walking a synthetic archive on disk, and writing and reading an index of
+ * {@link SyntheticArchive#FILES} files in the {@link IndexFile} format and in the legacy FST format.
+ */
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+@Warmup(iterations = 3)
+@Measurement(iterations = 5)
+@Fork(value = 1, jvmArgs = {"-Xms4g", "-Xmx4g"})
+public class IndexerBenchmark {
+
+    @State(Scope.Benchmark)
+    public static class OnDisk {
+
+        @Param({"10000"})
+        int files;
+
+        Indexer indexer = new Indexer();
+        Path directory;
+        Archive archive = new Archive();
+
+        @Setup
+        public void setup() throws IOException {
+            directory = Files.createTempDirectory("indexer-benchmark");
+            Path root = Files.createDirectories(directory.resolve("archive"));
+            SyntheticArchive.write(root, files, SyntheticArchive.SEED);
+            archive.setRoot(root);
+            archive.setIndex(directory.resolve("index.amx"));
+        }
+
+        @TearDown
+        public void tearDown() throws IOException {
+            Benchmarks.delete(directory);
+        }
+    }
+
+    @State(Scope.Benchmark)
+    public static class InMemory {
+
+        @Param({"250000"})
+        int files;
+
+        FSTConfiguration fst = FSTConfiguration.createDefaultConfiguration();
+        Indexer indexer = new Indexer();
+        Path directory;
+        Map<Long, List<FileSummary>> index;
+        Archive archive = new Archive();
+        byte[] serialized;
+
+        @Setup
+        public void setup() throws IOException {
+            directory = Files.createTempDirectory("indexer-benchmark");
+            index = new HashMap<>(SyntheticArchive.index("/archive", files, SyntheticArchive.SEED));
+            archive.setRoot(directory);
+            archive.setIndex(directory.resolve("index.amx"));
+            IndexFile.write(archive.getIndex(), index);
+            serialized = fst.asByteArray(index);
+        }
+
+        @TearDown
+        public void tearDown() throws IOException {
+            Benchmarks.delete(directory);
+        }
+    }
+
+    @Benchmark
+    public void createIndex(OnDisk state) {
+        state.indexer.createIndex(state.archive);
+    }
+
+    @Benchmark
+    public void writeIndex(InMemory state) throws IOException {
+        IndexFile.write(state.directory.resolve("written.amx"), state.index);
+    }
+
+    @Benchmark
+    public Map<Long, List<FileSummary>> readIndex(InMemory state) {
+        return state.indexer.readIndex(state.archive);
+    }
+
+    @Benchmark
+    public CompactIndex readCompactIndex(InMemory state) {
+        return state.indexer.readCompactIndex(state.archive);
+    }
+
+    @Benchmark
+    public byte[] writeIndex_fst(InMemory state) {
+        return state.fst.asByteArray(state.index);
+    }
+
+    @Benchmark
+    public Object readIndex_fst(InMemory state) {
+        return state.fst.asObject(state.serialized);
+    }
+}
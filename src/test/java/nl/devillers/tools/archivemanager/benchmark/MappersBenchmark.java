@@ -0,0 +1,68 @@
+package nl.devillers.tools.archivemanager.benchmark;
+
+import nl.devillers.tools.archivemanager.Mappers;
+import nl.devillers.tools.archivemanager.model.CompactIndex;
+import nl.devillers.tools.archivemanager.model.FileSummary;
+import org.openjdk.jmh.annotations.*;
+
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Merging, comparing and deduplicating indexes of {@link SyntheticArchive#FILES} files. The target holds 90% of the
+ * files of the sources, spread over four source archives.
+ */
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+@Warmup(iterations = 3)
+@Measurement(iterations = 5)
+@Fork(value = 1, jvmArgs = {"-Xms4g", "-Xmx4g"})
+@State(Scope.Benchmark)
+public class MappersBenchmark {
+
+    @Param({"250000"})
+    int files;
+
+    Mappers mappers = new Mappers();
+    Map<Long, List<FileSummary>> sources;
+    List<Map<Long, List<FileSummary>>> parts;
+    Map<Long, List<FileSummary>> target;
+    CompactIndex compactTarget;
+
+    @Setup
+    public void setup() {
+        sources = SyntheticArchive.index("/sources", files, SyntheticArchive.SEED);
+        parts = SyntheticArchive.split(sources, 4);
+        target = SyntheticArchive.subset(sources, "/sources", "/target", 0.9, SyntheticArchive.SEED);
+        compactTarget = CompactIndex.of(target);
+    }
+
+    @Benchmark
+    public Map<Long, List<FileSummary>> accumulator() {
+        Map<Long, List<FileSummary>> master = new HashMap<>();
+        parts.forEach(x -> mappers.accumulator(master, x));
+        return master;
+    }
+
+    @Benchmark
+    public List<FileSummary> rightWithoutLeft() {
+        return mappers.rightWithoutLeft(target, sources);
+    }
+
+    @Benchmark
+    public List<FileSummary> rightWithoutLeft_compact() {
+        return mappers.rightWithoutLeft(compactTarget, sources);
+    }
+
+    @Benchmark
+    public List<List<FileSummary>> duplicates() {
+        return mappers.duplicates(sources);
+    }
+
+    @Benchmark
+    public List<List<FileSummary>> duplicates_compact() {
+        return mappers.duplicates(compactTarget);
+    }
+}
@@ -0,0 +1,165 @@
+package nl.devillers.tools.archivemanager.benchmark;
+
+import nl.devillers.tools.archivemanager.model.FileSummary;
+import org.apache.commons.codec.binary.Hex;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.*;
+
+/**
+ * Generates indexes and archives shaped like a personal archive: mostly camera photos whose sizes fall in a narrow
+ * range, so many of them share a size bucket, next to a long tail of documents, a few large videos and some empty
+ * files. About one in ten files is a copy of an earlier one. The same seed always produces the same files, which keeps
+ * benchmark runs comparable.
+ */
+public class SyntheticArchive {
+
+    public static final long SEED = 42L;
+    public static final int FILES = 250_000;
+
+    private static final int PHOTO_SIZES = 2000;
+    private static final int WRITTEN_CHUNK = 4096;
+    private static final byte[] JPEG_HEADER = jpegWithMake("Canon");
+
+    private final Random random;
+    private final String root;
+    private final List<FileSummary> generated = new ArrayList<>();
+    private int count;
+
+    public SyntheticArchive(String root, long seed) {
+        this.root = root;
+        this.random = new Random(seed);
+    }
+
+    /**
+     * Generates an in-memory index of the given number of files.
+     */
+    public static Map<Long, List<FileSummary>> index(String root, int files, long seed) {
+        SyntheticArchive archive = new SyntheticArchive(root, seed);
+        Map<Long, List<FileSummary>> index = new HashMap<>();
+        for (int i = 0; i < files; i++) {
+            FileSummary file = archive.next();
+            index.computeIfAbsent(file.getSize(), x -> new ArrayList<>()).add(file);
+        }
+        return index;
+    }
+
+    /**
+     * Copies a fraction of the files of an index to another root, as a backup containing part of the original would.
+     */
+    public static Map<Long, List<FileSummary>> subset(Map<Long, List<FileSummary>> index, String from, String to, double fraction, long seed) {
+        Random random = new Random(seed);
+        Map<Long, List<FileSummary>> subset = new HashMap<>();
+        index.keySet().stream().sorted().forEach(size -> index.get(size).forEach(file -> {
+            if(random.nextDouble() >= fraction) return;
+            FileSummary copy = new FileSummary(to + file.getPath().substring(from.length()), size, file.getFingerprint());
+            subset.computeIfAbsent(size, x -> new ArrayList<>()).add(copy);
+        }));
+        return subset;
+    }
+
+    /**
+     * Splits an index into parts of roughly equal size, as if the files were spread over several source archives.
+     */
+    public static List<Map<Long, List<FileSummary>>> split(Map<Long, List<FileSummary>> index, int parts) {
+        List<Map<Long, List<FileSummary>>> result = new ArrayList<>();
+        for (int i = 0; i < parts; i++) {
+            result.add(new HashMap<>());
+        }
+        int next = 0;
+        for (Map.Entry<Long, List<FileSummary>> bucket : index.entrySet()) {
+            for (FileSummary file : bucket.getValue()) {
+                result.get(next++ % parts).computeIfAbsent(bucket.getKey(), x -> new ArrayList<>()).add(file);
+            }
+        }
+        return result;
+    }
+
+    /**
+     * Writes the given number of files to disk. Only the first and last few kilobytes of every file are written, the
+     * rest is left sparse, so even an archive of large photos and videos takes little disk space and time to create.
+     */
+    public static void write(Path root, int files, long seed) throws IOException {
+        SyntheticArchive archive = new SyntheticArchive(root.toString(), seed);
+        byte[] chunk = new byte[WRITTEN_CHUNK];
+        for (int i = 0; i < files; i++) {
+            FileSummary file = archive.next();
+            Path path = root.resolve(file.getPath().substring(root.toString().length() + 1));
+            Files.createDirectories(path.getParent());
+            try (RandomAccessFile out = new RandomAccessFile(path.toFile(), "rw")) {
+                out.setLength(file.getSize());
+                archive.random.nextBytes(chunk);
+                if(file.getPath().endsWith(".jpg")) {
+                    // Photos start with an EXIF segment, so indexing extracts EXIF data the way it would for real photos
+                    System.arraycopy(JPEG_HEADER, 0, chunk, 0, JPEG_HEADER.length);
+                }
+                out.write(chunk, 0, (int)Math.min(WRITTEN_CHUNK, file.getSize()));
+                if(file.getSize() > WRITTEN_CHUNK) {
+                    out.seek(Math.max(WRITTEN_CHUNK, file.getSize() - WRITTEN_CHUNK));
+                    out.write(chunk, 0, (int)Math.min(WRITTEN_CHUNK, file.getSize() - WRITTEN_CHUNK));
+                }
+            }
+        }
+    }
+
+    /**
+     * Generates the next file. Copies of earlier files keep the size and fingerprint of the original.
+     */
+    public FileSummary next() {
+        int id = count++;
+        String directory = String.format("%d%s%02d", 2000 + random.nextInt(20), File.separator, random.nextInt(100));
+        if(!generated.isEmpty() && random.nextInt(10) == 0) {
+            FileSummary original = generated.get(random.nextInt(generated.size()));
+            String name = original.getPath().substring(original.getPath().lastIndexOf(File.separator) + 1);
+            return file(String.format("%s%scopy-%06d-%s", directory, File.separator, id, name), original.getSize(), original.getFingerprint());
+        }
+        byte[] fingerprint = new byte[20];
+        random.nextBytes(fingerprint);
+        double kind = random.nextDouble();
+        FileSummary file;
+        if(kind < 0.70) {
+            long size = 2_000_000L + random.nextInt(PHOTO_SIZES) * 997L;
+            file = file(String.format("%s%sIMG_%06d.jpg", directory, File.separator, id), size, Hex.encodeHexString(fingerprint));
+        } else if(kind < 0.95) {
+            long size = Math.min(50_000_000L, (long)Math.exp(10 + 2 * random.nextGaussian()));
+            file = file(String.format("%s%sdocument-%06d.docx", directory, File.separator, id), size, Hex.encodeHexString(fingerprint));
+        } else if(kind < 0.99) {
+            long size = 50_000_000L + (long)(random.nextDouble() * 2_000_000_000L);
+            file = file(String.format("%s%sVID_%06d.mp4", directory, File.separator, id), size, Hex.encodeHexString(fingerprint));
+        } else {
+            file = file(String.format("%s%sempty-%06d.txt", directory, File.separator, id), 0, Hex.encodeHexString(fingerprint));
+        }
+        generated.add(file);
+        return file;
+    }
+
+    /**
+     * Builds a minimal JPEG holding nothing but an EXIF segment with the given camera make.
+     */
+    private static byte[] jpegWithMake(String make) {
+        byte[] value = (make + "\0").getBytes(StandardCharsets.US_ASCII);
+        ByteBuffer tiff = ByteBuffer.allocate(26 + value.length)
+                .put(new byte[] {'M', 'M', 0x00, 0x2A}).putInt(8)
+                .putShort((short)1)
+                .putShort((short)0x010F).putShort((short)2).putInt(value.length).putInt(26)
+                .putInt(0)
+                .put(value);
+        byte[] exif = ByteBuffer.allocate(6 + tiff.capacity()).put("Exif\0\0".getBytes(StandardCharsets.US_ASCII)).put(tiff.array()).array();
+        return ByteBuffer.allocate(8 + exif.length)
+                .put((byte)0xFF).put((byte)0xD8)
+                .put((byte)0xFF).put((byte)0xE1).putShort((short)(exif.length + 2))
+                .put(exif)
+                .put((byte)0xFF).put((byte)0xD9)
+                .array();
+    }
+
+    private FileSummary file(String relative, long size, String fingerprint) {
+        return new FileSummary(root + File.separator + relative, size, fingerprint);
+    }
+}
@@ -0,0 +1,69 @@
+package nl.devillers.tools.archivemanager.model;
+
+import org.assertj.core.util.Lists;
+import org.junit.jupiter.api.Test;
+
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+class CompactIndexTest {
+
+    private static final String A = "91199b9d6528fd4d60f573bd27d80d5bd9284f75";
+    private static final String B = "76cee4e451bdf3945a57412d747bc06f3e4b2270";
+    private static final String C = "bd79e8f6cf2a2b1c10343c1c734b54c17678879c";
+
+    @Test
+    void of_keeps_every_entry_and_shares_directories() {
+        // Arrange
+        Map<Long, List<FileSummary>> expected = new HashMap<>();
+        expected.put(10L, Lists.list(new FileSummary("C:\\photos\\b.jpg", 10L, B, null), new FileSummary("C:\\photos\\a.jpg", 10L, A, 1L)));
+        expected.put(20L, Lists.list(new FileSummary("/home/c.jpg", 20L, C, 3L)));
+        expected.put(0L, Lists.list(new FileSummary("no-directory", 0L, A)));
+
+        // Act
+        CompactIndex actual = CompactIndex.of(expected);
+
+        // Assert
+        assertEquals(4, actual.count());
+        assertEquals(expected, actual.toMap());
+        assertEquals(expected.get(10L), actual.lookup(10L));
+        assertEquals(1L, actual.summary(actual.to(10L) - 1).getModified());
+    }
+
+    @Test
+    void contains_matches_size_and_fingerprint() {
+        // Arrange
+        Map<Long, List<FileSummary>> index = new HashMap<>();
+        index.put(10L, Lists.list(new FileSummary("a", 10L, A), new FileSummary("b", 10L, B), new FileSummary("c", 10L, C)));
+        index.put(20L, Lists.list(new FileSummary("d", 20L, C)));
+        CompactIndex compact = CompactIndex.of(index);
+
+        // Act & Assert
+        assertTrue(compact.contains(10L, A));
+        assertTrue(compact.contains(10L, B));
+        assertTrue(compact.contains(10L, C));
+        assertTrue(compact.contains(20L, C));
+        assertFalse(compact.contains(20L, A));
+        assertFalse(compact.contains(30L, A));
+        assertTrue(compact.lookup(15L).isEmpty());
+    }
+
+    @Test
+    void filter_keeps_matching_entries_only() {
+        // Arrange
+        Map<Long, List<FileSummary>> index = new HashMap<>();
+        index.put(10L, Lists.list(new FileSummary("x/a.jpg", 10L, A), new FileSummary("x/b.txt", 10L, B)));
+        CompactIndex compact = CompactIndex.of(index);
+
+        // Act
+        CompactIndex actual = compact.filter(x -> compact.path(x).endsWith(".jpg"));
+
+        // Assert
+        assertEquals(1, actual.count());
+        assertEquals("x/a.jpg", actual.path(0));
+        assertFalse(actual.contains(10L, B));
+    }
+}